@@ -0,0 +1,99 @@
+import rest.AllenAtlas;
+import rest.Atlas;
+import rest.AtlasBundle;
+
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Build an atlas bundle (reference volumes, structure graph and listings) for nodes without network access.
+ *
+ * @author Felix Meyenhofer
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > Allen Brain Atlas > Misc. > Atlas Bundle > Build")
+public class BuildAtlasBundle implements Command {
+
+    @Parameter
+    private LogService log;
+
+    @Parameter
+    private StatusService status;
+
+
+    @Parameter(label = "Bundle directory", style = "directory")
+    private File directory;
+
+    @Parameter(label = "Auto-fluorescence volume")
+    private boolean autofluo = true;
+
+    @Parameter(label = "Nissl volume")
+    private boolean nissl = false;
+
+    @Parameter(label = "Annotation volume")
+    private boolean annotation = true;
+
+    @Parameter(label = "10um")
+    private boolean res10 = false;
+
+    @Parameter(label = "25um")
+    private boolean res25 = true;
+
+    @Parameter(label = "50um")
+    private boolean res50 = false;
+
+    @Parameter(label = "100um")
+    private boolean res100 = false;
+
+    @Parameter(label = "Dataset listings of the products (comma separated ids)")
+    private String products = "12";
+
+
+    @Override
+    public void run() {
+        List<Atlas.Modality> modalities = new ArrayList<>();
+        if (autofluo) modalities.add(Atlas.Modality.AUTOFLUO);
+        if (nissl) modalities.add(Atlas.Modality.NISSEL);
+        if (annotation) modalities.add(Atlas.Modality.ANNOTATION);
+
+        List<Atlas.VoxelResolution> resolutions = new ArrayList<>();
+        if (res10) resolutions.add(Atlas.VoxelResolution.TEN);
+        if (res25) resolutions.add(Atlas.VoxelResolution.TWENTYFIVE);
+        if (res50) resolutions.add(Atlas.VoxelResolution.FIFTY);
+        if (res100) resolutions.add(Atlas.VoxelResolution.HUNDRED);
+
+        List<Integer> productIds = new ArrayList<>();
+        for (String id : products.split(",")) {
+            if (!id.trim().isEmpty()) {
+                productIds.add(Integer.parseInt(id.trim()));
+            }
+        }
+
+        try {
+            AtlasBundle bundle = new AtlasBundle(directory);
+            bundle.setLogService(log);
+            bundle.setStatusService(status);
+            bundle.build(modalities, resolutions, Collections.singletonList(AllenAtlas.MOUSE3D),
+                    Atlas.Species.MOUSE, productIds);
+        } catch (IOException e) {
+            log.error("Could not build the atlas bundle.");
+            log.error(e);
+        } catch (TransformerException e) {
+            log.error("Xml error.");
+            log.error(e);
+        } catch (URISyntaxException e) {
+            log.error("Malformed uri");
+            log.error(e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import io.AraIO;
+import io.AraMapping;
+
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+
+/**
+ * Convert the mapping files (.ara.map) of a directory from the legacy format (java serialization)
+ * to the binary format.
+ *
+ * @author Felix Meyenhofer
+ */
+@SuppressWarnings("unused")
+@Plugin(type = Command.class, menuPath = "Plugins > Allen Brain Atlas > 5. IO > Convert ARA.SEC Mappings")
+public class ConvertAraMappings extends AraIO implements Command {
+
+    @Parameter
+    private LogService log;
+
+    @Parameter(label = "Directory with the mapping files", style = "directory")
+    private File directory;
+
+
+    @Override
+    public void run() {
+        File[] mapFiles = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File path) {
+                return path.getName().endsWith(MAPPING_FILE_FORMAT);
+            }
+        });
+
+        if (mapFiles == null || mapFiles.length == 0) {
+            log.error("Could not find any " + MAPPING_FILE_FORMAT + " files in " + directory);
+            return;
+        }
+
+        int converted = 0;
+        for (File file : mapFiles) {
+            try {
+                if (AraMapping.convert(file)) {
+                    log.info("Converted " + file.getName());
+                    converted++;
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                log.error("Could not convert " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        log.info("Converted " + converted + " of " + mapFiles.length + " mapping files in " + directory);
+    }
+}
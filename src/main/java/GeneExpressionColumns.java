@@ -0,0 +1,101 @@
+import rest.AllenClient;
+import rest.Atlas;
+import rest.ExpressionGrid;
+import rest.ExpressionSampler;
+import table.AraResultsTable;
+import table.ResultsTableConverter;
+
+import ij.measure.ResultsTable;
+
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Add the gene expression of a list of section data sets (genes/experiments) as columns to a
+ * table of mapped cells (the output of "Section Coords. to ARA"), sampled at the ARA coordinates.
+ *
+ * @author Felix Meyenhofer
+ */
+@SuppressWarnings("unused")
+@Plugin(type = Command.class, menuPath = "Plugins > Allen Brain Atlas > 3. Analysis > Gene Expression Columns")
+public class GeneExpressionColumns implements Command {
+
+    @Parameter
+    private LogService log;
+
+    @Parameter
+    private StatusService status;
+
+
+    @Parameter(label = "Mapped results table")
+    private File input;
+
+    @Parameter(label = "Section data set ids (comma separated)")
+    private String datasets;
+
+    @Parameter(label = "Expression measure", choices = {"energy", "density", "intensity"})
+    private String measure = "energy";
+
+    @Parameter(label = "Template resolution", choices = {"10um", "25um", "50um", "100um"})
+    private String resolution = "25um";
+
+    @Parameter(label = "Workers")
+    private int workers = ExpressionSampler.DEFAULT_WORKERS;
+
+    @Parameter(label = "Memory budget [MB]")
+    private int budget = (int) (ExpressionSampler.DEFAULT_MEMORY_BUDGET / (1024 * 1024));
+
+
+    @Override
+    public void run() {
+        List<String> ids = new ArrayList<>();
+        for (String id : datasets.split(",")) {
+            if (!id.trim().isEmpty()) {
+                ids.add(id.trim());
+            }
+        }
+
+        if (ids.isEmpty()) {
+            log.error("Aborted: no section data set ids given.");
+            return;
+        }
+
+        ResultsTable ij1Table = ResultsTable.open2(input.getAbsolutePath());
+        if (ij1Table == null) {
+            log.error("Aborted. Could not read result file " + input);
+            return;
+        }
+        AraResultsTable table = new AraResultsTable(ij1Table);
+
+        ExpressionSampler sampler = new ExpressionSampler(AllenClient.getInstance(), workers, budget * 1024L * 1024L);
+        sampler.setLogService(log);
+        sampler.setStatusService(status);
+
+        try {
+            AraResultsTable expressionTable = table.addExpressionColumns(sampler, ids,
+                    ExpressionGrid.Measure.valueOf(measure.toUpperCase()), Atlas.VoxelResolution.get(resolution));
+
+            String path = input.getAbsolutePath();
+            String trunk = path.endsWith(".txt") ? path.substring(0, path.length() - 4) : path;
+            File output = new File(trunk + ".expression.txt");
+            expressionTable.setName(output.getName());
+            ResultsTableConverter.convertIJ2toIJ1(expressionTable).saveAs(output.getAbsolutePath());
+            log.info("Saved the expression of " + ids.size() + " data sets: " + output);
+
+            expressionTable.show();
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+        } catch (IOException e) {
+            log.error("Could not sample the expression grids");
+            e.printStackTrace();
+        }
+    }
+}
@@ -136,8 +136,12 @@ public class ImportAnnotations implements Command, Initializable, AtlasStructure
 
             status.showStatus("Load annotation section");
             AllenRefVol annotationVolume = client.getReferenceVolume(Atlas.Modality.ANNOTATION, voxelResolution);
-            RandomAccessibleInterval<UnsignedShortType> rai = annotationVolume.getRai();
-            annotationSection = araSection.mapTemplate2Section(rai, Atlas.Modality.ANNOTATION);
+            try {
+                RandomAccessibleInterval<UnsignedShortType> rai = annotationVolume.getRai();
+                annotationSection = araSection.mapTemplate2Section(rai, Atlas.Modality.ANNOTATION);
+            } finally {
+                client.releaseReferenceVolume(annotationVolume);
+            }
 
             status.showStatus("Get the structure graph");
             AtlasStructureGraph structureGraph = client.getAnnotationStructureGraph(atlas);
@@ -116,9 +116,11 @@ public class InteractiveAlignment extends DynamicCommand implements Initializabl
         client.setLogService(log);
         client.setStatusService(status);
 
+        AllenRefVol refVol = null;
+        boolean handedOver = false;
         try {
             status.showStatus("load reference volume (template)");
-            AllenRefVol refVol = client.getReferenceVolume(modality, volumeResolution);
+            refVol = client.getReferenceVolume(modality, volumeResolution);
 
             // determine the initial transform of the input section
             double sectionResolution;
@@ -153,6 +155,7 @@ public class InteractiveAlignment extends DynamicCommand implements Initializabl
 
             // initialize the UI and open it
             InteractiveAlignmentUi ui = new InteractiveAlignmentUi(section, refVol, levels, optimize, outliers, ops, status);
+            handedOver = true; // the ui releases the reference volume when it is closed
             ui.createAndShow();
 
         } catch (TransformerException e) {
@@ -167,6 +170,10 @@ public class InteractiveAlignment extends DynamicCommand implements Initializabl
         } catch (SpimDataException e) {
             log.error("Could not load reference volume");
             e.printStackTrace();
+        } finally {
+            if (!handedOver) {
+                client.releaseReferenceVolume(refVol);
+            }
         }
     }
 
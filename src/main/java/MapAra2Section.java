@@ -59,8 +59,12 @@ public class MapAra2Section extends DynamicCommand implements Command, Initializ
                 AraImgPlus ara = (AraImgPlus) section;
                 AllenClient client = AllenClient.getInstance();
                 AllenRefVol refVol = client.getReferenceVolume(modality, ara.getTemplateResolution());
-                Img<UnsignedShortType> img = ara.mapTemplate2Section(refVol.getRai(), modality);
-                warp = new ImgPlus(img, section);
+                try {
+                    Img<UnsignedShortType> img = ara.mapTemplate2Section(refVol.getRai(), modality);
+                    warp = new ImgPlus(img, section);
+                } finally {
+                    client.releaseReferenceVolume(refVol);
+                }
             } catch (TransformerException e) {
                 log.error("Trouble parsing the template data.");
                 e.printStackTrace();
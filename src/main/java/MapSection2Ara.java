@@ -49,7 +49,7 @@ public class MapSection2Ara<T extends RealType<T> & NativeType<T>> extends AraIO
             return;
         }
 
-        Img<T> vol = sec.mapSection2Template();
+        Img<T> vol = sec.mapSection2TemplateVolume();
         warp = new ImgPlus(vol, "Mapped section " + section.getName(), AllenRefVol.getAxes());
     }
 }
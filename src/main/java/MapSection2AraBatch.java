@@ -4,11 +4,13 @@ import img.AraImgPlus;
 import io.AraIO;
 import net.imagej.ImgPlus;
 import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.scijava.ItemIO;
 import org.scijava.app.StatusService;
@@ -21,11 +23,26 @@ import rest.AllenRefVol;
 import javax.naming.ConfigurationException;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * TODO: multi thread it (at least the maximum projection - the mapping is trickier)
+ * Map a batch of sections into the ARA and take the maximum projection of the section volumes.
+ *
+ * The sections are mapped in parallel (each mapping is independent). The sections are opened by the
+ * workers, and at most two sections per worker are submitted ahead of the folding, so the opened
+ * sections do not pile up. Each mapping reserves the memory it needs before it starts, so that the
+ * mappings in flight stay within the free heap.
+ * Only the slab of the template that a section covers is computed; it is folded into the
+ * projection as soon as it is ready and released right away. The projection is a disk cached
+ * volume, so the memory does not grow with the number of sections.
  *
  * @author Felix Meyenhofer
  */
@@ -43,6 +60,15 @@ public class MapSection2AraBatch <T extends RealType<T> & NativeType<T>> extends
     @Parameter
     private StatusService status;
 
+    @Parameter(label = "Threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+
+    /** Fraction of the free heap the mapped volumes in flight may take */
+    private static final double MEMORY_FRACTION = 0.8;
+
+    private static final long MB = 1024 * 1024;
+
     @Override
     public void run() {
         List<String> items = getImageDisplays();
@@ -65,53 +91,85 @@ public class MapSection2AraBatch <T extends RealType<T> & NativeType<T>> extends
         List<String> selection = dialog.getSelection();
 
         try {
-            String message;
-            Img secVol = null;
             long start = System.currentTimeMillis();
-            int N = selection.size();
-            int n = 0;
-            status.showStatus(n, N, "Mapping sections to ARA");
-
-            // Do mappings of the sections
-            List<Img<T>> vols = new ArrayList<>(N);
-            for (String selected : selection) {
-                AraImgPlus sec = getImage(selected);
-
-                message = "... mapping section " + (n+1) + " of " + N;
-                status.showStatus(n++, N, message);
-                log.info(message + " " + selected);
-                Img<T> vol = sec.mapSection2Template();
-//                ui.show(vol);
-                vols.add(vol);
-            }
-
-            // Take the maximum of the section volumes
-            List<Cursor<T>> cursors = new ArrayList<>(N);
-            for (Img<T> vol : vols) {
-                cursors.add(Views.flatIterable(vol).cursor());
-            }
-
-            ArrayImgFactory<T> factory = new ArrayImgFactory(vols.get(0).firstElement());
-            Img<T> rec = factory.create(vols.get(0));
-            RandomAccess<T> randomAccess = rec.randomAccess();
-
-            long P = rec.size();
-            int p = 0;
-            while (cursors.get(0).hasNext()) {
-                double max = 0;
-                for (Cursor<T> cursor : cursors) {
-                    max = Math.max(cursor.next().getRealDouble(), max);
+            final int N = selection.size();
+            status.showStatus(0, N, "Mapping sections to ARA");
+
+            // Memory that the mapped volumes in flight may take [MB]
+            Runtime runtime = Runtime.getRuntime();
+            long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+            final int budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (long) (available * MEMORY_FRACTION) / MB));
+            final Semaphore memory = new Semaphore(budget, true);
+
+            // Do the mappings of the sections in parallel (each one is independent). The sections are opened
+            // by the workers and at most two sections per worker (one mapping, one waiting) are in flight.
+            int workers = Math.max(1, Math.min(threads, N));
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            CompletionService<Mapping<T>> completion = new ExecutorCompletionService<>(executor);
+            final AtomicInteger count = new AtomicInteger();
+            Img<T> rec = null;
+
+            try {
+                int submitted = 0;
+                int folded = 0;
+                while (folded < N) {
+                    if (submitted < N && submitted - folded < 2 * workers) {
+                        final String selected = selection.get(submitted);
+                        log.info("... mapping section " + (submitted + 1) + " of " + N + " " + selected);
+                        completion.submit(new Callable<Mapping<T>>() {
+                            @Override
+                            public Mapping<T> call() throws Exception {
+                                AraImgPlus<T> sec = getImage(selected);
+                                int share = (int) Math.min(budget, estimateMemory(sec));
+                                memory.acquire(share);
+                                try {
+                                    RandomAccessibleInterval<T> mapped = sec.mapSection2Template();
+                                    int m = count.incrementAndGet();
+                                    status.showStatus(m, N, "Mapped section " + m + " of " + N);
+
+                                    return new Mapping<>(mapped, share, sec.getTemplateResolution().getInterval(),
+                                            sec.firstElement().createVariable());
+                                } catch (RuntimeException | Error e) {
+                                    memory.release(share);
+                                    throw e;
+                                }
+                            }
+                        });
+                        submitted++;
+                        continue;
+                    }
+
+                    // Take the maximum of the section slabs, as they come in
+                    Mapping<T> mapping = completion.take().get();
+                    if (rec == null) {
+                        rec = new DiskCachedCellImgFactory<T>().create(mapping.template, mapping.type);
+                    }
+                    foldMaximum(rec, mapping.slab);
+                    memory.release(mapping.share);
+                    folded++;
+                    status.showStatus(folded, N, "Assembling sections (max proj.)");
                 }
-
-                randomAccess.setPosition(cursors.get(0));
-                randomAccess.get().setReal(max);
-
-                if (p++ % 1000 == 0)
-                    status.showStatus(p, (int)P, "Assembling sections (max proj.)");
+            } catch (InterruptedException e) {
+                log.error("The mapping was interrupted");
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ConfigurationException) {
+                    throw (ConfigurationException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) cause;
+                }
+                log.error("The mapping of a section failed");
+                cause.printStackTrace();
+                return;
+            } finally {
+                executor.shutdownNow();
             }
 
             long stop = System.currentTimeMillis();
-            message = "Mapped " + N + " sections in " + (stop - start) / 1000 + " sec.";
+            String message = "Mapped " + N + " sections in " + (stop - start) / 1000 + " sec.";
             status.showStatus(N, N, message);
             log.info(message);
             warp = new ImgPlus(rec, "Mapped section(s) 1-" + N, AllenRefVol.getAxes());
@@ -126,4 +184,53 @@ public class MapSection2AraBatch <T extends RealType<T> & NativeType<T>> extends
             e.printStackTrace();
         }
     }
+
+    /**
+     * Estimate the memory needed to map one section: the section image and the images the mapping
+     * allocates (warped section, template plane and slab, see {@link AraImgPlus#getMappingVoxels()}) [MB]
+     */
+    private long estimateMemory(AraImgPlus<T> sec) {
+        long voxels = Intervals.numElements(sec.getImg());
+        voxels += sec.getMappingVoxels();
+        long bytes = voxels * Math.max(1, sec.firstElement().getBitsPerPixel() / 8);
+
+        return bytes / MB + 1;
+    }
+
+    /**
+     * Keep the maximum of the accumulator and a slab in the accumulator
+     */
+    private void foldMaximum(Img<T> rec, RandomAccessibleInterval<T> slab) {
+        Interval region = Intervals.intersect(rec, slab);
+        if (Intervals.isEmpty(region)) {
+            return;
+        }
+
+        Cursor<T> target = Views.flatIterable(Views.interval(rec, region)).cursor();
+        Cursor<T> source = Views.flatIterable(Views.interval(slab, region)).cursor();
+        while (target.hasNext()) {
+            T value = target.next();
+            T candidate = source.next();
+            if (candidate.compareTo(value) > 0) {
+                value.set(candidate);
+            }
+        }
+    }
+
+    /**
+     * Slab of a mapped section and the memory it holds
+     */
+    private static class Mapping<T> {
+        private final RandomAccessibleInterval<T> slab;
+        private final int share;
+        private final Interval template;
+        private final T type;
+
+        Mapping(RandomAccessibleInterval<T> slab, int share, Interval template, T type) {
+            this.slab = slab;
+            this.share = share;
+            this.template = template;
+            this.type = type;
+        }
+    }
 }
@@ -0,0 +1,52 @@
+import rest.AllenClient;
+import rest.AtlasBundle;
+
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Use an atlas bundle as (read-only) cache, without network access.
+ * To mount a bundle at start up (e.g. on a cluster) use -Daba.bundle=[bundle directory].
+ *
+ * @author Felix Meyenhofer
+ */
+@Plugin(type = Command.class, menuPath = "Plugins > Allen Brain Atlas > Misc. > Atlas Bundle > Mount")
+public class MountAtlasBundle implements Command {
+
+    @Parameter
+    private LogService log;
+
+    @Parameter
+    private StatusService status;
+
+
+    @Parameter(label = "Bundle directory", style = "directory")
+    private File directory;
+
+    @Parameter(label = "Verify checksums")
+    private boolean verify = true;
+
+
+    @Override
+    public void run() {
+        AllenClient client = AllenClient.getInstance();
+        client.setLogService(log);
+        client.setStatusService(status);
+
+        try {
+            AtlasBundle bundle = new AtlasBundle(directory);
+            bundle.setLogService(log);
+            bundle.setStatusService(status);
+            client.mountAtlasBundle(bundle, verify);
+        } catch (IOException e) {
+            log.error("Could not mount the atlas bundle.");
+            log.error(e);
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import img.AraImgPlus;
+import img.DisplacementField;
 import io.AraIO;
 import io.AraMapping;
 
@@ -71,6 +72,10 @@ public class SaveAraImg extends AraIO implements Command {
                 }
                 log.info("Saving mapping metadata " + mapFile.getAbsolutePath());
                 AraMapping metadata = ara.getAraMapping();
+                if (!metadata.computeDisplacementFields(ara.getImg()) && metadata.getT_tps() != null) {
+                    log.info("The displacement fields exceed the error bound of " + DisplacementField.DEFAULT_MAX_ERROR +
+                            " pixel, the mapping is saved without them.");
+                }
                 metadata.save(mapFile);
                 ara.setName(imgPath.getName());
             } catch (IOException e) {
@@ -205,7 +205,7 @@ public class SectionDatasetSelector extends JPanel implements ActionListener {
         return file.listFiles(new FileFilter() {
             @Override
             public boolean accept(File item) {
-                return item.isDirectory();
+                return item.isDirectory() && !item.isHidden();
             }
         });
     }
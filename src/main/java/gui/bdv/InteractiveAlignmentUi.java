@@ -3,10 +3,12 @@ package gui.bdv;
 import img.AraImgPlus;
 import img.SectionImageOutline;
 import img.SectionImageTool;
+import img.TiledWarp;
 import img.VolumeSection;
 import net.imglib2.algorithm.morphology.Closing;
 import net.imglib2.algorithm.morphology.StructuringElements;
 import net.imglib2.algorithm.neighborhood.Shape;
+import rest.AllenClient;
 import rest.AllenRefVol;
 import rest.Atlas;
 
@@ -178,6 +180,7 @@ public class InteractiveAlignmentUi<V extends RealType<V> & NativeType<V>> {
         templateOutlineSrc2 = null;
         secImg = null;
         secVol = null;
+        AllenClient.getInstance().releaseReferenceVolume(refVol);
         refVol = null;
         dims = null;
         Tr_init = null;
@@ -196,8 +199,27 @@ public class InteractiveAlignmentUi<V extends RealType<V> & NativeType<V>> {
         secImg.updateRegistrationInfo(t_tps, t_tpsi, ts, tr, volumeSection);
     }
 
+    /**
+     * Open the alignment window. The UI owns the reference volume it was created with:
+     * it is released when the window is closed, or right away if the window cannot be opened.
+     *
+     * @throws SpimDataException if the reference volume cannot be displayed
+     */
     public void createAndShow() throws SpimDataException {
         JFrame window = new JFrame("Interactive Section Alignment");
+        try {
+            show(window);
+        } catch (RuntimeException | SpimDataException e) {
+            if (bdvHandle != null) {
+                bdvHandle.getViewerPanel().stop();
+            }
+            window.dispose();
+            cleanup();
+            throw e;
+        }
+    }
+
+    private void show(final JFrame window) throws SpimDataException {
         window.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
@@ -535,8 +557,7 @@ public class InteractiveAlignmentUi<V extends RealType<V> & NativeType<V>> {
 
         RandomAccessibleInterval<V> rai = secImg.copy();
         RealRandomAccessible<V> interp = Views.interpolate(Views.extendZero(rai), new NLinearInterpolatorFactory<>());
-        RealRandomAccessible<V> mapped = RealViews.transform(interp, t_tps);
-        RandomAccessibleInterval<V> warp = Views.interval(Views.raster(mapped), secImg);
+        RandomAccessibleInterval<V> warp = new TiledWarp(t_tps).warp(interp, secImg);
 
         RandomAccessibleInterval secVol = Views.addDimension(warp, 0, dims.dimension(0) - 1);
         RandomAccessibleInterval secVolWrapped = Views.permute(secVol, 0, 2);
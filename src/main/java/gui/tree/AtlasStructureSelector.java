@@ -366,7 +366,7 @@ public class AtlasStructureSelector extends JPanel implements ActionListener {
             Object obj = node.getUserObject();
             if (obj instanceof AtlasStructure) {
                 AtlasStructure structure = (AtlasStructure) obj;
-                Integer pid = structure.getParentId();
+                int pid = structure.getParentId();
                 nodes.get(pid).add(node);
             }
         }
@@ -654,7 +654,7 @@ public class AtlasStructureSelector extends JPanel implements ActionListener {
             if (node.getUserObject() instanceof AtlasStructure) {
                 AtlasStructure structure = (AtlasStructure) node.getUserObject();
 
-                renderer.setToolTipText("id = " + structure.getId().toString());
+                renderer.setToolTipText("id = " + structure.getId());
 
                 Icon icon = new MonoChromaticIcon(structure.getColor());
                 renderer.setIcon(icon);
@@ -13,11 +13,13 @@ import net.imglib2.img.ImgView;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.InvertibleRealTransform;
 import net.imglib2.realtransform.InvertibleRealTransformSequence;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 import bdv.img.TpsTransformWrapper;
@@ -46,6 +48,13 @@ public class AraImgPlus<T extends RealType<T> & NativeType<T>> extends ImgPlus<T
     private TpsTransformWrapper t_tps;
     private TpsTransformWrapper t_tpsi;
 
+    /** Sampled thin plate splines (if the mapping carries them) */
+    private DisplacementField f_tps;
+    private DisplacementField f_tpsi;
+
+    /** Evaluate the thin plate splines even if there are displacement fields */
+    private boolean exact = false;
+
     /** Mapping of the section image in the global coordinates */
     private AffineTransform3D t_s;
 
@@ -81,6 +90,8 @@ public class AraImgPlus<T extends RealType<T> & NativeType<T>> extends ImgPlus<T
                                        VolumeSection plane) {
         this.t_tps = tps;
         this.t_tpsi = tpsi;
+        this.f_tps = null;
+        this.f_tpsi = null;
         this.t_r = Tr;
         this.t_s = Ts;
         this.volumeSection = plane;
@@ -124,6 +135,31 @@ public class AraImgPlus<T extends RealType<T> & NativeType<T>> extends ImgPlus<T
         this.t_s = mapping.getAffineTs();
         this.t_tps = mapping.getT_tps();
         this.t_tpsi = mapping.getT_tpsi();
+        this.f_tps = mapping.getF_tps();
+        this.f_tpsi = mapping.getF_tpsi();
+    }
+
+    /**
+     * @param exact evaluate the thin plate splines instead of looking up the displacement fields of the mapping
+     */
+    public void setExactMapping(boolean exact) {
+        this.exact = exact;
+    }
+
+    public boolean isExactMapping() {
+        return exact;
+    }
+
+    /**
+     * @return section warp: the displacement field if there is one (and not in exact mode), otherwise the thin plate spline
+     *         (the mapping only carries fields within its error bound, see {@link AraMapping#getMaxFieldError()})
+     */
+    private InvertibleRealTransform getTpsTransform() {
+        return (exact || f_tps == null) ? t_tps : f_tps;
+    }
+
+    private InvertibleRealTransform getInverseTpsTransform() {
+        return (exact || f_tpsi == null) ? t_tpsi : f_tpsi;
     }
 
     public double getSectionPosition() {
@@ -167,7 +203,7 @@ public class AraImgPlus<T extends RealType<T> & NativeType<T>> extends ImgPlus<T
     public double[] getTemplateCoordinate(double[] lPos) {
         double[] dPos = new double[2];
         if (hasTpsTransform()) {
-            t_tps.apply(lPos, dPos);
+            getTpsTransform().apply(lPos, dPos);
         } else {
             dPos = lPos;
         }
@@ -195,34 +231,39 @@ public class AraImgPlus<T extends RealType<T> & NativeType<T>> extends ImgPlus<T
         return planeOfSection;
     }
 
-    public Img<T> mapSection2Template() {
+    /**
+     * Map the section into the template. Only the slab the section plane covers
+     * ({@link #getTemplateSlab()}) is rasterised; the result is zero outside of it.
+     *
+     * @return mapped section on the interval of the slab (in template coordinates)
+     */
+    public RandomAccessibleInterval<T> mapSection2Template() {
         RandomAccessibleInterval<T> rastered2d;
         if (hasTpsTransform()) {
             RealRandomAccessible<T> interp2d = Views.interpolate(Views.extendZero(getImg()), new NLinearInterpolatorFactory<>());
-            RealRandomAccessible<T> warp2d = RealViews.transform(interp2d, t_tps);
-            rastered2d = Views.interval(Views.raster(warp2d), getImg());
+            rastered2d = new TiledWarp(getTpsTransform()).warp(interp2d, getImg());
         } else {
             rastered2d = getImg();
         }
 
-         // Copy the section into a volume;
+        // Copy the section into a one voxel thick volume at the section position
         long[] dim3d = Atlas.getVolumeDimension(getImg(), templateResolution, planeOfSection);
 
         int df = planeOfSection.getFixedAxisIndex();
         long d3 = getSectionNumber();
         long[] lowerBounds = new long[3];
-        long[] upperBounds = new long[3];
+        long[] dimPlane = new long[3];
         for (int d = 0; d < 3; d++) {
             if (d == df) {
                 lowerBounds[d] = d3;
-                upperBounds[d] = d3;
+                dimPlane[d] = 1;
             } else {
-                upperBounds[d] = dim3d[d] - 1;
+                dimPlane[d] = dim3d[d];
             }
         }
 
-        Img<T> secVol = getImg().factory().create(dim3d, getImg().firstElement());
-        RandomAccessibleInterval<T> sec = Views.interval(secVol, lowerBounds, upperBounds);
+        Img<T> plane = getImg().factory().create(dimPlane, getImg().firstElement());
+        RandomAccessibleInterval<T> sec = Views.translate(plane, lowerBounds);
         RandomAccess<T> ra = rastered2d.randomAccess();
         Cursor<T> cu = Views.flatIterable(sec).cursor();
         long[] rPos = new long[3];
@@ -234,20 +275,145 @@ public class AraImgPlus<T extends RealType<T> & NativeType<T>> extends ImgPlus<T
             value.set(ra.get());
         }
 
+        InvertibleRealTransformSequence t = getSection2TemplateTransform();
+        if (t == null) {
+            return sec;
+        }
+
+        Interval slab = getTemplateSlab();
+        RealRandomAccessible<T> interp3d = Views.interpolate(Views.extendZero(sec), new NLinearInterpolatorFactory<>());
+        RealRandomAccessible<T> warp3d = RealViews.transform(interp3d, t);
+        RandomAccessibleInterval<T> raster3d = Views.interval(Views.raster(warp3d), slab);
+        if (Intervals.isEmpty(slab)) {
+            return raster3d;
+        }
+
+        Img<T> mapped = getImg().factory().create(Intervals.dimensionsAsLongArray(slab), getImg().firstElement());
+        RandomAccessibleInterval<T> target = Views.translate(mapped, Intervals.minAsLongArray(slab));
+        Cursor<T> source = Views.flatIterable(raster3d).cursor();
+        Cursor<T> cursor = Views.flatIterable(target).cursor();
+        while (cursor.hasNext()) {
+            cursor.next().set(source.next());
+        }
+
+        return target;
+    }
+
+    /**
+     * Map the section into the template (see {@link #mapSection2Template()}) and
+     * show it in the whole template volume.
+     *
+     * @return template volume that is zero outside of the section slab
+     */
+    public Img<T> mapSection2TemplateVolume() {
+        Interval volume;
+        if (getSection2TemplateTransform() == null) {
+            volume = new FinalInterval(Atlas.getVolumeDimension(getImg(), templateResolution, planeOfSection));
+        } else {
+            volume = templateResolution.getInterval();
+        }
+
+        RandomAccessibleInterval<T> slab = mapSection2Template();
+
+        return ImgView.wrap(Views.interval(Views.extendZero(slab), volume), new ArrayImgFactory<>());
+    }
+
+    /**
+     * Count the voxels {@link #mapSection2Template()} allocates: the warped section (if there is a thin plate
+     * spline transformation), the one voxel thick plane and the mapped slab (if there is a section to
+     * template transformation).
+     *
+     * @return number of voxels (in addition to the section image)
+     */
+    public long getMappingVoxels() {
+        long voxels = hasTpsTransform() ? Intervals.numElements(getImg()) : 0;
+
+        long[] dim3d = Atlas.getVolumeDimension(getImg(), templateResolution, planeOfSection);
+        int df = planeOfSection.getFixedAxisIndex();
+        long plane = 1;
+        for (int d = 0; d < 3; d++) {
+            plane *= (d == df) ? 1 : dim3d[d];
+        }
+        voxels += plane;
+
+        if (getSection2TemplateTransform() != null) {
+            voxels += Intervals.numElements(getTemplateSlab());
+        }
+
+        return voxels;
+    }
+
+    /**
+     * @return transformation of the section volume into the template (null if there is none)
+     */
+    private InvertibleRealTransformSequence getSection2TemplateTransform() {
         if (hasSectionTransform() && hasTemplateTransform() &&
                 (!t_r.toString().equals(t_s.toString()))) {
             InvertibleRealTransformSequence t = new InvertibleRealTransformSequence();
             t.add(t_s);
             t.add(t_r.inverse());
 
-            RealRandomAccessible<T> interp3d = Views.interpolate(Views.extendZero(secVol), new NLinearInterpolatorFactory<>());
-            RealRandomAccessible<T> warp3d = RealViews.transform(interp3d, t);
-            RandomAccessibleInterval<T> raster3d = Views.interval(Views.raster(warp3d), templateResolution.getInterval());
+            return t;
+        }
 
-            return ImgView.wrap(raster3d, new ArrayImgFactory<>());
-        } else {
-            return ImgView.wrap(secVol, new ArrayImgFactory<>());
+        return null;
+    }
+
+    /**
+     * Get the slab of the template that the mapped section covers ({@link #mapSection2Template()}
+     * is zero outside of it): the bounding box of the section plane (and its interpolation
+     * neighbourhood) in the template.
+     *
+     * @return interval in the template coordinates
+     */
+    public Interval getTemplateSlab() {
+        long[] dim3d = Atlas.getVolumeDimension(getImg(), templateResolution, planeOfSection);
+        int df = planeOfSection.getFixedAxisIndex();
+        long d3 = getSectionNumber();
+
+        InvertibleRealTransformSequence t = getSection2TemplateTransform();
+        if (t == null) {
+            long[] min = new long[3];
+            long[] max = new long[3];
+            for (int d = 0; d < 3; d++) {
+                min[d] = (d == df) ? d3 : 0;
+                max[d] = (d == df) ? d3 : dim3d[d] - 1;
+            }
+
+            return new FinalInterval(min, max);
         }
+
+        // Transform the corners of the plane (one voxel on either side, for the interpolation)
+        double[] min = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] corner = new double[3];
+        double[] target = new double[3];
+        for (int c = 0; c < 8; c++) {
+            for (int d = 0; d < 3; d++) {
+                boolean upper = ((c >> d) & 1) == 1;
+                if (d == df) {
+                    corner[d] = upper ? d3 + 1 : d3 - 1;
+                } else {
+                    corner[d] = upper ? dim3d[d] : -1;
+                }
+            }
+
+            t.apply(corner, target);
+            for (int d = 0; d < 3; d++) {
+                min[d] = Math.min(min[d], target[d]);
+                max[d] = Math.max(max[d], target[d]);
+            }
+        }
+
+        Interval template = templateResolution.getInterval();
+        long[] lower = new long[3];
+        long[] upper = new long[3];
+        for (int d = 0; d < 3; d++) {
+            lower[d] = Math.max(template.min(d), (long) Math.floor(min[d]) - 1);
+            upper[d] = Math.min(template.max(d), (long) Math.ceil(max[d]) + 1);
+        }
+
+        return new FinalInterval(lower, upper);
     }
 
 //    public Img<UnsignedShortType> mapTemplate2Section(RandomAccessibleInterval<UnsignedShortType> rai) {
@@ -307,9 +473,7 @@ public class AraImgPlus<T extends RealType<T> & NativeType<T>> extends ImgPlus<T
 
         if (hasTpsTransform()) {
             RealRandomAccessible<UnsignedShortType> interp2d = Views.interpolate(Views.extendZero(section), interpolator);
-            RealRandomAccessible<UnsignedShortType> warp2d = RealViews.transform(interp2d, t_tpsi);
-
-            RandomAccessibleInterval<UnsignedShortType> result = Views.interval(Views.raster(warp2d), getImg());
+            RandomAccessibleInterval<UnsignedShortType> result = new TiledWarp(getInverseTpsTransform()).warp(interp2d, getImg());
             return ImgView.wrap(result, new ArrayImgFactory<>());
         } else {
             return ImgView.wrap(section, new ArrayImgFactory<>());
@@ -0,0 +1,318 @@
+package img;
+
+import net.imglib2.Interval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InvertibleRealTransform;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Dense, downsampled representation of a 2D transformation (such as the thin plate splines
+ * of the alignment), that is cheap to evaluate.
+ *
+ * The displacements of the forward and the inverse transformation are sampled once on a regular
+ * grid over the section image. Any position is then mapped with a bilinear lookup of
+ * the displacement (positions outside the grid are extrapolated from the border cells).
+ * The lookup error is estimated at the centres of the grid cells when the field is sampled.
+ *
+ * @author Felix Meyenhofer
+ */
+@SuppressWarnings("WeakerAccess")
+public class DisplacementField implements InvertibleRealTransform, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of grid nodes along the longest side of the section */
+    public static final int DEFAULT_NODES = 256;
+
+    /** Default bound of the lookup error [pixel] */
+    public static final double DEFAULT_MAX_ERROR = 0.1;
+
+    /** Finest grid (number of nodes along the longest side) the sampling is refined to */
+    private static final int MAX_NODES = 1024;
+
+    private final double minX;
+    private final double minY;
+    private final double spacing;
+    private final int nx;
+    private final int ny;
+
+    /** Displacements of the forward transformation at the grid nodes (x and y) */
+    private final float[][] forward;
+
+    /** Displacements of the inverse transformation at the grid nodes (x and y) */
+    private final float[][] inverse;
+
+    /** Largest lookup error at the centres of the grid cells (forward and inverse) [pixel] */
+    private final double error;
+
+
+    private DisplacementField(double minX, double minY, double spacing, int nx, int ny,
+                              float[][] forward, float[][] inverse, double error) {
+        this.minX = minX;
+        this.minY = minY;
+        this.spacing = spacing;
+        this.nx = nx;
+        this.ny = ny;
+        this.forward = forward;
+        this.inverse = inverse;
+        this.error = error;
+    }
+
+    /**
+     * Sample a transformation on the coarsest grid (starting at {@link #DEFAULT_NODES}) whose lookup error is
+     * within the bound.
+     *
+     * @param transform 2D transformation
+     * @param interval of the section image
+     * @param maxError bound of the lookup error [pixel]
+     * @return displacement field or null if even the finest grid exceeds the error bound
+     */
+    public static DisplacementField sample(InvertibleRealTransform transform, Interval interval, double maxError) {
+        for (int nodes = DEFAULT_NODES; nodes <= MAX_NODES; nodes *= 2) {
+            DisplacementField field = sample(transform, interval, nodes);
+            if (field.error <= maxError) {
+                return field;
+            }
+            if (field.spacing <= 1) {
+                break;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Sample a transformation
+     *
+     * @param transform 2D transformation
+     * @param interval of the section image
+     * @param nodes number of grid nodes along the longest side of the interval
+     * @return displacement field of the transformation and its inverse
+     */
+    public static DisplacementField sample(InvertibleRealTransform transform, Interval interval, int nodes) {
+        if (transform.numSourceDimensions() != 2 || transform.numTargetDimensions() != 2) {
+            throw new IllegalArgumentException("Only 2D transformations can be sampled into a displacement field.");
+        }
+        if (nodes < 2) {
+            throw new IllegalArgumentException("The displacement field needs at least 2 nodes per side, not " + nodes);
+        }
+
+        long longest = Math.max(interval.dimension(0), interval.dimension(1));
+        double spacing = Math.max(1, Math.ceil((double) (longest - 1) / (nodes - 1)));
+        int nx = (int) Math.max(2, Math.ceil((interval.dimension(0) - 1) / spacing) + 1);
+        int ny = (int) Math.max(2, Math.ceil((interval.dimension(1) - 1) / spacing) + 1);
+
+        float[][] forward = new float[2][nx * ny];
+        float[][] inverse = new float[2][nx * ny];
+        double[] position = new double[2];
+        double[] mapped = new double[2];
+        for (int j = 0; j < ny; j++) {
+            position[1] = interval.min(1) + j * spacing;
+            for (int i = 0; i < nx; i++) {
+                position[0] = interval.min(0) + i * spacing;
+                int k = j * nx + i;
+
+                transform.apply(position, mapped);
+                forward[0][k] = (float) (mapped[0] - position[0]);
+                forward[1][k] = (float) (mapped[1] - position[1]);
+
+                transform.applyInverse(mapped, position);
+                inverse[0][k] = (float) (mapped[0] - position[0]);
+                inverse[1][k] = (float) (mapped[1] - position[1]);
+            }
+        }
+
+        DisplacementField sampled = new DisplacementField(interval.min(0), interval.min(1), spacing, nx, ny,
+                forward, inverse, Double.NaN);
+
+        return new DisplacementField(interval.min(0), interval.min(1), spacing, nx, ny,
+                forward, inverse, sampled.estimateError(transform));
+    }
+
+    /**
+     * @return largest distance between the looked up and the exact position at the centres of the cells
+     */
+    private double estimateError(InvertibleRealTransform transform) {
+        double max = 0;
+        double[] position = new double[2];
+        double[] exact = new double[2];
+        double[] approx = new double[2];
+        for (int j = 0; j < ny - 1; j++) {
+            position[1] = minY + (j + 0.5) * spacing;
+            for (int i = 0; i < nx - 1; i++) {
+                position[0] = minX + (i + 0.5) * spacing;
+
+                transform.apply(position, exact);
+                lookup(forward, position[0], position[1], approx);
+                max = Math.max(max, distance(exact, approx));
+
+                transform.applyInverse(exact, position);
+                lookup(inverse, position[0], position[1], approx);
+                max = Math.max(max, distance(exact, approx));
+            }
+        }
+
+        return max;
+    }
+
+    private static double distance(double[] a, double[] b) {
+        double dx = a[0] - b[0];
+        double dy = a[1] - b[1];
+
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * @return largest lookup error at the centres of the grid cells, estimated when the field was sampled [pixel]
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Write the grid and the displacements
+     *
+     * @param out binary output
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeDouble(minX);
+        out.writeDouble(minY);
+        out.writeDouble(spacing);
+        out.writeInt(nx);
+        out.writeInt(ny);
+        out.writeDouble(error);
+        for (float[][] field : new float[][][]{forward, inverse}) {
+            for (float[] displacements : field) {
+                for (float displacement : displacements) {
+                    out.writeFloat(displacement);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a displacement field written by {@link #write(DataOutput)}
+     *
+     * @param in binary input
+     * @return displacement field
+     * @throws IOException
+     */
+    public static DisplacementField read(DataInput in) throws IOException {
+        double minX = in.readDouble();
+        double minY = in.readDouble();
+        double spacing = in.readDouble();
+        int nx = in.readInt();
+        int ny = in.readInt();
+        double error = in.readDouble();
+        if (nx < 2 || ny < 2 || spacing <= 0) {
+            throw new IOException("Invalid displacement field grid " + nx + "x" + ny + " (spacing " + spacing + ")");
+        }
+
+        float[][][] fields = new float[2][2][nx * ny];
+        for (float[][] field : fields) {
+            for (float[] displacements : field) {
+                for (int k = 0; k < displacements.length; k++) {
+                    displacements[k] = in.readFloat();
+                }
+            }
+        }
+
+        return new DisplacementField(minX, minY, spacing, nx, ny, fields[0], fields[1], error);
+    }
+
+    /**
+     * @return size of the sampled displacements [bytes]
+     */
+    public long getSizeInBytes() {
+        return 4L * 4 * nx * ny;
+    }
+
+    /**
+     * Bilinear lookup of the displacement
+     */
+    private void lookup(float[][] field, double x, double y, double[] mapped) {
+        double u = (x - minX) / spacing;
+        double v = (y - minY) / spacing;
+        int i = (int) Math.max(0, Math.min(Math.floor(u), nx - 2));
+        int j = (int) Math.max(0, Math.min(Math.floor(v), ny - 2));
+        double fx = u - i;
+        double fy = v - j;
+
+        int k = j * nx + i;
+        for (int d = 0; d < 2; d++) {
+            float[] f = field[d];
+            double top = f[k] + fx * (f[k + 1] - f[k]);
+            double bottom = f[k + nx] + fx * (f[k + nx + 1] - f[k + nx]);
+            mapped[d] = top + fy * (bottom - top);
+        }
+        mapped[0] += x;
+        mapped[1] += y;
+    }
+
+    @Override
+    public int numSourceDimensions() {
+        return 2;
+    }
+
+    @Override
+    public int numTargetDimensions() {
+        return 2;
+    }
+
+    @Override
+    public void apply(double[] source, double[] target) {
+        lookup(forward, source[0], source[1], target);
+    }
+
+    @Override
+    public void apply(float[] source, float[] target) {
+        double[] mapped = new double[2];
+        lookup(forward, source[0], source[1], mapped);
+        target[0] = (float) mapped[0];
+        target[1] = (float) mapped[1];
+    }
+
+    @Override
+    public void apply(RealLocalizable source, RealPositionable target) {
+        double[] mapped = new double[2];
+        lookup(forward, source.getDoublePosition(0), source.getDoublePosition(1), mapped);
+        target.setPosition(mapped);
+    }
+
+    @Override
+    public void applyInverse(double[] source, double[] target) {
+        lookup(inverse, target[0], target[1], source);
+    }
+
+    @Override
+    public void applyInverse(float[] source, float[] target) {
+        double[] mapped = new double[2];
+        lookup(inverse, target[0], target[1], mapped);
+        source[0] = (float) mapped[0];
+        source[1] = (float) mapped[1];
+    }
+
+    @Override
+    public void applyInverse(RealPositionable source, RealLocalizable target) {
+        double[] mapped = new double[2];
+        lookup(inverse, target.getDoublePosition(0), target.getDoublePosition(1), mapped);
+        source.setPosition(mapped);
+    }
+
+    @Override
+    public DisplacementField inverse() {
+        return new DisplacementField(minX, minY, spacing, nx, ny, inverse, forward, error);
+    }
+
+    @Override
+    public DisplacementField copy() {
+        // The field is immutable, so it can be shared between threads
+        return this;
+    }
+}
@@ -0,0 +1,284 @@
+package img;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Warps 2D (section) images through a transformation that is expensive to evaluate,
+ * such as the thin plate splines of the alignment.
+ *
+ * The transformation is only evaluated on a coarse grid of the output; the source positions
+ * in between are interpolated bilinearly. The grid is refined until the interpolation error
+ * (estimated at the centres of the grid cells) is within the error bound. If even the finest
+ * grid does not meet the bound, the transformation is evaluated at every pixel.
+ * The output is rendered tile by tile on a fork-join pool.
+ *
+ * @author Felix Meyenhofer
+ */
+@SuppressWarnings("WeakerAccess")
+public class TiledWarp {
+
+    /** Default edge length of the tiles [pixel] */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /** Default distance of the grid nodes at which the transformation is evaluated [pixel] */
+    public static final int DEFAULT_GRID_SPACING = 32;
+
+    /** Default bound of the interpolation error of the source positions [pixel] */
+    public static final double DEFAULT_MAX_ERROR = 0.1;
+
+    /** Finest grid; below that the transformation is evaluated at every pixel */
+    private static final int MIN_GRID_SPACING = 4;
+
+    private final RealTransform transformToSource;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private int gridSpacing = DEFAULT_GRID_SPACING;
+    private double maxError = DEFAULT_MAX_ERROR;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+
+    /**
+     * Constructor
+     *
+     * @param transformFromSource 2D transformation from the source to the output
+     *                            (same convention as {@link net.imglib2.realtransform.RealViews#transform})
+     */
+    public TiledWarp(InvertibleRealTransform transformFromSource) {
+        if (transformFromSource.numSourceDimensions() != 2 || transformFromSource.numTargetDimensions() != 2) {
+            throw new IllegalArgumentException("Only 2D transformations can be warped tile by tile.");
+        }
+
+        this.transformToSource = new InverseRealTransform(transformFromSource);
+    }
+
+    public void setTileSize(int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("The tile size has to be at least 1, not " + tileSize);
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @param gridSpacing distance of the grid nodes (below {@link #MIN_GRID_SPACING} the transformation is evaluated
+     *                    at every pixel)
+     */
+    public void setGridSpacing(int gridSpacing) {
+        this.gridSpacing = gridSpacing;
+    }
+
+    public void setMaxError(double maxError) {
+        this.maxError = maxError;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Render the warped source
+     *
+     * @param source interpolated (and extended) source image
+     * @param interval of the output
+     * @param <T> pixel type
+     * @return warped image on the given interval
+     */
+    public <T extends NativeType<T>> RandomAccessibleInterval<T> warp(final RealRandomAccessible<T> source,
+                                                                    Interval interval) {
+        if (interval.numDimensions() != 2) {
+            throw new IllegalArgumentException("Only 2D images can be warped tile by tile.");
+        }
+
+        Grid grid = null;
+        for (int spacing = gridSpacing; spacing >= MIN_GRID_SPACING; spacing /= 2) {
+            Grid candidate = new Grid(interval, spacing);
+            if (candidate.estimateError() <= maxError) {
+                grid = candidate;
+                break;
+            }
+        }
+        final Grid nodes = grid;
+
+        T type = source.realRandomAccess().get().createVariable();
+        Img<T> img = Util.getArrayOrCellImgFactory(interval, type).create(interval, type);
+        final RandomAccessibleInterval<T> target = Views.translate(img, Intervals.minAsLongArray(interval));
+
+        final List<RecursiveAction> tiles = new ArrayList<>();
+        for (long y = interval.min(1); y <= interval.max(1); y += tileSize) {
+            for (long x = interval.min(0); x <= interval.max(0); x += tileSize) {
+                final Interval tile = new FinalInterval(
+                        new long[]{x, y},
+                        new long[]{Math.min(x + tileSize - 1, interval.max(0)), Math.min(y + tileSize - 1, interval.max(1))});
+                tiles.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        render(source, target, tile, nodes);
+                    }
+                });
+            }
+        }
+
+        invoke(tiles);
+
+        return target;
+    }
+
+    /**
+     * Render one tile of the output
+     *
+     * @param grid of source positions (null to evaluate the transformation at every pixel)
+     */
+    private <T extends NativeType<T>> void render(RealRandomAccessible<T> source, RandomAccessibleInterval<T> target,
+                                                  Interval tile, Grid grid) {
+        RealTransform transform = transformToSource.copy();
+        RealRandomAccess<T> in = source.realRandomAccess();
+        RandomAccess<T> out = target.randomAccess();
+        double[] position = new double[2];
+        double[] mapped = new double[2];
+
+        for (long y = tile.min(1); y <= tile.max(1); y++) {
+            out.setPosition(tile.min(0), 0);
+            out.setPosition(y, 1);
+            position[1] = y;
+            for (long x = tile.min(0); x <= tile.max(0); x++) {
+                position[0] = x;
+                if (grid == null) {
+                    transform.apply(position, mapped);
+                } else {
+                    grid.interpolate(position, mapped);
+                }
+                in.setPosition(mapped);
+                out.get().set(in.get());
+                out.fwd(0);
+            }
+        }
+    }
+
+    /**
+     * Source positions of the output pixels on a regular grid
+     */
+    private class Grid {
+        private final long minX;
+        private final long minY;
+        private final int spacing;
+        private final int nx;
+        private final int ny;
+        private final double[][] nodes;
+
+        /**
+         * Evaluate the transformation at the grid nodes (the last nodes lie on or beyond the interval border)
+         */
+        Grid(Interval interval, int spacing) {
+            this.minX = interval.min(0);
+            this.minY = interval.min(1);
+            this.spacing = spacing;
+            this.nx = (int) Math.max(2, (interval.dimension(0) + 2L * spacing - 2) / spacing);
+            this.ny = (int) Math.max(2, (interval.dimension(1) + 2L * spacing - 2) / spacing);
+            this.nodes = new double[2][nx * ny];
+
+            List<RecursiveAction> rows = new ArrayList<>();
+            for (int j = 0; j < ny; j++) {
+                final int row = j;
+                rows.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        RealTransform transform = transformToSource.copy();
+                        double[] position = new double[]{0, minY + (long) row * spacing};
+                        double[] mapped = new double[2];
+                        for (int i = 0; i < nx; i++) {
+                            position[0] = minX + (long) i * spacing;
+                            transform.apply(position, mapped);
+                            nodes[0][row * nx + i] = mapped[0];
+                            nodes[1][row * nx + i] = mapped[1];
+                        }
+                    }
+                });
+            }
+            invoke(rows);
+        }
+
+        /**
+         * @return largest distance between the interpolated and the exact source position at the centres of the cells
+         */
+        double estimateError() {
+            final double[] errors = new double[ny - 1];
+            List<RecursiveAction> rows = new ArrayList<>();
+            for (int j = 0; j < ny - 1; j++) {
+                final int row = j;
+                rows.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        RealTransform transform = transformToSource.copy();
+                        double[] position = new double[]{0, minY + (row + 0.5) * spacing};
+                        double[] exact = new double[2];
+                        double[] approx = new double[2];
+                        for (int i = 0; i < nx - 1; i++) {
+                            position[0] = minX + (i + 0.5) * spacing;
+                            transform.apply(position, exact);
+                            interpolate(position, approx);
+                            double dx = exact[0] - approx[0];
+                            double dy = exact[1] - approx[1];
+                            errors[row] = Math.max(errors[row], Math.sqrt(dx * dx + dy * dy));
+                        }
+                    }
+                });
+            }
+            invoke(rows);
+
+            double max = 0;
+            for (double error : errors) {
+                max = Math.max(max, error);
+            }
+
+            return max;
+        }
+
+        /**
+         * Bilinear interpolation of the source position
+         */
+        void interpolate(double[] position, double[] mapped) {
+            double u = (position[0] - minX) / spacing;
+            double v = (position[1] - minY) / spacing;
+            int i = Math.max(0, Math.min((int) u, nx - 2));
+            int j = Math.max(0, Math.min((int) v, ny - 2));
+            double fx = u - i;
+            double fy = v - j;
+
+            int k = j * nx + i;
+            for (int d = 0; d < 2; d++) {
+                double[] n = nodes[d];
+                double top = n[k] + fx * (n[k + 1] - n[k]);
+                double bottom = n[k + nx] + fx * (n[k + nx + 1] - n[k + nx]);
+                mapped[d] = top + fy * (bottom - top);
+            }
+        }
+    }
+
+    /**
+     * Run the tasks on the pool and wait for all of them to complete
+     */
+    private void invoke(final List<RecursiveAction> tasks) {
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+}
@@ -107,9 +107,18 @@ public class AraIO {
             ui.showDialog("Could not find any " + MAPPING_FILE_FORMAT + " files in " + inputDir);
             return null;
         } else {
+            String[] imageFileSuffixes = getImageSuffixes();
             for (File file : mapFiles) {
+                // Only the header is read, to check that it is a mapping file
                 try {
-                    File imgFile = getImageFile(file);
+                    AraMapping.readHeader(file);
+                } catch (IOException e) {
+                    ui.showDialog(file.getName() + " is not a readable mapping file: " + e.getMessage());
+                    return null;
+                }
+
+                try {
+                    File imgFile = getImageFile(file, imageFileSuffixes);
                     paths.add(imgFile.getAbsolutePath());
                 } catch (FileNotFoundException e) {
                     ui.showDialog(file.getName() + " cannot be associated with any image file.\n" +
@@ -176,8 +185,10 @@ public class AraIO {
     }
 
     protected File getImageFile(File metaFile) throws FileNotFoundException {
-        String[] imageFileSuffixes = getImageSuffixes();
+        return getImageFile(metaFile, getImageSuffixes());
+    }
 
+    private File getImageFile(File metaFile, String[] imageFileSuffixes) throws FileNotFoundException {
         File workingDirectory = metaFile.getParentFile();
         String fileTrunk = removeFileExtension(metaFile.getName());
 
@@ -1,25 +1,59 @@
 package io;
 
 import rest.Atlas;
+import img.DisplacementField;
 import img.VolumeSection;
 
 import bdv.img.TpsTransformWrapper;
+import jitk.spline.ThinPlateR2LogRSplineKernelTransform;
+import net.imglib2.Interval;
 import net.imglib2.realtransform.AffineTransform3D;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.Serializable;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Class regrouping the objects needed for the mapping, for serialization.
  *
+ * The mapping files have a versioned binary format (big-endian): a header with the magic number "ARAM",
+ * the format version, the plane of section, the template resolution and the content flags, followed by
+ * the two affine transforms (12 values each), the volume section vectors (u, v, p), the control points and
+ * coefficients of the thin plate splines and the displacement fields (preceded by their error bound).
+ * Files of the legacy format (java serialization of this class) can still be read and converted.
+ *
  * @author Felix Meyenhofer
  */
 public class AraMapping implements Serializable {
+
+    /** Fixed, so that mappings saved before the displacement fields were added can still be read */
+    private static final long serialVersionUID = 1289569836475988044L;
+
+    /** Start of the binary mapping files ("ARAM") */
+    private static final int MAGIC = 0x4152414D;
+
+    /** Start of the mapping files of the legacy format (java serialization stream) */
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    /** Version of the binary format */
+    public static final int VERSION = 1;
+
+    /** Content flags of the binary format */
+    public static final int HAS_TPS = 1;
+    public static final int HAS_TPS_INVERSE = 2;
+    public static final int HAS_VOLUME_SECTION = 4;
+    public static final int HAS_DISPLACEMENT_FIELDS = 8;
+
     /** plane along which the section image is cut */
     private  Atlas.PlaneOfSection planeOfSection;
 
@@ -30,6 +64,13 @@ public class AraMapping implements Serializable {
     private TpsTransformWrapper t_tps;
     private TpsTransformWrapper t_tpsi;
 
+    /** Sampled thin plate splines (optional, null in mappings that do not have them) */
+    private DisplacementField f_tps;
+    private DisplacementField f_tpsi;
+
+    /** Bound of the lookup error the displacement fields were sampled with [pixel] */
+    private double maxFieldError;
+
     /** Mapping of the section image in the global coordinates */
     private double[] t_s;
 
@@ -56,25 +97,266 @@ public class AraMapping implements Serializable {
         setAffineTr(tr);
     }
 
+    /**
+     * Sample the thin plate splines into displacement fields (to be saved along with the mapping),
+     * so that the coordinates and images can be mapped without evaluating the splines.
+     *
+     * @param section interval of the section image
+     * @return true if the fields are within the default error bound (see {@link #computeDisplacementFields(Interval, double)})
+     */
+    public boolean computeDisplacementFields(Interval section) {
+        return computeDisplacementFields(section, DisplacementField.DEFAULT_MAX_ERROR);
+    }
+
+    /**
+     * Sample the thin plate splines into displacement fields. The sampling grid is refined until the lookup error
+     * is within the bound. If even the finest grid exceeds it, the mapping keeps no fields (and the splines
+     * are evaluated).
+     *
+     * @param section interval of the section image
+     * @param maxError bound of the lookup error [pixel]
+     * @return true if the mapping has displacement fields
+     */
+    public boolean computeDisplacementFields(Interval section, double maxError) {
+        f_tps = (t_tps == null) ? null : DisplacementField.sample(t_tps, section, maxError);
+        f_tpsi = (t_tpsi == null) ? null : DisplacementField.sample(t_tpsi, section, maxError);
+        if (!hasDisplacementFields()) {
+            f_tps = null;
+            f_tpsi = null;
+        }
+        maxFieldError = maxError;
+
+        return hasDisplacementFields();
+    }
+
+    /**
+     * Save the mapping in the binary format (see {@link #readHeader(File)})
+     *
+     * @param file mapping file
+     * @throws IOException
+     */
     public void save(File file) throws IOException {
-        FileOutputStream fos = new FileOutputStream(file);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(this);
-        oos.close();
-        fos.close();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            int flags = 0;
+            flags |= (t_tps == null) ? 0 : HAS_TPS;
+            flags |= (t_tpsi == null) ? 0 : HAS_TPS_INVERSE;
+            flags |= (volumeSection == null) ? 0 : HAS_VOLUME_SECTION;
+            flags |= (f_tps == null || f_tpsi == null) ? 0 : HAS_DISPLACEMENT_FIELDS;
+
+            // Header
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(planeOfSection.name());
+            out.writeUTF(templateResolution.name());
+            out.writeInt(flags);
+
+            // Body
+            writeDoubles(out, t_s);
+            writeDoubles(out, t_r);
+            if (volumeSection != null) {
+                writeDoubles(out, volumeSection.getU());
+                writeDoubles(out, volumeSection.getV());
+                writeDoubles(out, volumeSection.getP());
+            }
+            if (t_tps != null) {
+                writeTps(out, t_tps);
+            }
+            if (t_tpsi != null) {
+                writeTps(out, t_tpsi);
+            }
+            if ((flags & HAS_DISPLACEMENT_FIELDS) != 0) {
+                out.writeDouble(maxFieldError);
+                f_tps.write(out);
+                f_tpsi.write(out);
+            }
+        }
     }
 
+    /**
+     * Load a mapping, in the binary or in the legacy (java serialization) format
+     *
+     * @param file mapping file
+     * @return mapping
+     * @throws IOException
+     * @throws ClassNotFoundException if a legacy file cannot be deserialized
+     */
     public static AraMapping load(File file) throws IOException, ClassNotFoundException {
-        FileInputStream fis = new FileInputStream(file);
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        Object obj = ois.readObject();
-        if (obj instanceof AraMapping) {
-            return (AraMapping) obj;
-        } else {
-            throw new IOException("Wrong object " + obj.getClass().getName() + ".");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Header header = readHeader(in, file);
+            if (header.isLegacy()) {
+                return loadLegacy(file);
+            }
+
+            double[] ts = readDoubles(in, 12);
+            double[] tr = readDoubles(in, 12);
+            VolumeSection section = null;
+            if (header.has(HAS_VOLUME_SECTION)) {
+                section = new VolumeSection(readDoubles(in, 3), readDoubles(in, 3), readDoubles(in, 3));
+            }
+            TpsTransformWrapper tps = header.has(HAS_TPS) ? readTps(in) : null;
+            TpsTransformWrapper tpsi = header.has(HAS_TPS_INVERSE) ? readTps(in) : null;
+
+            AffineTransform3D affineTs = new AffineTransform3D();
+            affineTs.set(ts);
+            AffineTransform3D affineTr = new AffineTransform3D();
+            affineTr.set(tr);
+            AraMapping mapping = new AraMapping(header.getPlaneOfSection(), header.getTemplateResolution(),
+                    section, affineTs, affineTr, tps, tpsi);
+
+            if (header.has(HAS_DISPLACEMENT_FIELDS)) {
+                mapping.maxFieldError = in.readDouble();
+                mapping.f_tps = DisplacementField.read(in);
+                mapping.f_tpsi = DisplacementField.read(in);
+            }
+
+            return mapping;
+        } catch (EOFException | IllegalArgumentException e) {
+            throw new IOException("Corrupt mapping file " + file, e);
+        }
+    }
+
+    private static AraMapping loadLegacy(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Object obj = ois.readObject();
+            if (obj instanceof AraMapping) {
+                return (AraMapping) obj;
+            } else {
+                throw new IOException("Wrong object " + obj.getClass().getName() + ".");
+            }
+        }
+    }
+
+    /**
+     * Read only the header of a mapping file (without the transformations)
+     *
+     * @param file mapping file
+     * @return header (legacy files only tell that they are legacy files)
+     * @throws IOException if the file is not a mapping file
+     */
+    public static Header readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256))) {
+            return readHeader(in, file);
+        } catch (EOFException | IllegalArgumentException e) {
+            throw new IOException("Corrupt mapping file " + file, e);
+        }
+    }
+
+    private static Header readHeader(DataInputStream in, File file) throws IOException {
+        int magic = in.readInt();
+        if ((magic >>> 16) == LEGACY_MAGIC) {
+            return new Header(0, null, null, 0);
+        } else if (magic != MAGIC) {
+            throw new IOException(file + " is not a mapping file.");
+        }
+
+        int version = in.readInt();
+        if (version > VERSION) {
+            throw new IOException(file + " has the mapping format version " + version +
+                    ", which is newer than the supported version " + VERSION + ".");
+        }
+
+        Atlas.PlaneOfSection plane = Atlas.PlaneOfSection.valueOf(in.readUTF());
+        Atlas.VoxelResolution resolution = Atlas.VoxelResolution.valueOf(in.readUTF());
+        int flags = in.readInt();
+
+        return new Header(version, plane, resolution, flags);
+    }
+
+    /**
+     * Rewrite a mapping file in the legacy format in the binary format
+     *
+     * @param file mapping file
+     * @return true if the file was converted, false if it already had the binary format
+     * @throws IOException
+     * @throws ClassNotFoundException if the legacy file cannot be deserialized
+     */
+    public static boolean convert(File file) throws IOException, ClassNotFoundException {
+        if (!readHeader(file).isLegacy()) {
+            return false;
+        }
+
+        AraMapping mapping = loadLegacy(file);
+        File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        mapping.save(temporary);
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        return true;
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
         }
     }
 
+    private static double[] readDoubles(DataInputStream in, int n) throws IOException {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = in.readDouble();
+        }
+
+        return values;
+    }
+
+    /**
+     * Write the control points and the coefficients of a thin plate spline
+     */
+    private static void writeTps(DataOutputStream out, TpsTransformWrapper wrapper) throws IOException {
+        ThinPlateR2LogRSplineKernelTransform tps = wrapper.getTps();
+        int ndims = tps.getNumDims();
+        int n = tps.getNumLandmarks();
+        out.writeInt(ndims);
+        out.writeInt(n);
+
+        double[][] landmarks = tps.getSourceLandmarks();
+        for (int d = 0; d < ndims; d++) {
+            for (int i = 0; i < n; i++) {
+                out.writeDouble(landmarks[d][i]);
+            }
+        }
+
+        double[] weights = tps.getKnotWeights();
+        out.writeInt(weights.length);
+        writeDoubles(out, weights);
+
+        double[][] affine = tps.getAffine();
+        double[] translation = tps.getTranslation();
+        out.writeBoolean(affine != null && translation != null);
+        if (affine != null && translation != null) {
+            for (double[] row : affine) {
+                writeDoubles(out, row);
+            }
+            writeDoubles(out, translation);
+        }
+    }
+
+    private static TpsTransformWrapper readTps(DataInputStream in) throws IOException {
+        int ndims = in.readInt();
+        int n = in.readInt();
+
+        double[][] landmarks = new double[ndims][];
+        for (int d = 0; d < ndims; d++) {
+            landmarks[d] = readDoubles(in, n);
+        }
+
+        double[] weights = readDoubles(in, in.readInt());
+
+        double[][] affine = null;
+        double[] translation = null;
+        if (in.readBoolean()) {
+            affine = new double[ndims][];
+            for (int d = 0; d < ndims; d++) {
+                affine[d] = readDoubles(in, ndims);
+            }
+            translation = readDoubles(in, ndims);
+        }
+
+        ThinPlateR2LogRSplineKernelTransform tps = new ThinPlateR2LogRSplineKernelTransform(ndims, landmarks,
+                affine, translation, weights);
+
+        return new TpsTransformWrapper(ndims, tps);
+    }
+
     private void setAffineTr(AffineTransform3D tr) {
         this.t_r = new double[12];
         tr.toArray(this.t_r);
@@ -129,6 +411,25 @@ public class AraMapping implements Serializable {
         this.t_tpsi = t_tpsi;
     }
 
+    public DisplacementField getF_tps() {
+        return f_tps;
+    }
+
+    public DisplacementField getF_tpsi() {
+        return f_tpsi;
+    }
+
+    public boolean hasDisplacementFields() {
+        return f_tps != null && f_tpsi != null;
+    }
+
+    /**
+     * @return bound of the lookup error the displacement fields were sampled with [pixel]
+     */
+    public double getMaxFieldError() {
+        return maxFieldError;
+    }
+
     public VolumeSection getVolumeSection() {
         return volumeSection;
     }
@@ -136,4 +437,48 @@ public class AraMapping implements Serializable {
     private void setVolumeSection(VolumeSection volumeSection) {
         this.volumeSection = volumeSection;
     }
+
+    /**
+     * Header of a mapping file
+     */
+    public static class Header {
+        private final int version;
+        private final Atlas.PlaneOfSection planeOfSection;
+        private final Atlas.VoxelResolution templateResolution;
+        private final int flags;
+
+        Header(int version, Atlas.PlaneOfSection planeOfSection, Atlas.VoxelResolution templateResolution, int flags) {
+            this.version = version;
+            this.planeOfSection = planeOfSection;
+            this.templateResolution = templateResolution;
+            this.flags = flags;
+        }
+
+        /**
+         * @return version of the binary format (0 for legacy files)
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public boolean isLegacy() {
+            return version == 0;
+        }
+
+        public Atlas.PlaneOfSection getPlaneOfSection() {
+            return planeOfSection;
+        }
+
+        public Atlas.VoxelResolution getTemplateResolution() {
+            return templateResolution;
+        }
+
+        /**
+         * @param flag content flag (e.g. {@link #HAS_DISPLACEMENT_FIELDS})
+         * @return true if the mapping has the content
+         */
+        public boolean has(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
 }
@@ -169,6 +169,22 @@ class AllenAPI {
             return new URL(url.toString() + ARG_OPTIONS + "[num_rows$eq" + numRows + "]");
         }
 
+        /**
+         * Create the query for one page of the response (the rows are ordered by id,
+         * so that the pages do not overlap)
+         *
+         * @param url query without options
+         * @param startRow first row of the page
+         * @param numRows number of rows per page
+         * @return page query
+         */
+        static URL createPageQuery(URL url, int startRow, int numRows) throws MalformedURLException, UnsupportedEncodingException {
+            return new URL(url.toString() + ARG_OPTIONS +
+                    "[start_row$eq" + startRow + "]" +
+                    "[num_rows$eq" + numRows + "]" +
+                    "[order$eq" + URLEncoder.encode("'id'", "UTF-8") + "]");
+        }
+
         static String url2filename(URL url) throws UnsupportedEncodingException {
             String str = url.toString();
             String[] parts = str.split("\\?" + ARG_MODEL.substring(1, ARG_MODEL.length()))[1].split(ARG_CRITERIA);
@@ -294,11 +310,32 @@ class AllenAPI {
             /** Sub-URL for the expression grid data download */
             private static final String SUB_URL = "grid_data/download/";
 
-            private static final String INCLUDE = "?include=intensity";
+            private static final String INCLUDE = "?include=energy,density,intensity";
+
+            /** Version of the cached grids (v1 contained only the intensity, v2 all the measures of the INCLUDE) */
+            private static final String VERSION = "_v2";
 
             static URL createUrl(String dataset_id) throws MalformedURLException {
                 return new URL(BASE_URL + SUB_URL + dataset_id + INCLUDE);
             }
+
+            /**
+             * @return file name of the (current version of the) grid in the cache
+             */
+            static String createFileName(String dataset_id) {
+                return dataset_id + VERSION + FILE_EXTENSION;
+            }
+
+            /**
+             * @return file name of the grids that were cached before the versioning (intensity only)
+             */
+            static String createLegacyFileName(String dataset_id) {
+                return dataset_id + FILE_EXTENSION;
+            }
+
+            static String parseDatasetId(String fileName) {
+                return fileName.replace(FILE_EXTENSION, "").replace(VERSION, "");
+            }
         }
 
 
@@ -4,8 +4,8 @@ import log.FeedbackGate;
 import org.jdom2.Element;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Arrays;
@@ -50,12 +50,74 @@ import javax.xml.transform.TransformerException;
  *              |- ...
  *          |- ...
  *
+ * A cache can be opened read-only (e.g. an {@link AtlasBundle} on a shared file system).
+ * Nothing is created or removed in a read-only cache.
+ *
+ * The cache can have two tiers (see {@link CacheTier}): a fast local one with a size limit
+ * (least recently used entries are evicted) and a shared one (e.g. on NFS). Entries missing
+ * in the local tier are copied from the shared tier before they are downloaded, and downloads
+ * are published to the shared tier for the other nodes. The default cache is configured with
+ * the system properties {@link #PROPERTY_ROOT}, {@link #PROPERTY_CAPACITY}, {@link #PROPERTY_SHARED}
+ * and {@link #PROPERTY_PUBLISH}.
+ *
  * @author Felix Meyenhofer
  */
 class AllenCache extends FeedbackGate {
 
     /** Root directory of the cache */
-    private File root;
+    private final File root;
+
+    /** Flag to indicate that nothing may be written to the cache */
+    private final boolean readOnly;
+
+    /** System property with the root directory of the (local) cache */
+    static final String PROPERTY_ROOT = "aba.cache.root";
+
+    /** System property with the size limit of the local cache (e.g. 500m, 20g) */
+    static final String PROPERTY_CAPACITY = "aba.cache.capacity";
+
+    /** System property with the root directory of the shared cache */
+    static final String PROPERTY_SHARED = "aba.cache.shared";
+
+    /** System property to switch off the publishing of downloads to the shared cache (true/false) */
+    static final String PROPERTY_PUBLISH = "aba.cache.shared.publish";
+
+    /** System property with the age [s] after which cached RMA responses are revalidated with the server */
+    static final String PROPERTY_MAX_AGE = "aba.cache.rma.maxage";
+
+    /** Age [ms] after which cached RMA responses are revalidated (-1 to use them forever) */
+    private volatile long responseMaxAge = (System.getProperty(PROPERTY_MAX_AGE) == null) ? -1 :
+            Long.parseLong(System.getProperty(PROPERTY_MAX_AGE)) * 1000;
+
+    /** Sub-directory of the rma directory for the pages of paginated responses */
+    static final String PAGE_DIRECTORY = "pages";
+
+    /** Longer page file names are shortened with a hash */
+    private static final int MAX_FILE_NAME_LENGTH = 200;
+
+    /** Number of rows per page of the paginated responses */
+    private volatile int pageSize = RmaPager.DEFAULT_PAGE_SIZE;
+
+    /** Local tier (the cache root) */
+    private final CacheTier local;
+
+    /** Shared tier (null if there is none) */
+    private final CacheTier shared;
+
+    /** Flag to indicate that downloads are copied to the shared tier */
+    private final boolean publish;
+
+    /** Size limit of the local tier (only applied to a writable cache) */
+    private long capacity;
+
+    /** Index of the cached RMA responses */
+    private RmaIndex rmaIndex;
+
+    /** Default number of parsed documents that are kept in memory */
+    static final int DEFAULT_MEMORY_CAPACITY = 64;
+
+    /** Parsed xml documents, keyed by their cache path */
+    private final MemoryCache<String, AllenXml> documents = new MemoryCache<>(DEFAULT_MEMORY_CAPACITY);
 
     /**
      * Organization of the different data types encountered with the
@@ -88,10 +150,99 @@ class AllenCache extends FeedbackGate {
 
     /**
      * Constructor
+     * The tiers are configured with the system properties (by default there is one
+     * unlimited tier in ~/allen-cache).
      */
     AllenCache() {
         //TODO put this in the fiji user settings. Use a setting dialog if not defined
-        this.root = getDirectory(new File(System.getProperty("user.home"), "allen-cache"));
+        this(new File(System.getProperty(PROPERTY_ROOT, new File(System.getProperty("user.home"), "allen-cache").getPath())),
+                parseSize(System.getProperty(PROPERTY_CAPACITY)),
+                (System.getProperty(PROPERTY_SHARED) == null) ? null : new File(System.getProperty(PROPERTY_SHARED)),
+                !"false".equalsIgnoreCase(System.getProperty(PROPERTY_PUBLISH)));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param root directory of the cache
+     * @param readOnly true to use the existing content without ever writing to the directory
+     */
+    AllenCache(File root, boolean readOnly) {
+        this(root, readOnly, CacheTier.UNLIMITED, null, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param root directory of the local tier
+     * @param capacity size limit of the local tier in bytes ({@link CacheTier#UNLIMITED} for none)
+     * @param sharedRoot directory of the shared tier (null for none)
+     * @param publish true to copy the downloads to the shared tier
+     */
+    AllenCache(File root, long capacity, File sharedRoot, boolean publish) {
+        this(root, false, capacity, sharedRoot, publish);
+    }
+
+    private AllenCache(File root, boolean readOnly, long capacity, File sharedRoot, boolean publish) {
+        this.readOnly = readOnly;
+
+        if (readOnly && !root.isDirectory()) {
+            throw new IllegalArgumentException("The cache directory '" + root.getAbsolutePath() + "' does not exist.");
+        }
+        this.root = getDirectory(root);
+
+        this.capacity = capacity;
+        this.local = new CacheTier("local", this.root, readOnly ? CacheTier.UNLIMITED : capacity);
+        this.shared = (sharedRoot == null) ? null : new CacheTier("shared", sharedRoot, CacheTier.UNLIMITED);
+        this.publish = publish && !readOnly;
+    }
+
+    /**
+     * Parse a size with an optional unit suffix (k, m, g, t), e.g. 20g
+     *
+     * @param size string (null for unlimited)
+     * @return number of bytes
+     */
+    static long parseSize(String size) {
+        if (size == null || size.trim().isEmpty()) {
+            return CacheTier.UNLIMITED;
+        }
+
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        int end = value.length() - 1;
+        switch (value.charAt(end)) {
+            case 't': unit <<= 10;
+            case 'g': unit <<= 10;
+            case 'm': unit <<= 10;
+            case 'k': unit <<= 10;
+                value = value.substring(0, end);
+        }
+
+        return (long) (Double.parseDouble(value) * unit);
+    }
+
+    File getRoot() {
+        return this.root;
+    }
+
+    boolean isReadOnly() {
+        return this.readOnly;
+    }
+
+    /**
+     * Take over the settings of another cache, when the client switches from one
+     * cache to the other (see {@link AllenClient#mountAtlasBundle(AtlasBundle, boolean)}).
+     *
+     * @param other cache that is replaced
+     */
+    void copySettings(AllenCache other) {
+        setLogService(other.getLogService());
+        setStatusService(other.getStatusService());
+        documents.setCapacity(other.documents.getCapacity());
+        setCapacity(other.capacity);
+        responseMaxAge = other.responseMaxAge;
+        pageSize = other.pageSize;
     }
 
     /**
@@ -124,14 +275,16 @@ class AllenCache extends FeedbackGate {
     }
 
     /**
-     * get a directory in the cache and makes sure that it exists.
+     * get a directory in the cache and makes sure that it exists
+     * (unless the cache is read-only).
      *
      * @param dir_name directory name
      * @return a valid directory in the cache
      */
     private File getDirectory(File dir_name) {
-        if (!dir_name.exists()) {
-            boolean status = dir_name.mkdirs();
+        if (!readOnly && !dir_name.exists()) {
+            // Concurrent downloads might create the same directory at the same time
+            boolean status = dir_name.mkdirs() || dir_name.isDirectory();
             if (!status) {
                 throw new RuntimeException("Could not create the directory '" +
                         dir_name.getAbsolutePath() + "'.");
@@ -163,6 +316,121 @@ class AllenCache extends FeedbackGate {
         return new File(directory, filename);
     }
 
+    /**
+     * Check if a file is in the cache and intact. Corrupt entries (e.g. truncated
+     * by an interrupted download) are removed, so that they are fetched again.
+     * Entries that are missing in the local tier are copied from the shared tier.
+     *
+     * @param file cache entry
+     * @return true if the file can be used
+     */
+    boolean isCached(File file) {
+        if (file.exists()) {
+            if (CacheIntegrity.verify(file)) {
+                local.hit(file);
+                return true;
+            }
+
+            if (readOnly) {
+                consoleAndStatusUpdate("Corrupt entry " + file.getName() + " in the read-only cache.");
+                local.miss();
+                return false;
+            }
+
+            consoleAndStatusUpdate("Corrupt cache entry " + file.getName() + ", fetching it again.");
+            CacheIntegrity.invalidate(file);
+        }
+
+        local.miss();
+        return promote(file);
+    }
+
+    /**
+     * Copy an entry from the shared tier into the local tier
+     *
+     * @param file local cache entry
+     * @return true if the entry was in the shared tier
+     */
+    private boolean promote(File file) {
+        if (shared == null) {
+            return false;
+        }
+
+        File source = shared.locate(file, local);
+        if (!source.exists() || !CacheIntegrity.verify(source)) {
+            shared.miss();
+            return false;
+        }
+
+        shared.hit(source);
+        try {
+            local.copy(source, shared);
+            return true;
+        } catch (IOException e) {
+            consoleAndStatusUpdate("Could not copy " + source + " from the shared cache: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Account for a new entry in the local tier and publish it to the shared tier
+     *
+     * @param file new cache entry (downloaded or written)
+     * @return the same file
+     */
+    private <F extends AllenFile> F stored(F file) {
+        File path = file.getFile();
+        local.add(path);
+
+        if (publish && shared != null && !shared.locate(path, local).exists()) {
+            try {
+                shared.copy(path, local);
+            } catch (IOException e) {
+                consoleAndStatusUpdate("Could not publish " + path.getName() + " to the shared cache: " + e.getMessage());
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Protect an entry of the local tier (and the files that belong to it) from eviction
+     *
+     * @param file cache entry
+     */
+    void pin(File file) {
+        local.pin(file);
+    }
+
+    /**
+     * Allow the eviction of an entry pinned with {@link #pin(File)} again
+     *
+     * @param file cache entry
+     */
+    void unpin(File file) {
+        local.unpin(file);
+    }
+
+    /**
+     * Set the size limit of the local tier. A read-only cache only keeps the value
+     * (see {@link #copySettings(AllenCache)}), nothing is ever evicted from it.
+     *
+     * @param capacity in bytes ({@link CacheTier#UNLIMITED} for none)
+     */
+    void setCapacity(long capacity) {
+        this.capacity = capacity;
+        if (!readOnly) {
+            local.setCapacity(capacity);
+        }
+    }
+
+    /**
+     * @return usage, hits, misses and evictions of the tiers
+     */
+    String getTierStatistics() {
+        return (shared == null) ? local.toString() : local + "\n" + shared;
+    }
+
     /**
      * Get the response for a query url either from the cache or from the www.
      *
@@ -174,31 +442,276 @@ class AllenCache extends FeedbackGate {
      */
     AllenXml getResponseXml(URL url)
             throws IOException, TransformerException, URISyntaxException {
-        // Try to find the response file in the cache
-        String filename = AllenAPI.RMA.url2filename(url);
-        final String pattern = filename.replaceAll(AllenAPI.RMA.FILE_EXTENSION, "");
-        File path = getPath(DataType.rma, filename);
-        File[] responses = path.getParentFile().listFiles(new FilenameFilter() {
+        // Look up the response file in the index
+        String key = AllenAPI.RMA.url2filename(url);
+        File path = getRmaIndex().get(key);
+        if (path != null) {
+            path = revalidate(key, path);
+        }
+        AllenXml xml = (path == null) ? null : getCachedXml(path);
+        if (xml != null) {
+            return xml;
+        }
+
+        // Otherwise create the query and download the xml
+        URL query = AllenAPI.RMA.adjustResponseSize(url);
+        path = getPath(DataType.rma, AllenAPI.RMA.url2filename(query));
+
+        xml = getCachedXml(path);
+        if (xml == null) {
+            xml = remember(stored(new AllenXml(query, path)));
+        }
+        getRmaIndex().put(key, path);
+
+        return xml;
+    }
+
+    /**
+     * Stream the items of an RMA response, without building the document tree.
+     * The response is fetched page by page (see {@link #getResponsePages}) and each
+     * page is parsed with the {@link RmaStreamReader} as soon as it arrives.
+     *
+     * @param url RMA query
+     * @param handler consumer of the items
+     * @return number of items
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws TransformerException
+     */
+    int getResponseRecords(URL url, final RmaStreamReader.RecordHandler handler)
+            throws IOException, URISyntaxException, TransformerException {
+        final int[] count = {0};
+        getResponsePages(url, new RmaPager.PageHandler() {
             @Override
-            public boolean accept(File dir, String name) {
-                return name.contains(pattern);
+            public void page(int startRow, int totalRows, File file) throws IOException {
+                count[0] += RmaStreamReader.read(file, handler);
             }
         });
 
-        // In case there is no unique match, create the query and download the xml
-        if ((responses != null) && (responses.length == 1)) {
-            path = responses[0];
-        } else {
-            url = AllenAPI.RMA.adjustResponseSize(url);
-            filename = AllenAPI.RMA.url2filename(url);
-            path = getPath(DataType.rma, filename);
+        return count[0];
+    }
+
+    /**
+     * Fetch an RMA response page by page, with {@link #pageSize} rows per page.
+     * A response that is cached in one piece (by {@link #getResponseXml(URL)} or earlier
+     * versions) is handed over as a single page.
+     *
+     * @param url RMA query (without options)
+     * @param handler consumer of the pages
+     * @return total number of rows
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws TransformerException
+     */
+    int getResponsePages(URL url, RmaPager.PageHandler handler)
+            throws IOException, URISyntaxException, TransformerException {
+        String key = AllenAPI.RMA.url2filename(url);
+        File path = getRmaIndex().get(key);
+        if (path != null) {
+            path = revalidate(key, path);
+            if (isCached(path)) {
+                int total = RmaStreamReader.readTotalRows(path);
+                handler.page(0, total, path);
+                return total;
+            }
         }
 
-        if (path.exists()) {
-            return new AllenXml(path);
-        } else {
-            return new AllenXml(url, path);
+        return new RmaPager(this, pageSize, RmaPager.DEFAULT_CONCURRENT_PAGES).fetch(url, handler);
+    }
+
+    /**
+     * Get one page of an RMA response from the cache or from the server.
+     * The pages are stored in a sub-directory ({@link #PAGE_DIRECTORY}) of the rma directory.
+     * The first page is revalidated like the responses in one piece ({@link #responseMaxAge});
+     * if its total number of rows changed, the other cached pages are discarded.
+     *
+     * @param query RMA query (without options)
+     * @param startRow first row of the page
+     * @param numRows rows per page
+     * @return cached page
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws TransformerException
+     */
+    File getResponsePage(URL query, int startRow, int numRows)
+            throws IOException, URISyntaxException, TransformerException {
+        File path = getPagePath(query, startRow, numRows);
+        if (startRow == 0 && isExpired(path) && isCached(path)) {
+            revalidateFirstPage(query, numRows, path);
         }
+
+        if (!isCached(path)) {
+            stored(new AllenRawFile(AllenAPI.RMA.createPageQuery(query, startRow, numRows), path));
+        }
+
+        return path;
+    }
+
+    private File getPagePath(URL query, int startRow, int numRows) throws UnsupportedEncodingException {
+        String extension = AllenAPI.RMA.FILE_EXTENSION;
+        String name = AllenAPI.RMA.url2filename(query).replace(extension, "") + "__page-" + startRow + "-" + numRows;
+        if (name.length() > MAX_FILE_NAME_LENGTH) {
+            name = name.substring(0, MAX_FILE_NAME_LENGTH - 9) + "-" + Integer.toHexString(name.hashCode());
+        }
+
+        return getPath(DataType.rma, PAGE_DIRECTORY, name + extension);
+    }
+
+    /**
+     * Revalidate the first page of a paginated RMA response. If the total number of rows
+     * changed, the other pages no longer line up with it: they are removed from the local
+     * tier (and from the shared tier, if this node publishes to it) and fetched again.
+     * If the server cannot be reached, the cached pages are used as they are.
+     *
+     * @param query RMA query (without options)
+     * @param numRows rows per page
+     * @param path of the cached first page
+     */
+    private void revalidateFirstPage(URL query, int numRows, File path) throws IOException {
+        int total = RmaStreamReader.readTotalRows(path);
+        String[] validators = CacheIntegrity.getValidators(path);
+        AllenRawFile response;
+        try {
+            response = new AllenRawFile(AllenAPI.RMA.createPageQuery(query, 0, numRows), path,
+                    validators[0], validators[1]);
+        } catch (IOException | TransformerException | URISyntaxException e) {
+            consoleAndStatusUpdate("Could not revalidate " + path.getName() + " (using the cached pages): " + e.getMessage());
+            return;
+        }
+
+        if (response.isNotModified()) {
+            return;
+        }
+
+        if (RmaStreamReader.readTotalRows(path) != total) {
+            consoleAndStatusUpdate("The number of rows of " + query + " changed, discarding the cached pages.");
+            for (int start = 0; start < total; start += numRows) {
+                File page = getPagePath(query, start, numRows);
+                if (start > 0) {
+                    CacheIntegrity.invalidate(page);
+                }
+                if (publish && shared != null) {
+                    CacheIntegrity.invalidate(shared.locate(page, local));
+                }
+            }
+        }
+
+        stored(response);
+    }
+
+    /**
+     * @param path of a cached RMA response
+     * @return true if the response is older than the {@link #responseMaxAge} and can be revalidated
+     */
+    private boolean isExpired(File path) {
+        return responseMaxAge >= 0 && !readOnly && !ConnectionLimiter.isOffline() && path.exists() &&
+                System.currentTimeMillis() - CacheIntegrity.getValidationTime(path) >= responseMaxAge;
+    }
+
+    /**
+     * @param rows number of rows per page of the paginated RMA responses
+     */
+    void setPageSize(int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("The page size has to be at least 1, not " + rows);
+        }
+        this.pageSize = rows;
+    }
+
+    /**
+     * Set the age after which cached RMA responses are revalidated with a conditional
+     * request (the response is only downloaded again if it changed).
+     *
+     * @param millis maximum age [ms], -1 to use the cached responses forever
+     */
+    void setResponseMaxAge(long millis) {
+        this.responseMaxAge = millis;
+    }
+
+    /**
+     * Revalidate a cached RMA response, if it is older than the {@link #responseMaxAge}.
+     * The query is built again from the {@param key}, with the current number of rows.
+     * If that number changed, the response is downloaded anew to the path of the new
+     * query and the index is updated. If the server cannot be reached, the cached
+     * response is used as it is.
+     *
+     * @param key of the response in the index ({@link AllenAPI.RMA#url2filename(URL)} of the query)
+     * @param path of the cached response
+     * @return path of the up to date response
+     */
+    private File revalidate(String key, File path) throws IOException {
+        if (!isExpired(path)) {
+            return path;
+        }
+
+        try {
+            URL query = AllenAPI.RMA.adjustResponseSize(AllenAPI.RMA.filename2url(key));
+            File current = getPath(DataType.rma, AllenAPI.RMA.url2filename(query));
+            String[] validators = current.equals(path) ? CacheIntegrity.getValidators(path) : new String[2];
+            AllenRawFile response = new AllenRawFile(query, current, validators[0], validators[1]);
+            if (!response.isNotModified()) {
+                documents.remove(current.getAbsolutePath());
+                stored(response);
+            }
+            if (!current.equals(path)) {
+                getRmaIndex().put(key, current);
+            }
+
+            return current;
+        } catch (IOException | TransformerException | URISyntaxException e) {
+            consoleAndStatusUpdate("Could not revalidate " + path.getName() + " (using the cached copy): " + e.getMessage());
+            return path;
+        }
+    }
+
+    /**
+     * Get a parsed xml document from memory or, if it is not in memory, from the disk.
+     *
+     * @param file cache path of the document
+     * @return {@link AllenXml} or null if the document is not in the cache
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    private AllenXml getCachedXml(File file) throws IOException, URISyntaxException {
+        AllenXml xml = documents.get(file.getAbsolutePath());
+
+        if ((xml == null) && isCached(file)) {
+            xml = remember(new AllenXml(file));
+        }
+
+        return xml;
+    }
+
+    /**
+     * Keep a parsed xml document in memory
+     *
+     * @param xml document (with a cache path)
+     * @return the same document
+     */
+    private AllenXml remember(AllenXml xml) {
+        documents.put(xml.getFile().getAbsolutePath(), xml);
+        return xml;
+    }
+
+    /**
+     * @return in-memory cache of the parsed documents
+     */
+    MemoryCache<String, AllenXml> getDocumentCache() {
+        return documents;
+    }
+
+    /**
+     * Get the index of the RMA responses (it is loaded with the first query)
+     *
+     * @return {@link RmaIndex}
+     * @throws IOException if the index cannot be read
+     */
+    private synchronized RmaIndex getRmaIndex() throws IOException {
+        if (rmaIndex == null) {
+            rmaIndex = new RmaIndex(getDirectory(getDirectory(DataType.rma)));
+        }
+
+        return rmaIndex;
     }
 
     /**
@@ -214,15 +727,29 @@ class AllenCache extends FeedbackGate {
     AllenXml getStructureGraphXml(String... path_parts)
             throws IOException, URISyntaxException, TransformerException {
         File file = getPath(DataType.xml, path_parts);
+        AllenXml xml = getCachedXml(file);
 
-        if (file.exists()) {
-            return new AllenXml(file);
+        if (xml != null) {
+            return xml;
         } else {
             URL query = AllenAPI.Download.StructureGraph.createStructureGraphUrl(path_parts[1]);
-            return new AllenXml(query, file);
+            return remember(stored(new AllenXml(query, file)));
         }
     }
 
+    /**
+     * Get the path of the binary snapshot of a structure graph.
+     * The snapshot is stored next to the structure graph xml.
+     *
+     * @param path_parts same as for {@link #getStructureGraphXml(String...)}
+     * @return {@link StructureGraphSnapshot} file
+     */
+    File getStructureGraphSnapshotPath(String... path_parts) {
+        String[] parts = path_parts.clone();
+        parts[parts.length - 1] += StructureGraphSnapshot.FILE_EXTENSION;
+        return getPath(DataType.xml, parts);
+    }
+
     /**
      * Get the meta data for a given image file.
      * The parts usually go something like [product abbreviation]/[dataset id]/[image id].
@@ -235,9 +762,10 @@ class AllenCache extends FeedbackGate {
     AllenXml getImageMetadataXml(String... path_parts)
             throws IOException, URISyntaxException, TransformerException {
         File file = getPath(DataType.xml, path_parts);
+        AllenXml xml = getCachedXml(file);
 
-        if (file.exists()) {
-            return new AllenXml(file);
+        if (xml != null) {
+            return xml;
         } else {
             int level = path_parts.length;
             URL query;
@@ -250,10 +778,20 @@ class AllenCache extends FeedbackGate {
             }
 
             query = AllenAPI.RMA.adjustResponseSize(query);
-            return new AllenXml(query, file);
+            return remember(stored(new AllenXml(query, file)));
         }
     }
 
+    /**
+     * Get the cache path of a metadata file.
+     *
+     * @param path_parts name(s) of folders plus the file name
+     * @return {@link File} where the metadata is (or will be) cached
+     */
+    File getMetadataPath(String... path_parts) {
+        return getPath(DataType.xml, path_parts);
+    }
+
     /**
      * Save an xml element to a metadata file
      *
@@ -265,10 +803,10 @@ class AllenCache extends FeedbackGate {
     AllenXml getImageMetadataXml(Element element, String... path_parts)
             throws TransformerException, IOException, URISyntaxException {
         File path = getPath(DataType.xml, path_parts);
-        if (path.exists()) {
+        if (isCached(path)) {
             return new AllenXml(path);
         } else {
-            return new AllenXml(element, path);
+            return stored(new AllenXml(element, path));
         }
     }
 
@@ -303,7 +841,28 @@ class AllenCache extends FeedbackGate {
      */
     AllenImage getImage(int downsample, int quality, String... path_parts)
             throws IOException, URISyntaxException, TransformerException {
+        File path = getImagePath(downsample, quality, path_parts);
+
+        if (isCached(path)) {
+            return new AllenImage(path);
+        } else {
+            int end = path_parts.length - 1;
+            String image_id = path_parts[end].replace(AllenAPI.Download.Image.FILE_EXTENSION, "");
+            URL query = AllenAPI.Download.Image.createImageUrl(image_id, downsample, quality);
+            return stored(new AllenImage(query, path, getLogService(), getStatusService()));
+        }
+    }
 
+    /**
+     * Get the cache path of an image with a given down-sampling and quality.
+     *
+     * @param downsample downsampling of the image [0...]
+     * @param quality jpeg quality [0...100]
+     * @param path_parts parts of the image file path. The last part is the file name.
+     *                   Downsample and quality are inserted before.
+     * @return {@link File} where the image is (or will be) cached
+     */
+    File getImagePath(int downsample, int quality, String... path_parts) {
         int n = path_parts.length;
         String[] new_parts = new String[n + 2];
         System.arraycopy(path_parts, 0, new_parts, 0, n - 1);
@@ -311,16 +870,7 @@ class AllenCache extends FeedbackGate {
         new_parts[n] = "quality-" + Integer.toString(quality);
         new_parts[n + 1] = path_parts[n - 1];
 
-        File path = getPath(DataType.img, new_parts);
-
-        if (path.exists()) {
-            return new AllenImage(path);
-        } else {
-            int end = path_parts.length - 1;
-            String image_id = path_parts[end].replace(AllenAPI.Download.Image.FILE_EXTENSION, "");
-            URL query = AllenAPI.Download.Image.createImageUrl(image_id, downsample, quality);
-            return new AllenImage(query, path, getLogService(), getStatusService());
-        }
+        return getPath(DataType.img, new_parts);
     }
 
     /**
@@ -337,13 +887,13 @@ class AllenCache extends FeedbackGate {
             throws IOException, TransformerException, URISyntaxException {
         File file = getPath(DataType.svg, path_parts);
 
-        if (file.exists()) {
+        if (isCached(file)) {
             return new AllenSvg(file);
         } else {
             int end = path_parts.length - 1;
             String section_id = path_parts[end].replace(AllenAPI.Download.SVG.FILE_EXTENSION, "");
             URL url = AllenAPI.Download.SVG.createSvgUrl(section_id);
-            return new AllenSvg(url, file);
+            return stored(new AllenSvg(url, file));
         }
     }
 
@@ -356,18 +906,19 @@ class AllenCache extends FeedbackGate {
         String fileName = AllenAPI.Download.RefVol.createFileName(type, voxelResolution);
         File path = getPath(DataType.vol, fileName);
 
-        if (path.exists()) {
+        if (isCached(path)) {
             return new AllenImage(path);
         } else {
             URL query = AllenAPI.Download.RefVol.createUrl(type, voxelResolution);
-            return new AllenImage(query, path, getLogService(), getStatusService());
+            return stored(new AllenImage(query, path, getLogService(), getStatusService()));
         }
     }
 
     /**
      * Get expression grid data.
      * (they are stored in the expression grid data folders,
-     * file names are [ID].zip)
+     * file names are [ID]_v2.zip, see {@link AllenAPI.Download.GRID#createFileName(String)}).
+     * A grid of the previous version (intensity only) is removed when the current one is downloaded.
      *
      * @param grid_id ID of the expression grid
      * @return expression grid as {@link AllenImage}
@@ -379,13 +930,20 @@ class AllenCache extends FeedbackGate {
             throws IOException, URISyntaxException, TransformerException {
         File file = getPath(DataType.grd, grid_id);
 
-        if (file.exists()) {
+        if (isCached(file)) {
             return new AllenImage(file);
         } else {
             int end = grid_id.length - 1;
-            String dataset_id = grid_id[end].replace(AllenAPI.Download.GRID.FILE_EXTENSION, "");
+            String dataset_id = AllenAPI.Download.GRID.parseDatasetId(grid_id[end]);
             URL url = AllenAPI.Download.GRID.createUrl(dataset_id);
-            return new AllenImage(url, file);
+            AllenImage grid = stored(new AllenImage(url, file));
+
+            File legacy = new File(file.getParentFile(), AllenAPI.Download.GRID.createLegacyFileName(dataset_id));
+            if (!legacy.equals(file) && legacy.exists()) {
+                CacheIntegrity.invalidate(legacy);
+            }
+
+            return grid;
         }
     }
 
@@ -405,11 +963,11 @@ class AllenCache extends FeedbackGate {
         String filename = AllenAPI.Download.RefVol.createFileName(modality, resolution);
         File path = getPath(DataType.vol, filename);
 
-        if (path.exists()) {
+        if (isCached(path)) {
             return new AllenImage(path);
         } else {
             URL query = AllenAPI.Download.RefVol.createUrl(modality, resolution);
-            return new AllenImage(query, path, getLogService(), getStatusService());
+            return stored(new AllenImage(query, path, getLogService(), getStatusService()));
         }
     }
 }
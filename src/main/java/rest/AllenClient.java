@@ -20,6 +20,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
@@ -44,8 +45,20 @@ public class AllenClient extends FeedbackGate {
     /** Singleton instance of the class */
     private static AllenClient singleton = new AllenClient();
 
-    /** Local cache for atlas data */
-    private AllenCache cache = new AllenCache();
+    /** Local cache for atlas data (replaced when an atlas bundle is mounted) */
+    private volatile AllenCache cache;
+
+    /** Number of concurrent workers to download section datasets */
+    private int downloadWorkers = SectionDatasetDownloader.DEFAULT_WORKERS;
+
+    /** Shared reference volumes */
+    private final ReferenceVolumeRegistry volumes = new ReferenceVolumeRegistry();
+
+    /** Default number of expression grids kept in memory (about 2 MB each) */
+    static final int DEFAULT_GRID_CAPACITY = 64;
+
+    /** Unpacked expression grids, keyed by the section data set id */
+    private final MemoryCache<String, ExpressionGrid> grids = new MemoryCache<>(DEFAULT_GRID_CAPACITY);
 
     /** Flag to indicate if a display is created or not */
     private boolean doDisplay = false;
@@ -54,8 +67,29 @@ public class AllenClient extends FeedbackGate {
 
     /**
      * Constructor
+     * Mounts the atlas bundle given by the system property {@link AtlasBundle#PROPERTY}, if there is one.
+     */
+    private AllenClient() {
+        String bundle = System.getProperty(AtlasBundle.PROPERTY);
+        if (bundle == null) {
+            this.cache = new AllenCache();
+        } else {
+            try {
+                mountAtlasBundle(new AtlasBundle(new File(bundle)), Boolean.getBoolean(AtlasBundle.PROPERTY_VERIFY));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not mount the atlas bundle " + bundle, e);
+            }
+        }
+    }
+
+    /**
+     * Constructor for a client with its own cache (e.g. to build an {@link AtlasBundle})
+     *
+     * @param cache local cache
      */
-    private AllenClient() {}
+    AllenClient(AllenCache cache) {
+        this.cache = cache;
+    }
 
     public static AllenClient getInstance() {
         return singleton;
@@ -73,6 +107,166 @@ public class AllenClient extends FeedbackGate {
         this.cache.setStatusService(statusService);
     }
 
+    /**
+     * Set the number of images that are downloaded concurrently
+     *
+     * @param workers number of download workers
+     */
+    public void setDownloadWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of download workers has to be at least 1, not " + workers);
+        }
+        this.downloadWorkers = workers;
+    }
+
+    public int getDownloadWorkers() {
+        return this.downloadWorkers;
+    }
+
+    /**
+     * Limit the number of simultaneous connections to one host
+     *
+     * @param connections maximum number of connections
+     */
+    public void setMaxConnectionsPerHost(int connections) {
+        ConnectionLimiter.setMaxConnectionsPerHost(connections);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return ConnectionLimiter.getMaxConnectionsPerHost();
+    }
+
+    /**
+     * Set the timeouts of the http requests
+     *
+     * @param connect timeout to establish a connection [ms]
+     * @param read timeout waiting for data [ms]
+     */
+    public void setHttpTimeouts(int connect, int read) {
+        HttpTransport.setTimeouts(connect, read);
+    }
+
+    /**
+     * Set the retries of failed http requests (exponential backoff with jitter)
+     *
+     * @param attempts maximum number of attempts per request
+     * @param backoff delay before the first retry [ms]
+     */
+    public void setHttpRetries(int attempts, long backoff) {
+        HttpTransport.setRetries(attempts, backoff);
+    }
+
+    /**
+     * Split large downloads (reference volumes, grids) into byte ranges that are
+     * fetched in parallel, as far as the connection limit per host allows.
+     *
+     * @param ranges maximal number of ranges per file (1 to download every file in one piece)
+     */
+    public void setParallelDownloadRanges(int ranges) {
+        ResumableDownload.setMaxSegments(ranges);
+    }
+
+    /**
+     * Revalidate the cached RMA responses that are older than {@param seconds}
+     * (conditional requests, the responses are only downloaded if they changed)
+     *
+     * @param seconds maximum age, -1 to use the cached responses forever
+     */
+    public void setResponseMaxAge(long seconds) {
+        cache.setResponseMaxAge((seconds < 0) ? -1 : seconds * 1000);
+    }
+
+    /**
+     * Set the number of rows per page of the paginated RMA requests (e.g. the image listings)
+     *
+     * @param rows per page
+     */
+    public void setResponsePageSize(int rows) {
+        cache.setPageSize(rows);
+    }
+
+    /**
+     * Set the number of parsed responses that are kept in memory
+     *
+     * @param capacity number of documents
+     */
+    public void setMemoryCacheCapacity(int capacity) {
+        cache.getDocumentCache().setCapacity(capacity);
+    }
+
+    /**
+     * Drop all the parsed responses kept in memory
+     */
+    public void clearMemoryCache() {
+        cache.getDocumentCache().clear();
+    }
+
+    /**
+     * @return size, hit, miss and eviction counts of the in-memory cache
+     */
+    public String getMemoryCacheStatistics() {
+        return cache.getDocumentCache().toString();
+    }
+
+    /**
+     * Use an atlas bundle as (read-only) cache and switch the network access off.
+     * This should be done before any data is requested; reference volumes that are
+     * already in use keep their files. The settings of the current cache are kept.
+     *
+     * @param bundle complete atlas bundle
+     * @param verify true to check the checksums of all the files first
+     * @throws IOException if the bundle is incomplete or corrupt
+     */
+    public synchronized void mountAtlasBundle(AtlasBundle bundle, boolean verify) throws IOException {
+        if (!bundle.isComplete()) {
+            throw new IOException("No atlas bundle (or an incomplete one) in " + bundle.getDirectory());
+        }
+        if (verify) {
+            bundle.verify();
+        }
+
+        AllenCache readOnly = new AllenCache(bundle.getDirectory(), true);
+        readOnly.copySettings(cache);
+        this.cache = readOnly;
+        ConnectionLimiter.setOffline(true);
+
+        consoleAndStatusUpdate("Mounted the atlas bundle " + bundle);
+    }
+
+    /**
+     * Go back to the default cache (with the settings of the bundle's cache) and switch
+     * the network access on again.
+     */
+    public synchronized void unmountAtlasBundle() {
+        AllenCache writable = new AllenCache();
+        writable.copySettings(cache);
+        this.cache = writable;
+        ConnectionLimiter.setOffline(false);
+    }
+
+    /**
+     * @return true if the client works with a (read-only) atlas bundle
+     */
+    public boolean isAtlasBundleMounted() {
+        return cache.isReadOnly();
+    }
+
+    /**
+     * Limit the size of the local cache. The least recently used entries are evicted.
+     *
+     * @param bytes size limit (Long.MAX_VALUE for no limit)
+     */
+    public void setCacheCapacity(long bytes) {
+        cache.setCapacity(bytes);
+    }
+
+    /**
+     * @return usage and hit ratio of the local (and the shared) cache
+     */
+    public String getCacheStatistics() {
+        return cache.getTierStatistics();
+    }
+
     public void setSvgDisplay(boolean status) {
         this.doDisplay = status;
     }
@@ -86,6 +280,43 @@ public class AllenClient extends FeedbackGate {
         return allenImage.getFile();
     }
 
+    /**
+     * Get the expression grid of a section data set (energy, density and intensity on the
+     * 200 um grid). The grid is downloaded once, unpacked and kept in memory (least recently
+     * used grids are dropped, see {@link #setExpressionGridCapacity(int)}).
+     *
+     * @param dataset_id section data set id
+     * @return unpacked expression grid
+     * @throws TransformerException
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    public ExpressionGrid getExpressionGrid(String dataset_id)
+            throws TransformerException, IOException, URISyntaxException {
+        ExpressionGrid grid = grids.get(dataset_id);
+        if (grid == null) {
+            AllenImage zip = cache.getExpressionGrid(AllenAPI.Download.GRID.createFileName(dataset_id));
+            grid = ExpressionGrid.read(dataset_id, zip.getFile());
+            grids.put(dataset_id, grid);
+        }
+
+        return grid;
+    }
+
+    /**
+     * @param capacity number of expression grids kept in memory
+     */
+    public void setExpressionGridCapacity(int capacity) {
+        grids.setCapacity(capacity);
+    }
+
+    /**
+     * @return size, hit, miss and eviction counts of the expression grids in memory
+     */
+    public String getExpressionGridStatistics() {
+        return grids.toString();
+    }
+
     public AllenXml getDatasetMetadata(String product_name, String dataset_id)
             throws TransformerException, IOException, URISyntaxException {
         return cache.getImageMetadataXml(product_name, dataset_id);
@@ -101,24 +332,129 @@ public class AllenClient extends FeedbackGate {
         return cache.getResponseXml(AllenAPI.RMA.createAtlasStructuresQuery(product_id));
     }
 
+    /**
+     * Get the structure graph of an atlas.
+     * The graph is loaded from a binary snapshot in the cache. The snapshot is created
+     * from the structure graph xml the first time.
+     *
+     * @param atlas reference atlas
+     * @return new instance of the structure graph
+     * @throws IOException
+     * @throws TransformerException
+     * @throws URISyntaxException
+     */
     public AtlasStructureGraph getAnnotationStructureGraph(AllenAtlas atlas)
             throws IOException, TransformerException, URISyntaxException {
         String graph_id = atlas.getStructureGraphId().toString();
+        File file = cache.getStructureGraphSnapshotPath("StructureGraph", graph_id);
+
+        StructureGraphSnapshot snapshot = StructureGraphSnapshot.read(file);
+        if (snapshot != null) {
+            return snapshot.toGraph();
+        }
+
+        AtlasStructureGraph graph = parseAnnotationStructureGraph(atlas);
+        StructureGraphSnapshot.create(graph).write(file);
+
+        return graph;
+    }
+
+    /**
+     * Parse the structure graph xml of an atlas
+     *
+     * @param atlas reference atlas
+     * @return new instance of the structure graph
+     * @throws IOException
+     * @throws TransformerException
+     * @throws URISyntaxException
+     */
+    AtlasStructureGraph parseAnnotationStructureGraph(AllenAtlas atlas)
+            throws IOException, TransformerException, URISyntaxException {
+        String graph_id = atlas.getStructureGraphId().toString();
         AllenXml xml = cache.getStructureGraphXml("StructureGraph", graph_id);
 
-        HashMap<Integer, AtlasStructure> graph = new HashMap<>();
+        HashMap<Integer, AtlasStructure> graph = new LinkedHashMap<>();
         Element root = xml.getDom().getRootElement().getChild("structure");
         parseStructureXmlElements(graph, root, "/");
 
         return new AtlasStructureGraph(graph);
     }
 
-    public AllenRefVol getReferenceVolume(Atlas.Modality modality, Atlas.VoxelResolution resolution)
+    /**
+     * Get a reference volume. The volumes are shared by all the callers; they are read-only.
+     * Each call has to be balanced by a call to {@link #releaseReferenceVolume(AllenRefVol)}
+     * once the volume is no longer used. The files of the volume are not evicted from the
+     * cache in the meantime.
+     *
+     * @param modality of the volume
+     * @param resolution of the volume
+     * @return shared reference volume
+     * @throws TransformerException
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    public AllenRefVol getReferenceVolume(final Atlas.Modality modality, final Atlas.VoxelResolution resolution)
             throws TransformerException, IOException, URISyntaxException {
 
-        AllenImage img = cache.getReferenceVolume(modality, resolution);
+        // The loading request pins the files before the conversions are written, the others once they get the volume
+        final boolean[] loaded = new boolean[1];
+        AllenRefVol shared = volumes.acquire(modality, resolution, new ReferenceVolumeRegistry.Loader() {
+            @Override
+            public AllenRefVol load() throws TransformerException, IOException, URISyntaxException {
+                AllenImage img = cache.getReferenceVolume(modality, resolution);
+                cache.pin(img.getFile());
+                try {
+                    AllenRefVol volume = new AllenRefVol(img.getFile(), modality);
+                    volume.setLogService(getLogService());
+                    volume.setStatusService(getStatusService());
+                    loaded[0] = true;
+
+                    return volume;
+                } finally {
+                    if (!loaded[0]) {
+                        cache.unpin(img.getFile());
+                    }
+                }
+            }
+        });
 
-        return new AllenRefVol(img.getFile());
+        if (!loaded[0]) {
+            cache.pin(shared.getFile());
+        }
+
+        return shared;
+    }
+
+    /**
+     * Set the hdf5 export settings for a modality.
+     * They apply to the volumes that are converted (opened for the first time) afterwards.
+     *
+     * @param modality of the reference volumes
+     * @param settings mipmap levels, block sizes and compression
+     */
+    public void setExportSettings(Atlas.Modality modality, Hdf5ExportSettings settings) {
+        Hdf5ExportSettings.set(modality, settings);
+    }
+
+    /**
+     * Release a volume obtained with {@link #getReferenceVolume(Atlas.Modality, Atlas.VoxelResolution)}
+     *
+     * @param volume shared reference volume
+     */
+    public void releaseReferenceVolume(AllenRefVol volume) {
+        if (volume == null) {
+            return;
+        }
+
+        volumes.release(volume);
+        cache.unpin(volume.getFile());
+    }
+
+    /**
+     * @return hits, misses, bytes held and state of the shared reference volumes
+     */
+    public String getReferenceVolumeStatistics() {
+        return volumes.toString();
     }
 
     public List<String> getProductList(String species) throws IOException, TransformerException, URISyntaxException {
@@ -191,7 +527,9 @@ public class AllenClient extends FeedbackGate {
     }
 
     /**
-     * Download all the section images of a section dataset
+     * Download all the section images of a section dataset.
+     * The images are fetched concurrently (see {@link #setDownloadWorkers(int)}).
+     * An interrupted download is resumed where it stopped.
      *
      * @param dataset_id id of the dataset
      * @param downsample down sampling of the images
@@ -212,16 +550,31 @@ public class AllenClient extends FeedbackGate {
         cache.setLogService(null);
         consoleAndStatusUpdate(0,0,"Downloading SectionDataset " + dataset_id);
 
-        AllenXml sub_images = cache.getResponseXml(AllenAPI.RMA.createSectionImagesQuery(dataset_id));
-        int N = sub_images.getElements().size();
-        int n = 1;
-        for (Element image_element : sub_images.getElements()) {
-            String image_id = image_element.getChild("id").getValue();
-            cache.getImageMetadataXml(dataset_element, product_name, dataset_id, image_id);
-            cache.getImage(downsample, quality, product_name, dataset_id, image_id);
-            consoleAndStatusUpdate(n, N, "Downloaded SectionImage " + image_id);
-            n++;
+        // The images are queued as the pages of the listing arrive
+        final SectionDatasetDownloader downloader = new SectionDatasetDownloader(cache, downloadWorkers);
+        downloader.setLogService(getLogService());
+        downloader.setStatusService(getStatusService());
+        downloader.begin(dataset_element, product_name, dataset_id, downsample, quality);
+
+        int N;
+        try {
+            N = cache.getResponsePages(AllenAPI.RMA.createSectionImagesQuery(dataset_id), new RmaPager.PageHandler() {
+                @Override
+                public void page(int startRow, int totalRows, File file) throws IOException {
+                    downloader.setTotal(totalRows);
+                    RmaStreamReader.read(file, new RmaStreamReader.RecordHandler() {
+                        @Override
+                        public void record(RmaRecord record) {
+                            downloader.submit(record.getId());
+                        }
+                    });
+                }
+            });
+        } catch (IOException | TransformerException | URISyntaxException e) {
+            downloader.abort();
+            throw e;
         }
+        downloader.finish();
 
         consoleAndStatusUpdate(N, N, "Downloaded SectionDataset " + dataset_id + "(" + N + " images)");
     }
@@ -8,8 +8,10 @@ import javax.xml.transform.TransformerException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.concurrent.Semaphore;
 
 /**
  * Base class for file handling.
@@ -31,6 +33,13 @@ abstract class AllenFile extends FeedbackGate {
     /** Flag to indicate which constructor was used (if the file was downloaded or a local copy) */
     private boolean isNew;
 
+    /** Validators of the content (sent with a conditional request, updated with the response) */
+    private String etag;
+    private String lastModified;
+
+    /** Flag to indicate that a conditional request found the cached copy up to date */
+    private boolean notModified;
+
     /**
      * Constructor to fetch a file from the Allen RESTful client and store
      * a local copy of it.
@@ -40,20 +49,51 @@ abstract class AllenFile extends FeedbackGate {
      * @throws IOException
      */
     AllenFile(URL url, File file) throws TransformerException, IOException, URISyntaxException {
-        this(url, file, null, null);
+        this(url, file, (LogService) null, null);
     }
 
     AllenFile(URL url, File file, LogService logService, StatusService statusService)
             throws TransformerException, IOException, URISyntaxException {
         setLogService(logService);
         setStatusService(statusService);
+        fetch(url, file);
+    }
 
+    /**
+     * Constructor to refresh a cached file with a conditional request.
+     * If the content did not change, the cached file is left as it is (see {@link #isNotModified()}).
+     *
+     * @param url Allen API URL
+     * @param file path to the local copy
+     * @param etag validator of the local copy (null if unknown)
+     * @param lastModified validator of the local copy (null if unknown)
+     */
+    AllenFile(URL url, File file, String etag, String lastModified)
+            throws TransformerException, IOException, URISyntaxException {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        fetch(url, file);
+    }
+
+    private void fetch(URL url, File file) throws TransformerException, IOException, URISyntaxException {
         setUrl(url);
         setFile(file);
         setNew(true);
-        load(url);
 
-        if (file != null) {
+        Semaphore connection;
+        try {
+            connection = ConnectionLimiter.acquire(url);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+        }
+
+        try {
+            load(url);
+        } finally {
+            connection.release();
+        }
+
+        if (file != null && !notModified) {
             save();
         }
     }
@@ -100,6 +140,79 @@ abstract class AllenFile extends FeedbackGate {
      */
     abstract void save() throws TransformerException, IOException;
 
+    /**
+     * Send the request for the {@param url} through the {@link HttpTransport}
+     * (conditional, if the validators of a cached copy are known) and keep the
+     * validators of the response.
+     *
+     * @param url resource
+     * @return response (has to be closed)
+     * @throws IOException if the request fails
+     */
+    HttpTransport.Response open(URL url) throws IOException {
+        HttpTransport.Response response = HttpTransport.get(url, etag, lastModified);
+        notModified = response.isNotModified();
+        if (!notModified) {
+            etag = response.getETag();
+            lastModified = response.getLastModified();
+        }
+
+        return response;
+    }
+
+    /**
+     * Set the validators of the content (e.g. of a download that was resumed
+     * without a new response for the whole content)
+     *
+     * @param etag of the content (null if unknown)
+     * @param lastModified of the content (null if unknown)
+     */
+    void setValidators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return true if a conditional request found the cached copy up to date
+     */
+    boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Create the temporary file the content is written to, before it is moved
+     * to its final location with {@link #commit(File)}. This way the cache
+     * never contains partially written files.
+     *
+     * @return temporary file (unique to the caller)
+     * @throws IOException if the file cannot be created
+     */
+    File getTemporaryFile() throws IOException {
+        return CacheIntegrity.getTemporaryFile(getFile());
+    }
+
+    /**
+     * Move the completely written {@param temporary} file to {@link AllenFile#file}
+     *
+     * @param temporary file obtained with {@link #getTemporaryFile()}
+     * @throws IOException if the file cannot be moved
+     */
+    void commit(File temporary) throws IOException {
+        commit(temporary, CacheIntegrity.checksum(temporary));
+    }
+
+    /**
+     * Move the completely written {@param temporary} file to {@link AllenFile#file}
+     * and store its checksum and validators.
+     *
+     * @param temporary file obtained with {@link #getTemporaryFile()}
+     * @param crc CRC32 checksum of the content
+     * @throws IOException if the file cannot be moved
+     */
+    void commit(File temporary, long crc) throws IOException {
+        CacheIntegrity.commit(temporary, getFile(), crc, etag, lastModified);
+    }
+
     /**
      * Get the status message
      *
@@ -1,16 +1,35 @@
 package rest;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import javax.xml.transform.TransformerException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
 /**
@@ -19,18 +38,34 @@ import java.util.TreeMap;
  * - the root element contains general attributes about the query (like if it was successful or not)
  * - the message attribute of the root element contains all the returned elements
  *
+ * The response is streamed to a file (the cache entry) and never parsed as a whole; responses that
+ * are not cached are kept in memory (unparsed). The attributes of the root element are read once, the items of the message are parsed one
+ * at a time whenever they are iterated ({@link #getItems()}), so the memory does not grow with the
+ * size of the response.
+ *
  * TODO: add a field that indicates model in the url and the one of the response (might have to add an xml query to get it)
  *
  * @author Felix Meyenhofer
  */
 class AllenJson extends AllenFile {
 
+    /** Name of the root attribute that contains the returned elements */
+    private static final String KEY_ITEMS = "msg";
+
+    /** Attributes of the root element (without the items) */
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+
+    /** Number of returned elements */
+    private int size;
 
-    /** The returned JSON object */
-    private JSONObject obj;
+    /** File with the (complete) response */
+    private File source;
 
-    /** the returned elements (contained in the "msg" attribute of the root... for easy access) */
-    private JSONArray items;
+    /** Response that is not cached (null if there is a {@link #source} file) */
+    private byte[] content;
+
+    /** Response of a download that still has to be committed to the cache */
+    private File temporary;
 
     /**
      * Constructor
@@ -61,7 +96,9 @@ class AllenJson extends AllenFile {
      */
     @Override
     void load(File file) throws IOException {
-        load(new Scanner(file));
+        source = file;
+        content = null;
+        scan();
     }
 
     /**
@@ -69,30 +106,54 @@ class AllenJson extends AllenFile {
      */
     @Override
     void load(URL url) throws IOException, TransformerException, URISyntaxException {
-        load(new Scanner(url.openStream()));
+        HttpTransport.Response response = open(url);
+        try {
+            if (getFile() == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[65536];
+                int len;
+                while ((len = response.getBody().read(buffer)) != -1) {
+                    bytes.write(buffer, 0, len);
+                }
+                content = bytes.toByteArray();
+                source = null;
+            } else {
+                temporary = getTemporaryFile();
+                Files.copy(response.getBody(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                source = temporary;
+            }
+        } finally {
+            response.close();
+        }
+
+        scan();
     }
 
     /**
-     * Load the content
+     * Read the attributes of the root element and count the items (one at a time)
      *
-     * @param scanner
+     * @throws IOException if the response cannot be read
      */
-    private void load(Scanner scanner) {
-        String str = "";
-        while (scanner.hasNext()) {
-            str += scanner.nextLine();
-        }
-        scanner.close();
+    private void scan() throws IOException {
+        attributes.clear();
+        size = 0;
 
-        obj = new JSONObject(str);
+        ItemIterator iterator = iterate(attributes);
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                size++;
+            }
+            iterator.readAttributes(attributes);
+        } finally {
+            iterator.close();
+        }
 
-        if (!obj.get("success").equals(true)) {
+        if (!Boolean.TRUE.equals(attributes.get("success"))) {
             throw new RuntimeException("The URL '" + getUrl() + "' did not yield a valid response.");
         }
 
-        items = (JSONArray) obj.get("msg");
-
-        if (items.length() < 1) {
+        if (size < 1) {
             throw new RuntimeException("The URL '" + getUrl() + "' did not return any items.");
         }
     }
@@ -102,10 +163,9 @@ class AllenJson extends AllenFile {
      */
     @Override
     void save() throws IOException {
-        FileWriter writer = new FileWriter(getFile().getAbsolutePath());
-        writer.write(this.obj.toString(3));
-        writer.flush();
-        writer.close();
+        commit(temporary);
+        temporary = null;
+        source = getFile();
     }
 
     /**
@@ -114,7 +174,40 @@ class AllenJson extends AllenFile {
      * @return
      */
     Object getResponseSize() {
-        return this.obj.get("total_rows");
+        return attributes.get("total_rows");
+    }
+
+    /**
+     * Iterate over the returned elements. The elements are parsed lazily, one at a time,
+     * from the stored response. The stream is closed once the last item was read
+     * (a loop that stops early has to close the iterator itself, see {@link #getValue(String)}).
+     *
+     * @return the items of the message
+     */
+    Iterable<JSONObject> getItems() {
+        return new Iterable<JSONObject>() {
+            @Override
+            public Iterator<JSONObject> iterator() {
+                try {
+                    return iterate(null);
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read the response '" + getUrl() + "'.", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param attributes collector of the root attributes (see {@link ItemIterator})
+     * @return iterator over the items of the stored response
+     * @throws IOException if the response cannot be opened
+     */
+    private ItemIterator iterate(Map<String, Object> attributes) throws IOException {
+        if (content != null) {
+            return new ItemIterator(new ByteArrayInputStream(content), "'" + getUrl() + "'", attributes);
+        }
+
+        return new ItemIterator(new FileInputStream(source), "'" + source + "'", attributes);
     }
 
     /**
@@ -125,16 +218,26 @@ class AllenJson extends AllenFile {
      * @return value of the atrribute
      */
     Object getValue(String key) {
-        if (items.length() != 1) {
+        if (size != 1) {
             throw new RuntimeException("There are more than one items.");
         }
 
-        for (Object obj : items) {
-            JSONObject item = (JSONObject) obj;
+        ItemIterator iterator;
+        try {
+            iterator = iterate(null);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the response '" + getUrl() + "'.", e);
+        }
 
-            if (item.has(key)) {
-                return item.get(key);
+        try {
+            while (iterator.hasNext()) {
+                JSONObject item = iterator.next();
+                if (item.has(key)) {
+                    return item.get(key);
+                }
             }
+        } finally {
+            iterator.close();
         }
 
         return null;
@@ -150,8 +253,7 @@ class AllenJson extends AllenFile {
     ArrayList<Object> getValues(String key) {
         ArrayList<Object> values = new ArrayList<>();
 
-        for (Object obj : items) {
-            JSONObject item = (JSONObject) obj;
+        for (JSONObject item : getItems()) {
             if (item.has(key)) {
                 values.add(item.get(key));
             }
@@ -170,8 +272,7 @@ class AllenJson extends AllenFile {
     ArrayList<Object> getValues(String key, String sortBy) {
         TreeMap<String, Object> map = new TreeMap<>();
 
-        for (Object obj : items) {
-            JSONObject item = (JSONObject) obj;
+        for (JSONObject item : getItems()) {
             if (item.has(key) && item.has(sortBy)) {
                 map.put(item.get(sortBy).toString(), item.get(key));
             }
@@ -180,20 +281,221 @@ class AllenJson extends AllenFile {
         return new ArrayList<>(map.values());
     }
 
+
     /**
-     * Quick testing
+     * Pull parser for the items of a response: the tokener is positioned in the
+     * array of the message and parses one element per call of {@link #next()}.
+     */
+    private static class ItemIterator implements Iterator<JSONObject>, Closeable {
+        private final Reader reader;
+        private final JSONTokener tokener;
+        private final boolean keepOpen;
+        private JSONObject next;
+        private boolean closed;
+
+        /**
+         * @param is response (closed with the iterator)
+         * @param name of the response (for the error messages)
+         * @param attributes collector of the root attributes that precede the items (or null). If given, the
+         *                   stream stays open after the last item to {@link #readAttributes(Map)} that follow
+         * @throws IOException if the response cannot be parsed
+         */
+        ItemIterator(InputStream is, String name, Map<String, Object> attributes) throws IOException {
+            keepOpen = (attributes != null);
+            reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 65536);
+            tokener = new JSONTokener(reader);
+            try {
+                if (tokener.nextClean() != '{') {
+                    throw tokener.syntaxError("The response has to be a JSON object");
+                }
+                if (seekItems(attributes)) {
+                    next = advance();
+                } else {
+                    close();
+                }
+            } catch (JSONException e) {
+                close();
+                throw new IOException("Could not parse the response " + name + ".", e);
+            }
+        }
+
+        /**
+         * Read the root attributes up to the array of items
+         *
+         * @return true if the items were found
+         */
+        private boolean seekItems(Map<String, Object> attributes) {
+            String key;
+            while ((key = nextKey()) != null) {
+                if (key.equals(KEY_ITEMS)) {
+                    char c = tokener.nextClean();
+                    if (c == '[') {
+                        return true;
+                    }
+                    tokener.back();
+                }
+
+                Object value = tokener.nextValue();
+                if (attributes != null) {
+                    attributes.put(key, value);
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Read the root attributes that follow the array of items (once the iteration is complete)
+         */
+        void readAttributes(Map<String, Object> attributes) throws IOException {
+            if (closed) {
+                return;
+            }
+
+            try {
+                seekItems(attributes);
+            } catch (JSONException e) {
+                throw new IOException("Could not parse the response.", e);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * @return the next key of the root object (null at the end of the object)
+         */
+        private String nextKey() {
+            char c = tokener.nextClean();
+            if (c == ',') {
+                c = tokener.nextClean();
+            }
+            if (c == '}' || c == 0) {
+                return null;
+            }
+            if (c != '"' && c != '\'') {
+                throw tokener.syntaxError("Expected a key of the root object");
+            }
+
+            String key = tokener.nextString(c);
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after the key '" + key + "'");
+            }
+
+            return key;
+        }
+
+        /**
+         * @return the next item (null at the end of the array)
+         */
+        private JSONObject advance() {
+            while (true) {
+                char c = tokener.nextClean();
+                if (c == ',') {
+                    continue;
+                }
+                if (c == ']' || c == 0) {
+                    return null;
+                }
+
+                tokener.back();
+                Object value = tokener.nextValue();
+                if (value instanceof JSONObject) {
+                    return (JSONObject) value;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public JSONObject next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            JSONObject item = next;
+            try {
+                next = advance();
+            } catch (JSONException e) {
+                close();
+                throw e;
+            }
+            if (next == null && !keepOpen) {
+                close();
+            }
+
+            return item;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to release
+                }
+            }
+        }
+    }
+
+    /**
+     * Quick testing: benchmark on a synthetic response of about 50 MB, parsed
+     * as a whole (as a {@link JSONObject}) and streamed with the {@link AllenJson}.
      *
      * @param args nothing
      * @throws IOException that happened
      */
-    public static void main(String[] args) throws IOException, TransformerException, URISyntaxException {
-        AllenJson json = new AllenJson(new URL("http://api.brain-map.org/api/v2/data/query.json?criteria=model::AtlasImage,rma::criteria,data_set[id$eq100048576]"));
-        JSONObject msg = new JSONObject(json.obj.get("msg"));
+    public static void main(String[] args) throws IOException, URISyntaxException {
+        File file = File.createTempFile("synthetic-response", ".json");
+        file.deleteOnExit();
 
-        for (String key : msg.keySet()) {
-            System.out.println(key + ": " + msg.get(key));
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        int n = 200000;
+        writer.write("{\"success\": true, \"id\": 0, \"start_row\": 0, \"num_rows\": " + n +
+                ", \"total_rows\": " + n + ", \"msg\": [");
+        for (int i = 0; i < n; i++) {
+            writer.write((i == 0 ? "" : ",") + "{\"id\": " + (100000000 + i) + ", \"section_number\": " + (n - i) +
+                    ", \"image_width\": 15000, \"image_height\": 11000, \"data_set_id\": 100048576" +
+                    ", \"path\": \"/external/aibssan/production32/prod334/image_" + i + "/image_" + i + ".aff\"" +
+                    ", \"annotated\": false, \"failed\": false, \"x\": 0, \"y\": 0}");
+        }
+        writer.write("]}");
+        writer.close();
+        System.out.println(String.format("synthetic response: %.1f MB, %d items", file.length() / 1e6, n));
+
+        Runtime runtime = Runtime.getRuntime();
+
+        System.gc();
+        long sta = System.currentTimeMillis();
+        StringBuilder builder = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            builder.append(line);
+        }
+        reader.close();
+        JSONObject obj = new JSONObject(builder.toString());
+        int count = 0;
+        for (Object item : (JSONArray) obj.get(KEY_ITEMS)) {
+            count += ((JSONObject) item).has("id") ? 1 : 0;
         }
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println(String.format("whole document: %d ms, %d ids, heap %.0f MB",
+                System.currentTimeMillis() - sta, count, heap / 1e6));
+        obj = null;
+        builder = null;
 
-        System.out.println("");
+        System.gc();
+        sta = System.currentTimeMillis();
+        AllenJson json = new AllenJson(file);
+        ArrayList<Object> ids = json.getValues("id", "section_number");
+        heap = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println(String.format("streamed: %d ms, %d ids (total rows %s), heap %.0f MB",
+                System.currentTimeMillis() - sta, ids.size(), json.getResponseSize(), heap / 1e6));
     }
 }
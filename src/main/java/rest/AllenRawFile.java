@@ -0,0 +1,130 @@
+package rest;
+
+import org.scijava.app.StatusService;
+import org.scijava.log.LogService;
+
+import javax.xml.transform.TransformerException;
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * File from the Allen API that is stored byte by byte, without parsing it.
+ * The content is streamed to the cache and never held in memory. Downloads that
+ * break off are resumed with range requests (see {@link ResumableDownload}).
+ *
+ * @author Felix Meyenhofer
+ */
+class AllenRawFile extends AllenFile {
+
+    AllenRawFile(URL url, File file, LogService logService, StatusService statusService)
+            throws TransformerException, IOException, URISyntaxException {
+        super(url, file, logService, statusService);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    AllenRawFile(URL url, File file) throws IOException, TransformerException, URISyntaxException {
+        super(url, file);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    AllenRawFile(URL url, File file, String etag, String lastModified)
+            throws IOException, TransformerException, URISyntaxException {
+        super(url, file, etag, lastModified);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    AllenRawFile(File file) throws IOException, URISyntaxException {
+        super(file);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void load(URL url) throws IOException {
+        // Write to a temporary file, the cache entry only appears once the download is complete.
+        // Large files are kept if the download breaks off and are resumed with the next attempt.
+        File temporary = CacheIntegrity.getResumableFile(getFile());
+        ResumableDownload download = new ResumableDownload(url, temporary, createProgress());
+
+        long crc = -1;
+        if (download.isPartial()) {
+            consoleAndStatusUpdate("Resuming the download of " + url + " at " +
+                    String.format("%.1f of %.1f MB", download.getReceived() / 1e6, download.getLength() / 1e6));
+            String etag = download.getETag();
+            String lastModified = download.getLastModified();
+            crc = download.resume();
+            if (crc >= 0) {
+                setValidators(etag, lastModified);
+            }
+        }
+
+        if (crc < 0) {
+            HttpTransport.Response response = open(url);
+            if (response.isNotModified()) {
+                response.close();
+                CacheIntegrity.touch(getFile());
+                return;
+            }
+            crc = download.start(response);
+        }
+
+        commit(temporary, crc);
+    }
+
+    /**
+     * @return receiver of the download progress that shows the transfer rate in the status bar
+     */
+    private ResumableDownload.Progress createProgress() {
+        if (getStatusService() == null) {
+            return null;
+        }
+
+        return new ResumableDownload.Progress() {
+            private static final long CHUNK = 4096 * 100;
+            private static final int MAX_POS = 100;
+            private long start = System.currentTimeMillis();
+            private long bytes = 0;
+            private int pos = 1;
+
+            @Override
+            public synchronized void received(long n) {
+                bytes += n;
+                if (bytes < CHUNK) {
+                    return;
+                }
+
+                double td = (System.currentTimeMillis() - start) / 1000.0;
+                double speed = (bytes / 1000000.0) / Math.max(td, 0.001);
+                String message = "Downloading from brain.map.org (" + String.format("%.1f", speed) + " MB/s)";
+                statusUpdate(pos, MAX_POS, message);
+                start = System.currentTimeMillis();
+                bytes = 0;
+                pos = (pos == MAX_POS) ? 1 : pos + 1;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void load(File file) throws IOException, URISyntaxException {
+        // not used
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void save() {
+        // not used
+    }
+}
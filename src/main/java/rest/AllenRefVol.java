@@ -1,11 +1,10 @@
 package rest;
 
 import img.AnnotationImageTool;
+import log.FeedbackGate;
 
 import bdv.BigDataViewer;
 import bdv.export.*;
-import bdv.ij.export.imgloader.ImagePlusImgLoader;
-import bdv.ij.util.PluginHelper;
 import bdv.ij.util.ProgressWriterIJ;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.spimdata.SequenceDescriptionMinimal;
@@ -13,7 +12,6 @@ import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
 import bdv.viewer.ViewerOptions;
 
-import ij.IJ;
 import ij.ImagePlus;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
@@ -44,6 +42,12 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Class that takes care of loading reference volumes and
@@ -52,27 +56,115 @@ import java.util.*;
  *
  * @author Felix Meyenhofer
  */
-public class AllenRefVol {
+public class AllenRefVol extends FeedbackGate {
 
     private final File nrrdFile;
     private final File xmlFile;
     private final File hdf5File;
+    private final File rawFile;
+
+    /** Memory-mapped voxel data (mapped on first use) */
+    private MappedVolume mappedVolume;
+
+    /** Multi-resolution hdf5 (opened on first use) */
+    private Hdf5Volume hdf5Volume;
+
+    /** Settings of the hdf5 export */
+    private final Hdf5ExportSettings exportSettings;
+
+    /** Background conversion to hdf5 (null if the hdf5 already exists) */
+    private final Future<?> hdf5Conversion;
+
+    /** Runs the hdf5 conversions one after the other, in the background */
+    private static final ExecutorService converter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hdf5-export");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public AllenRefVol(File path) {
-        this(generatePath(path, ".nrrd"), generatePath(path, ".xml"));
+        this(path, null);
+    }
+
+    /**
+     * Constructor
+     * The volume is converted to a raw file (blocking) and to hdf5 (in the background)
+     * the first time it is opened.
+     *
+     * @param path of the nrrd file
+     * @param modality of the volume (determines the {@link Hdf5ExportSettings}), null for the defaults
+     */
+    public AllenRefVol(File path, Atlas.Modality modality) {
+        this(generatePath(path, ".nrrd"), generatePath(path, ".xml"), Hdf5ExportSettings.get(modality));
     }
 
-    private AllenRefVol(File nrrdFile, File xmlFile) {
+    private AllenRefVol(File nrrdFile, File xmlFile, Hdf5ExportSettings exportSettings) {
         this.nrrdFile = nrrdFile;
         this.xmlFile = xmlFile;
         this.hdf5File = generatePath(xmlFile, ".h5");
+        this.rawFile = generatePath(xmlFile, MappedVolume.FILE_EXTENSION);
+        this.exportSettings = exportSettings;
+
+        if (!rawFile.exists()) {
+            convert2Raw(loadNrrd(nrrdFile));
+        }
 
         if (!xmlFile.exists()) {
-            ImagePlus imp = loadNrrd(nrrdFile);
-            convert2Hdf5(imp, this.xmlFile);
+            hdf5Conversion = converter.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    convert2Hdf5(getMappedVolume(), AllenRefVol.this.xmlFile);
+                    return null;
+                }
+            });
+        } else {
+            hdf5Conversion = null;
+        }
+    }
+
+    /**
+     * @return nrrd file of the volume (the raw and hdf5 conversions are written next to it)
+     */
+    File getFile() {
+        return nrrdFile;
+    }
+
+    /**
+     * @return true if the files of the volume are still in the cache (they are not evicted
+     * while the volume is in use)
+     */
+    boolean isCached() {
+        return nrrdFile.exists() && rawFile.exists();
+    }
+
+    /**
+     * Wait for the background conversion to hdf5 to finish
+     */
+    void awaitHdf5Conversion() {
+        if (hdf5Conversion == null) {
+            return;
+        }
+
+        try {
+            hdf5Conversion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the hdf5 export of " + nrrdFile.getName());
+        } catch (ExecutionException e) {
+            throw new RuntimeException("The hdf5 export of " + nrrdFile.getName() + " failed.", e.getCause());
         }
     }
 
+    /**
+     * @return true if the hdf5 file is available (the background conversion is done)
+     */
+    public boolean isHdf5Available() {
+        return (hdf5Conversion == null) || hdf5Conversion.isDone();
+    }
+
     private static File generatePath(File file, String ext) {
         String[] parts = file.getAbsolutePath().split("\\.");
         String extension = "." + parts[parts.length - 1];
@@ -86,24 +178,138 @@ public class AllenRefVol {
         return reader.load(file.getParent(), file.getName());
     }
 
+    /**
+     * Convert the volume to an uncompressed raw file (once), so that it can be memory-mapped
+     *
+     * @param imp decoded nrrd
+     */
+    private void convert2Raw(ImagePlus imp) {
+        try {
+            MappedVolume.write(imp, rawFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create the raw volume " + rawFile, e);
+        }
+    }
+
+    /**
+     * Get the memory-mapped raw volume
+     *
+     * @return mapped volume
+     * @throws IOException if the raw volume cannot be mapped
+     */
+    synchronized MappedVolume getMappedVolume() throws IOException {
+        if (mappedVolume == null) {
+            mappedVolume = MappedVolume.open(rawFile);
+        }
+
+        return mappedVolume;
+    }
+
+    /**
+     * @return size of the mapped voxel data in bytes (0 if the volume is not mapped yet)
+     */
+    synchronized long getBytesMapped() {
+        return (mappedVolume == null) ? 0 : mappedVolume.getDataSize();
+    }
+
+    /**
+     * Get the voxel data. The image is backed by the (read-only) memory-mapped raw volume,
+     * the nrrd file is only decoded if the raw volume is not available.
+     *
+     * @return image of the volume (UnsignedByteType, UnsignedShortType or FloatType, depending on the nrrd)
+     */
     public <T extends NumericType<T> & NativeType<T>> RandomAccessibleInterval<T> getRai() {
-        ImagePlus imp = loadNrrd(nrrdFile);
-        return ImageJFunctions.wrap(imp);
+        try {
+            return getMappedVolume().getRai();
+        } catch (IOException e) {
+            String message = "Could not map the raw volume " + rawFile.getName() + " (" + e.getMessage() +
+                    "), decoding " + nrrdFile.getName() + " instead.";
+            if (getLogService() == null) {
+                consoleAndStatusUpdate(message);
+            } else {
+                getLogService().warn(message);
+            }
+            ImagePlus imp = loadNrrd(nrrdFile);
+            return ImageJFunctions.wrap(imp);
+        }
+    }
+
+    /**
+     * Get the multi-resolution hdf5 volume
+     *
+     * @return hdf5 volume
+     */
+    synchronized Hdf5Volume getHdf5Volume() {
+        awaitHdf5Conversion();
+        if (hdf5Volume == null) {
+            hdf5Volume = new Hdf5Volume(hdf5File);
+        }
+
+        return hdf5Volume;
+    }
+
+    /**
+     * Close the hdf5 reader (it is opened again when the volume is used again).
+     * The images of the mipmap levels can no longer load blocks once it is closed.
+     */
+    synchronized void closeHdf5Volume() {
+        if (hdf5Volume != null) {
+            hdf5Volume.close();
+            hdf5Volume = null;
+        }
     }
 
-//    public RandomAccessibleInterval<UnsignedShortType> getRai() throws SpimDataException {
-//        SpimDataMinimal spimData = new XmlIoSpimDataMinimal().load(this.xmlFile.getAbsolutePath());
-//        final AbstractSequenceDescription< ?, ?, ? > seq = spimData.getSequenceDescription();
-//        Hdf5ImageLoader loader = new Hdf5ImageLoader(hdf5File, null, seq, true);
-//
-//        return loader.getSetupImgLoader(0).getImage(0, 0, ImgLoaderHints.LOAD_COMPLETELY);
-//    }
+    /**
+     * @return number of mipmap levels (see {@link #getRai(int)})
+     */
+    public int getNumLevels() {
+        return getHdf5Volume().getNumLevels();
+    }
+
+    /**
+     * Get the voxel data of a mipmap level, without loading the volume.
+     *
+     * 16-bit volumes are stored unchanged in the hdf5. Their levels are read block by block
+     * on access and the blocks are kept in a bounded cache ({@link Hdf5Volume}).
+     * Other types are scaled to 16-bit in the hdf5, which would alter the values (e.g. the
+     * annotation ids). For those, the level is a sub-sampled view of the memory-mapped volume,
+     * which is just as lazy (only the touched pages are read).
+     *
+     * @param level mipmap level (0 is full resolution)
+     * @return image of the level
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends NumericType<T> & NativeType<T>> RandomAccessibleInterval<T> getRai(int level) {
+        if (level == 0) {
+            return getRai();
+        }
+
+        Hdf5Volume volume = getHdf5Volume();
+        try {
+            if (getMappedVolume().getBitDepth() == 16) {
+                return (RandomAccessibleInterval<T>) volume.getRai(level, Hdf5Volume.DEFAULT_MAX_CACHED_BLOCKS);
+            }
+        } catch (IOException e) {
+            // the raw volume is not available; sub-sample the decoded nrrd
+        }
+
+        double[] resolution = volume.getResolution(level);
+        long[] steps = new long[resolution.length];
+        for (int d = 0; d < steps.length; d++) {
+            steps[d] = Math.round(resolution[d]);
+        }
+
+        RandomAccessibleInterval<T> rai = getRai();
+        return Views.subsample(rai, steps);
+    }
 
     public SpimDataMinimal getHdf5() throws SpimDataException {
+        awaitHdf5Conversion();
         return new XmlIoSpimDataMinimal().load(this.xmlFile.getAbsolutePath());
     }
 
     public void show() throws SpimDataException {
+        awaitHdf5Conversion();
         BigDataViewer.open(xmlFile.getAbsolutePath(), xmlFile.getName(), new ProgressWriterIJ(), ViewerOptions.options());
     }
 
@@ -118,161 +324,62 @@ public class AllenRefVol {
     }
 
     /**
-     * Simplified version of {@link bdv.ij.ExportImagePlusPlugIn}
-     * (this does not need to be as general)
+     * Write the multi-resolution hdf5 file and its xml sequence description
+     * (BigDataViewer format).
      *
-     * @param imp input image
+     * @param volume mapped raw volume
      * @param seqFile output xml file
+     * @throws IOException if the hdf5 or the xml cannot be written
      */
-    private void convert2Hdf5(ImagePlus imp, File seqFile) {
-        final int[][] resolutions = new int[][]{{1, 1, 1}, {2, 2, 1}, {4, 4, 2}};
-        final int[][] subdivisions = new int[][]{{32, 32, 4}, {16, 16, 8}, {8, 8, 8}};
-        final double rangeMin = 0;
-        final double rangeMax = 65535;
-        final boolean deflate = true;
-        final ImagePlusImgLoader.MinMaxOption minMaxOption = ImagePlusImgLoader.MinMaxOption.COMPUTE;
-
+    private void convert2Hdf5(MappedVolume volume, File seqFile) throws IOException {
         File hdf5File = new File(seqFile.getAbsolutePath().replace(".xml", ".h5"));
         String viewName = hdf5File.getName().replace(".h5", "");
 
+        final ProgressWriter progressWriter = new ProgressWriterIJ();
+        progressWriter.out().println("starting export of " + viewName + "...");
+
+        // Write hdf5
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        new Hdf5VolumeWriter(volume, exportSettings, workers, progressWriter).write(hdf5File);
+
         // Get calibration and image size
-        final double pw = imp.getCalibration().pixelWidth;
-        final double ph = imp.getCalibration().pixelHeight;
-        final double pd = imp.getCalibration().pixelDepth;
-        String punit = imp.getCalibration().getUnit();
+        double[] voxel = volume.getVoxelSize();
+        String punit = volume.getUnit();
         if (punit == null || punit.isEmpty()) {
             punit = "px";
         }
-        final FinalVoxelDimensions voxelSize = new FinalVoxelDimensions( punit, pw, ph, pd );
-        final int w = imp.getWidth();
-        final int h = imp.getHeight();
-        final int d = imp.getNSlices();
-        final FinalDimensions size = new FinalDimensions(w, h, d);
-
-
-        final ProgressWriter progressWriter = new ProgressWriterIJ();
-        progressWriter.out().println( "starting export..." );
-
-        // Create ImgLoader wrapping the image
-        final ImagePlusImgLoader<?> imgLoader;
-        switch (imp.getType()) {
-            case ImagePlus.GRAY8:
-                imgLoader = ImagePlusImgLoader.createGray8(imp, minMaxOption, rangeMin, rangeMax);
-                break;
-            case ImagePlus.GRAY16:
-                imgLoader = ImagePlusImgLoader.createGray16(imp, minMaxOption, rangeMin, rangeMax);
-                break;
-            case ImagePlus.GRAY32:
-            default:
-                imgLoader = ImagePlusImgLoader.createGray32(imp, minMaxOption, rangeMin, rangeMax);
-                break;
-        }
-
-        final int numTimepoints = imp.getNFrames();
-        final int numSetups = imp.getNChannels();
+        final FinalVoxelDimensions voxelSize = new FinalVoxelDimensions(punit, voxel[0], voxel[1], voxel[2]);
+        final FinalDimensions size = new FinalDimensions(volume.getDimensions());
 
         // Create SourceTransform from the images calibration
         final AffineTransform3D sourceTransform = new AffineTransform3D();
-        sourceTransform.set( pw, 0, 0, 0, 0, ph, 0, 0, 0, 0, pd, 0 );
-
-        // Write hdf5
-        final HashMap< Integer, BasicViewSetup > setups = new HashMap<>( numSetups );
-        for (int s = 0; s < numSetups; ++s) {
-            final BasicViewSetup setup = new BasicViewSetup(s, viewName, size, voxelSize);
-            setup.setAttribute(new Channel(s + 1));
-            setups.put(s, setup);
-        }
-
-        final ArrayList< TimePoint > timepoints = new ArrayList<>( numTimepoints );
-        for (int t = 0; t < numTimepoints; ++t) {
-            timepoints.add(new TimePoint(t));
-        }
-        final SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal( new TimePoints( timepoints ), setups, imgLoader, null );
-
-        Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo;
-        perSetupExportMipmapInfo = new HashMap<>();
-        final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( resolutions, subdivisions );
-        for (final BasicViewSetup setup : seq.getViewSetupsOrdered()) {
-            perSetupExportMipmapInfo.put( setup.getId(), mipmapInfo );
-        }
+        sourceTransform.set(voxel[0], 0, 0, 0, 0, voxel[1], 0, 0, 0, 0, voxel[2], 0);
 
-        // LoopBackHeuristic:
-        // - If saving more than 8x on pixel reads use the loopback image over
-        //   original image
-        // - For virtual stacks also consider the cache size that would be
-        //   required for all original planes contributing to a "plane of
-        //   blocks" at the current level. If this is more than 1/4 of
-        //   available memory, use the loopback image.
-        final boolean isVirtual = imp.getStack().isVirtual();
-        final long planeSizeInBytes = imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
-        final long ijMaxMemory = IJ.maxMemory();
-        final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
-        final WriteSequenceToHdf5.LoopbackHeuristic loopbackHeuristic = new WriteSequenceToHdf5.LoopbackHeuristic() {
-            @Override
-            public boolean decide(final RandomAccessibleInterval<?> originalImg,
-                                  final int[] factorsToOriginalImg,
-                                  final int previousLevel,
-                                  final int[] factorsToPreviousLevel,
-                                  final int[] chunkSize) {
-                if (previousLevel < 0) {
-                    return false;
-                }
+        final HashMap<Integer, BasicViewSetup> setups = new HashMap<>(1);
+        final BasicViewSetup setup = new BasicViewSetup(0, viewName, size, voxelSize);
+        setup.setAttribute(new Channel(1));
+        setups.put(0, setup);
 
-                if (WriteSequenceToHdf5.numElements(factorsToOriginalImg) / WriteSequenceToHdf5.numElements(factorsToPreviousLevel) >= 8) {
-                    return true;
-                }
-
-                if (isVirtual) {
-                    final long requiredCacheSize = planeSizeInBytes * factorsToOriginalImg[2] * chunkSize[2];
-                    if (requiredCacheSize > ijMaxMemory / 4)
-                        return true;
-                }
-
-                return false;
-            }
-        };
-
-        final WriteSequenceToHdf5.AfterEachPlane afterEachPlane = new WriteSequenceToHdf5.AfterEachPlane() {
-            @Override
-            public void afterEachPlane(final boolean usedLoopBack) {
-                if (!usedLoopBack && isVirtual) {
-                    final long free = Runtime.getRuntime().freeMemory();
-                    final long total = Runtime.getRuntime().totalMemory();
-                    final long max = Runtime.getRuntime().maxMemory();
-                    final long actuallyFree = max - total + free;
-
-                    if (actuallyFree < max / 2) {
-                        imgLoader.clearCache();
-                    }
-                }
-            }
-        };
-
-        WriteSequenceToHdf5.writeHdf5File(seq, perSetupExportMipmapInfo, deflate,
-                hdf5File, loopbackHeuristic, afterEachPlane, numCellCreatorThreads,
-                new SubTaskProgressWriter(progressWriter, 0, 0.95));
+        final ArrayList<TimePoint> timepoints = new ArrayList<>(1);
+        timepoints.add(new TimePoint(0));
 
         // Write xml sequence description
         final Hdf5ImageLoader hdf5Loader = new Hdf5ImageLoader(hdf5File, null, null, false);
-        final SequenceDescriptionMinimal seqh5 = new SequenceDescriptionMinimal( seq, hdf5Loader );
+        final SequenceDescriptionMinimal seqh5 = new SequenceDescriptionMinimal(new TimePoints(timepoints), setups, hdf5Loader, null);
 
         final ArrayList<ViewRegistration> registrations = new ArrayList<>();
-        for (int t = 0; t < numTimepoints; ++t) {
-            for (int s = 0; s < numSetups; ++s) {
-                registrations.add( new ViewRegistration( t, s, sourceTransform ) );
-            }
-        }
+        registrations.add(new ViewRegistration(0, 0, sourceTransform));
 
         final File basePath = seqFile.getParentFile();
         final SpimDataMinimal spimData = new SpimDataMinimal(basePath, seqh5, new ViewRegistrations(registrations));
 
         try {
             new XmlIoSpimDataMinimal().save(spimData, seqFile.getAbsolutePath());
-            progressWriter.setProgress( 1.0 );
+            progressWriter.setProgress(1.0);
         } catch (final Exception e) {
-            throw new RuntimeException(e);
+            throw new IOException("Could not write the sequence description " + seqFile, e);
         }
-        progressWriter.out().println( "done" );
+        progressWriter.out().println("done");
     }
 
 
@@ -283,22 +390,27 @@ public class AllenRefVol {
 
     public static Img<BitType> getSetcionMask(Atlas.VoxelResolution resolution, Atlas.PlaneOfSection plane, long sectionNumber)
             throws TransformerException, IOException, URISyntaxException {
-        AllenImage aimg = new AllenCache().getReferenceVolume(Atlas.Modality.ANNOTATION, resolution);
-        AllenRefVol refVol = new AllenRefVol(aimg.getFile());
-        RandomAccessibleInterval<UnsignedShortType> rai = refVol.getRai();
+        AllenClient client = AllenClient.getInstance();
+        AllenRefVol refVol = client.getReferenceVolume(Atlas.Modality.ANNOTATION, resolution);
 
-        int fixedAxis = plane.getFixedAxisIndex();
-        if (sectionNumber < 0) {
-            sectionNumber = rai.dimension(fixedAxis) / 2;
-        }
+        try {
+            RandomAccessibleInterval<UnsignedShortType> rai = refVol.getRai();
 
-        RandomAccessibleInterval<UnsignedShortType> sec = Views.hyperSlice(rai, fixedAxis, sectionNumber);
-        if (plane.swapAxes()) {
-            sec = Views.permute(sec,0, 1);
-        }
-        Img<UnsignedShortType> img = ImgView.wrap(sec, new ArrayImgFactory<>());
+            int fixedAxis = plane.getFixedAxisIndex();
+            if (sectionNumber < 0) {
+                sectionNumber = rai.dimension(fixedAxis) / 2;
+            }
 
-        return AnnotationImageTool.getRootMask(img);
+            RandomAccessibleInterval<UnsignedShortType> sec = Views.hyperSlice(rai, fixedAxis, sectionNumber);
+            if (plane.swapAxes()) {
+                sec = Views.permute(sec, 0, 1);
+            }
+            Img<UnsignedShortType> img = ImgView.wrap(sec, new ArrayImgFactory<>());
+
+            return AnnotationImageTool.getRootMask(img);
+        } finally {
+            client.releaseReferenceVolume(refVol);
+        }
     }
 
     public static AxisType[] getAxes() {
@@ -69,7 +69,14 @@ class AllenSvg extends AllenFile {
      */
     @Override
     void load(URL url) throws IOException {
-        load(url.toString());
+        HttpTransport.Response response = open(url);
+        try {
+            String parser = XMLResourceDescriptor.getXMLParserClassName();
+            SAXSVGDocumentFactory factory = new SAXSVGDocumentFactory(parser);
+            this.dom = factory.createDocument(url.toString(), response.getBody());
+        } finally {
+            response.close();
+        }
     }
 
     /**
@@ -87,12 +94,16 @@ class AllenSvg extends AllenFile {
      * {@inheritDoc}
      */
     @Override
-    void save() throws TransformerException, FileNotFoundException {
+    void save() throws TransformerException, IOException {
+        File temporary = getTemporaryFile();
         Transformer t = TransformerFactory.newInstance().newTransformer();
         t.setOutputProperty(OutputKeys.INDENT, "yes");
         t.setOutputProperty(OutputKeys.METHOD, "xml");
         t.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        t.transform(new DOMSource(getDom()), new StreamResult(new FileOutputStream(getFile())));
+        FileOutputStream os = new FileOutputStream(temporary);
+        t.transform(new DOMSource(getDom()), new StreamResult(os));
+        os.close();
+        commit(temporary);
     }
 
     /**
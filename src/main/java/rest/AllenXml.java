@@ -13,7 +13,6 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * @author Felix Meyenhofer
@@ -70,7 +69,7 @@ public class AllenXml extends AllenFile {
      */
     @Override
     void load(File file) throws IOException {
-        load(new Scanner(file));
+        load(new BufferedInputStream(new FileInputStream(file)));
     }
 
     /**
@@ -78,27 +77,24 @@ public class AllenXml extends AllenFile {
      */
     @Override
     void load(URL url) throws IOException {
-        load(new Scanner(url.openStream()));
+        load(new BufferedInputStream(open(url).getBody()));
     }
 
     /**
-     * Load the content
+     * Build the document straight from the stream (without an intermediate copy of the content).
+     * To read large responses item by item, without the document tree, use {@link RmaStreamReader}.
      *
-     * @param scanner stream scanner
+     * @param is input stream (is closed)
      * @throws IOException if the connection cannot be established
      */
-    private void load(Scanner scanner) throws IOException {
-        StringBuilder str = new StringBuilder();
-        while (scanner.hasNext()) {
-            str.append(scanner.nextLine());
-        }
-        scanner.close();
-
+    private void load(InputStream is) throws IOException {
         SAXBuilder builder = new SAXBuilder();
         try {
-            dom = builder.build(new ByteArrayInputStream(str.toString().getBytes()));
+            dom = builder.build(is);
         } catch (JDOMException e) {
             e.printStackTrace();
+        } finally {
+            is.close();
         }
     }
 
@@ -107,9 +103,13 @@ public class AllenXml extends AllenFile {
      */
     @Override
     void save() throws TransformerException, IOException {
+        File temporary = getTemporaryFile();
         XMLOutputter outputter = new XMLOutputter();
         outputter.setFormat(Format.getPrettyFormat());
-        outputter.output(dom, new FileWriter(this.getFile().getAbsoluteFile()));
+        FileWriter writer = new FileWriter(temporary);
+        outputter.output(dom, writer);
+        writer.close();
+        commit(temporary);
     }
 
     Document getDom() {
@@ -366,7 +366,7 @@ public class AllenXml extends AllenFile {
         }
 
         double[] vect = new double[6];
-        int[] index = new int[]{0, 3, 1, 4, 2, 5};
+        int[] index = RmaRecord.ALIGNMENT_2D_INDEX;
         int i = 0;
         for (Object obj : alignment2d.getChildren()) {
             Element element = (Element) obj;
@@ -390,7 +390,7 @@ public class AllenXml extends AllenFile {
         }
 
         double[] vect = new double[12];
-        int[] index = new int[]{0, 4, 8, 1, 5, 9, 2, 6, 10, 3, 7, 11};
+        int[] index = RmaRecord.ALIGNMENT_3D_INDEX;
         int i = 0;
         for (Object obj : alignment3d.getChildren()) {
             Element element = (Element) obj;
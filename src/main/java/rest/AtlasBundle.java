@@ -0,0 +1,394 @@
+package rest;
+
+import log.FeedbackGate;
+
+import javax.xml.transform.TransformerException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Self-contained copy of the atlas data, for nodes without network access.
+ *
+ * A bundle is a complete {@link AllenCache} directory (reference volumes with their raw
+ * and hdf5 conversions, structure graphs with their snapshots, product and dataset
+ * listings) plus a manifest with the length and CRC32 checksum of every file:
+ *
+ *  |- [bundle]
+ *      |- {@link #MANIFEST_NAME}
+ *      |- reference-volumes
+ *      |- metadata
+ *      |- rma
+ *      |- ...
+ *
+ * Once built, the directory can be copied to a shared file system and mounted read-only
+ * as the cache of the {@link AllenClient} (see {@link AllenClient#mountAtlasBundle(AtlasBundle, boolean)}),
+ * or at start up with -D{@link #PROPERTY}=[bundle-directory]. A mounted bundle switches the
+ * network access off, so that data missing in the bundle is reported instead of downloaded.
+ *
+ * @author Felix Meyenhofer
+ */
+public class AtlasBundle extends FeedbackGate {
+
+    /** System property with the directory of a bundle to mount at start up */
+    public static final String PROPERTY = "aba.bundle";
+
+    /** System property to verify the bundle mounted at start up (true/false) */
+    public static final String PROPERTY_VERIFY = "aba.bundle.verify";
+
+    /** File name of the manifest (in the bundle directory) */
+    static final String MANIFEST_NAME = "bundle.manifest";
+
+    private static final int VERSION = 1;
+    private static final String HEADER = "# Allen Brain Atlas bundle";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_CREATED = "created";
+    private static final String KEY_MODALITIES = "modalities";
+    private static final String KEY_RESOLUTIONS = "resolutions";
+    private static final String KEY_ATLASES = "atlases";
+    private static final String KEY_PRODUCTS = "products";
+    private static final String KEY_FILE = "file";
+
+    private static final String TEMPORARY_EXTENSION = ".part";
+
+    private final File directory;
+
+    /** Manifest entries (relative path -> length and checksum) */
+    private final Map<String, long[]> files = new LinkedHashMap<>();
+    private final Map<String, String> properties = new LinkedHashMap<>();
+
+
+    /**
+     * Constructor
+     *
+     * @param directory of the bundle (the manifest is read if there is one)
+     * @throws IOException if the manifest cannot be read
+     */
+    public AtlasBundle(File directory) throws IOException {
+        this.directory = directory.getAbsoluteFile();
+
+        if (getManifestFile().exists()) {
+            readManifest();
+        }
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    File getManifestFile() {
+        return new File(directory, MANIFEST_NAME);
+    }
+
+    /**
+     * @return true if the bundle was built completely (it has a manifest)
+     */
+    public boolean isComplete() {
+        return !files.isEmpty();
+    }
+
+    /**
+     * @param key of the manifest header (e.g. "modalities")
+     * @return value or null
+     */
+    public String getProperty(String key) {
+        return properties.get(key);
+    }
+
+    /**
+     * @return number of files in the bundle
+     */
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return size of the bundle in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (long[] entry : files.values()) {
+            size += entry[0];
+        }
+
+        return size;
+    }
+
+    /**
+     * Fetch the data into the bundle directory (using a separate cache, the cache of the
+     * {@link AllenClient} singleton is not touched) and write the manifest.
+     * An interrupted build can be run again; the data that is already there is reused.
+     *
+     * @param modalities reference volumes to include
+     * @param resolutions of the reference volumes
+     * @param atlases structure graphs to include
+     * @param species of the product listing
+     * @param productIds products of which the dataset listing is included
+     * @throws IOException
+     * @throws TransformerException
+     * @throws URISyntaxException
+     */
+    public void build(Collection<Atlas.Modality> modalities,
+                      Collection<Atlas.VoxelResolution> resolutions,
+                      Collection<AllenAtlas> atlases,
+                      Atlas.Species species,
+                      Collection<Integer> productIds)
+            throws IOException, TransformerException, URISyntaxException {
+
+        AllenClient client = new AllenClient(new AllenCache(directory, false));
+        client.setLogService(getLogService());
+        client.setStatusService(getStatusService());
+
+        // Without a manifest, a left-over directory is an incomplete bundle
+        Files.deleteIfExists(getManifestFile().toPath());
+        files.clear();
+        properties.clear();
+
+        int n = modalities.size() * resolutions.size();
+        int i = 0;
+        for (Atlas.Modality modality : modalities) {
+            for (Atlas.VoxelResolution resolution : resolutions) {
+                consoleAndStatusUpdate(++i, n, "Bundling the " + modality.getName() + " volume (" + resolution.getLabel() + ")");
+                AllenRefVol volume = client.getReferenceVolume(modality, resolution);
+                try {
+                    volume.awaitHdf5Conversion();
+                } finally {
+                    client.releaseReferenceVolume(volume);
+                }
+            }
+        }
+
+        for (AllenAtlas atlas : atlases) {
+            consoleAndStatusUpdate("Bundling the structure graph of " + atlas.getName());
+            client.getAnnotationStructureGraph(atlas);
+        }
+
+        consoleAndStatusUpdate("Bundling the product and dataset listings");
+        client.getProductList(species.name());
+        for (Integer productId : productIds) {
+            client.getDatasetList(productId.toString());
+        }
+
+        properties.put(KEY_VERSION, Integer.toString(VERSION));
+        properties.put(KEY_CREATED, new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+        properties.put(KEY_MODALITIES, join(modalities));
+        properties.put(KEY_RESOLUTIONS, join(resolutions));
+        properties.put(KEY_ATLASES, join(atlases));
+        properties.put(KEY_PRODUCTS, join(productIds));
+
+        consoleAndStatusUpdate("Computing the checksums");
+        List<File> content = new ArrayList<>();
+        collect(directory, content);
+        List<long[]> checksums = checksum(content);
+        for (int j = 0; j < content.size(); j++) {
+            files.put(relativize(content.get(j)), checksums.get(j));
+        }
+
+        writeManifest();
+        consoleAndStatusUpdate("Atlas bundle complete: " + files.size() + " files, " +
+                (getSize() / (1024 * 1024)) + " MB in " + directory);
+    }
+
+    /**
+     * Check every file of the bundle against the manifest.
+     * The files that pass are not checked again by the cache in this session.
+     *
+     * @throws IOException if the bundle is incomplete or a file is missing or corrupt
+     */
+    public void verify() throws IOException {
+        if (!isComplete()) {
+            throw new IOException("No atlas bundle (or an incomplete one) in " + directory);
+        }
+
+        List<String> paths = new ArrayList<>(files.keySet());
+        List<File> content = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            content.add(new File(directory, path));
+        }
+
+        List<long[]> checksums = checksum(content);
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            long[] expected = files.get(paths.get(i));
+            long[] actual = checksums.get(i);
+            if (actual == null || actual[0] != expected[0] || actual[1] != expected[1]) {
+                failed.add(paths.get(i));
+            } else {
+                CacheIntegrity.trust(content.get(i));
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            throw new IOException(failed.size() + " missing or corrupt file(s) in the atlas bundle " +
+                    directory + ", e.g. " + failed.get(0));
+        }
+
+        consoleAndStatusUpdate("Verified the atlas bundle " + directory + " (" + files.size() + " files)");
+    }
+
+    /**
+     * Collect the files of the bundle, leaving out the manifest and temporary files.
+     * Of the hidden cache directories only the checksum sidecars are kept (the partial
+     * downloads, their segments and resume states are transient).
+     */
+    private void collect(File dir, List<File> collector) {
+        File[] items = dir.listFiles();
+        if (items == null) {
+            return;
+        }
+
+        boolean hidden = dir.getName().equals(CacheIntegrity.DIRECTORY_NAME);
+        for (File item : items) {
+            String name = item.getName();
+            if (item.isDirectory()) {
+                collect(item, collector);
+            } else if (hidden ? name.endsWith(CacheIntegrity.SIDECAR_EXTENSION) :
+                    !name.endsWith(TEMPORARY_EXTENSION) && !item.equals(getManifestFile())) {
+                collector.add(item);
+            }
+        }
+    }
+
+    /**
+     * Compute the length and CRC32 of the files in parallel (null for missing files).
+     */
+    private static List<long[]> checksum(List<File> content) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<long[]>> futures = new ArrayList<>(content.size());
+            for (final File file : content) {
+                futures.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws IOException {
+                        if (!file.isFile()) {
+                            return null;
+                        }
+                        return new long[]{file.length(), CacheIntegrity.checksum(file)};
+                    }
+                }));
+            }
+
+            List<long[]> checksums = new ArrayList<>(content.size());
+            for (Future<long[]> future : futures) {
+                checksums.add(future.get());
+            }
+
+            return checksums;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while computing the checksums.");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compute the checksums.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private String relativize(File file) {
+        return directory.toPath().relativize(file.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String join(Collection<?> items) {
+        StringBuilder builder = new StringBuilder();
+        for (Object item : items) {
+            if (builder.length() > 0) {
+                builder.append(",");
+            }
+            builder.append(item);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Manifest format (one entry per line):
+     *  # header
+     *  [key] [value]
+     *  ...
+     *  file [length] [crc32 (hex)] [relative path]
+     */
+    private void writeManifest() throws IOException {
+        File manifest = getManifestFile();
+        File temporary = new File(directory, MANIFEST_NAME + TEMPORARY_EXTENSION);
+
+        Writer writer = new FileWriter(temporary);
+        try {
+            writer.write(HEADER + "\n");
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                writer.write(property.getKey() + " " + property.getValue() + "\n");
+            }
+            for (Map.Entry<String, long[]> file : files.entrySet()) {
+                long[] entry = file.getValue();
+                writer.write(KEY_FILE + " " + entry[0] + " " + Long.toHexString(entry[1]) + " " + file.getKey() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        try {
+            Files.move(temporary.toPath(), manifest.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void readManifest() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(getManifestFile()));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] parts = line.split(" ", 2);
+                if (parts[0].equals(KEY_FILE)) {
+                    String[] entry = parts[1].split(" ", 3);
+                    if (entry.length != 3) {
+                        throw new IOException("Invalid manifest entry: " + line);
+                    }
+                    files.put(entry[2], new long[]{Long.parseLong(entry[0]), Long.parseLong(entry[1], 16)});
+                } else {
+                    properties.put(parts[0], (parts.length > 1) ? parts[1] : "");
+                }
+            }
+
+            String version = properties.get(KEY_VERSION);
+            if (version == null || Integer.parseInt(version) > VERSION) {
+                throw new IOException("Unsupported atlas bundle version: " + version);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid manifest " + getManifestFile(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return directory + " (" + files.size() + " files, " + (getSize() / (1024 * 1024)) + " MB, " +
+                KEY_MODALITIES + ": " + properties.get(KEY_MODALITIES) + ", " +
+                KEY_RESOLUTIONS + ": " + properties.get(KEY_RESOLUTIONS) + ")";
+    }
+}
@@ -4,6 +4,7 @@ import org.jdom2.Element;
 
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -17,15 +18,15 @@ import java.util.List;
 @SuppressWarnings("WeakerAccess")
 public class AtlasStructure {
 
-    private Integer id;
-    private Integer depth;
+    private int id;
+    private int depth;
     private String acronym;
     private String name;
-    private ArrayList<Integer> graphPath;
+    private int[] graphPath;
     private Color color;
     private String svgPath;
-    private Boolean active;
-    private Boolean hasActiveChildren;
+    private boolean active;
+    private boolean hasActiveChildren;
     private List<float[]> contourCoordinates;
 
     private static String[] attributeNames = new String[]{"id", "depth", "acronym", "name",
@@ -53,6 +54,27 @@ public class AtlasStructure {
         setHasActiveChildren(false);
     }
 
+    /**
+     * Constructor for already parsed attributes (e.g. from a {@link StructureGraphSnapshot})
+     *
+     * @param id      of the structure
+     * @param depth   in the hierarchy
+     * @param acronym aka abbreviation
+     * @param name    explicit name or description of the structure
+     * @param path    ID's of the structures from the root node to this structure
+     * @param color   display color
+     */
+    AtlasStructure(int id, int depth, String acronym, String name, int[] path, Color color) {
+        this.id = id;
+        this.depth = depth;
+        this.acronym = acronym;
+        this.name = name;
+        this.graphPath = path;
+        this.color = color;
+        setActivated(false);
+        setHasActiveChildren(false);
+    }
+
     /**
      * Construct a AtlasStructure object from a xml element, containing a ABA Structure
      *
@@ -97,15 +119,17 @@ public class AtlasStructure {
      * @param path string of parent ID's
      * @return List of parent ID's
      */
-    private ArrayList<Integer> parseStructurePath(String path) {
-        ArrayList<Integer> structurePath = new ArrayList<>();
-        for (String node : path.split("/")) {
+    private static int[] parseStructurePath(String path) {
+        String[] nodes = path.split("/");
+        int[] structurePath = new int[nodes.length];
+        int n = 0;
+        for (String node : nodes) {
             if (!node.isEmpty()) {
-                structurePath.add(Integer.parseInt(node));
+                structurePath[n++] = Integer.parseInt(node);
             }
         }
 
-        return structurePath;
+        return Arrays.copyOf(structurePath, n);
     }
 
     /**
@@ -113,34 +137,23 @@ public class AtlasStructure {
      *
      * @return parent structure ID or -1 if it has no parent (or itself as parent)
      */
-    public Integer getParentId() {
-        Integer parent = -1;
-        ArrayList<Integer> path = getGraphPath();
-
-        if (path.size() == 1) {
-            parent = -1;
-        } else if (path.size() > 1) {
-            int index = path.size() - 2;
-            parent = path.get(index);
-        }
-
-        return parent;
+    public int getParentId() {
+        return (graphPath.length > 1) ? graphPath[graphPath.length - 2] : -1;
     }
 
     public List<Integer> getParentIds() {
-        List<Integer> ids = new ArrayList<>();
-        ArrayList<Integer> path = getGraphPath();
-        if (path.size() > 1) {
-            ids = path.subList(0, path.size() - 1);
+        List<Integer> ids = new ArrayList<>(Math.max(0, graphPath.length - 1));
+        for (int i = 0; i < graphPath.length - 1; i++) {
+            ids.add(graphPath[i]);
         }
         return ids;
     }
 
-    public Boolean hasActiveChildren() {
+    public boolean hasActiveChildren() {
         return hasActiveChildren;
     }
 
-    public void setHasActiveChildren(Boolean hasActiveChildren) {
+    public void setHasActiveChildren(boolean hasActiveChildren) {
         this.hasActiveChildren = hasActiveChildren;
     }
 
@@ -172,7 +185,7 @@ public class AtlasStructure {
         return this.svgPath;
     }
 
-    public Integer getId() {
+    public int getId() {
         return id;
     }
 
@@ -180,7 +193,7 @@ public class AtlasStructure {
         this.id = Integer.parseInt(id);
     }
 
-    public Integer getDepth() {
+    public int getDepth() {
         return depth;
     }
 
@@ -205,7 +218,11 @@ public class AtlasStructure {
     }
 
     public ArrayList<Integer> getGraphPath() {
-        return graphPath;
+        ArrayList<Integer> path = new ArrayList<>(graphPath.length);
+        for (int id : graphPath) {
+            path.add(id);
+        }
+        return path;
     }
 
     void setGraphPath(String graphPath) {
@@ -1,6 +1,7 @@
 package rest;
 
 import java.awt.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -9,6 +10,12 @@ import java.util.Set;
 /**
  * Class regrouping some graph (structure hierarchy) related manipulations
  *
+ * Besides the id-structure map, the hierarchy is indexed in primitive arrays
+ * (structure-of-arrays): each structure has an index, the index of its parent and the
+ * interval [enter, exit] of its sub-tree in the depth first traversal (Euler tour).
+ * A structure A is a descendant of B if the interval of A lies within the one of B.
+ * This makes ancestry queries and hierarchical roll-ups of per-structure values cheap.
+ *
  * @author Felix Meyenhofer
  */
 @SuppressWarnings("WeakerAccess")
@@ -16,19 +23,224 @@ public class AtlasStructureGraph {
 
     private HashMap<Integer, AtlasStructure> graph;
 
+    /** Structure ids (by index) */
+    private int[] ids;
+
+    /** Index of the parent structure (-1 for the roots) */
+    private int[] parents;
+
+    /** Position in the depth first traversal */
+    private int[] enter;
+
+    /** Last position of the sub-tree in the depth first traversal */
+    private int[] exit;
+
+    /** Structure indices in depth first order (parents before children) */
+    private int[] preorder;
+
+    /** Open addressing hash table id -> index */
+    private int[] slotIds;
+    private int[] slotIndices;
+
+    private HashMap<String, Integer> names;
+    private HashMap<String, Integer> acronyms;
+
+
     AtlasStructureGraph(HashMap<Integer, AtlasStructure> graph) {
         this.graph = graph;
+        buildIndex();
     }
 
-    public AtlasStructure getStructureByName(String name) {
+    /**
+     * (Re-)build the primitive index of the hierarchy
+     */
+    private void buildIndex() {
+        int n = graph.size();
+        ids = new int[n];
+        int i = 0;
         for (int id : graph.keySet()) {
-            AtlasStructure structure = graph.get(id);
-            if (structure.getName().equals(name)) {
-                return structure;
+            ids[i++] = id;
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(2, 2 * n) - 1) << 1;
+        slotIds = new int[capacity];
+        slotIndices = new int[capacity];
+        Arrays.fill(slotIndices, -1);
+        for (i = 0; i < n; i++) {
+            int slot = slot(ids[i]);
+            slotIds[slot] = ids[i];
+            slotIndices[slot] = i;
+        }
+
+        names = new HashMap<>(2 * n);
+        acronyms = new HashMap<>(2 * n);
+        parents = new int[n];
+        int[] childCount = new int[n + 1];
+        for (i = 0; i < n; i++) {
+            AtlasStructure structure = graph.get(ids[i]);
+            parents[i] = indexOf(structure.getParentId());
+            childCount[parents[i] + 1]++;
+
+            if (structure.getName() != null && !names.containsKey(structure.getName())) {
+                names.put(structure.getName(), i);
+            }
+            if (structure.getAcronym() != null && !acronyms.containsKey(structure.getAcronym())) {
+                acronyms.put(structure.getAcronym(), i);
+            }
+        }
+
+        // Children in compressed rows (the roots are the children of the virtual node 0)
+        int[] offsets = new int[n + 2];
+        for (i = 0; i <= n; i++) {
+            offsets[i + 1] = offsets[i] + childCount[i];
+        }
+        int[] children = new int[n];
+        int[] fill = Arrays.copyOf(offsets, n + 1);
+        for (i = 0; i < n; i++) {
+            children[fill[parents[i] + 1]++] = i;
+        }
+
+        // Iterative depth first traversal
+        enter = new int[n];
+        exit = new int[n];
+        preorder = new int[n];
+        int[] stack = new int[n + 1];
+        int[] next = Arrays.copyOf(offsets, n + 1);
+        int top = 0;
+        int time = 0;
+        stack[0] = -1;
+        while (top >= 0) {
+            int node = stack[top];
+            if (next[node + 1] < offsets[node + 2]) {
+                int child = children[next[node + 1]++];
+                enter[child] = time;
+                preorder[time++] = child;
+                stack[++top] = child;
+            } else {
+                if (node >= 0) {
+                    exit[node] = time - 1;
+                }
+                top--;
+            }
+        }
+    }
+
+    private int slot(int id) {
+        int mask = slotIds.length - 1;
+        int slot = (id * 0x9E3779B9) & mask;
+        while (slotIndices[slot] != -1 && slotIds[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Get the index of a structure
+     *
+     * @param id of the structure
+     * @return index or -1 if the structure is not in the graph
+     */
+    public int indexOf(int id) {
+        return slotIndices[slot(id)];
+    }
+
+    /**
+     * @param index of the structure
+     * @return id of the structure
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index of the structure
+     * @return index of the parent structure or -1
+     */
+    public int getParentIndex(int index) {
+        return parents[index];
+    }
+
+    public AtlasStructure getStructure(int id) {
+        return graph.get(id);
+    }
+
+    public AtlasStructure getStructureByName(String name) {
+        Integer index = names.get(name);
+        return (index == null) ? null : graph.get(ids[index]);
+    }
+
+    public AtlasStructure getStructureByAcronym(String acronym) {
+        Integer index = acronyms.get(acronym);
+        return (index == null) ? null : graph.get(ids[index]);
+    }
+
+    /**
+     * Check if a structure lies in the sub-tree of another one (a structure is its own descendant).
+     *
+     * @param id of the structure
+     * @param ancestor_id id of the potential ancestor
+     * @return true if {@param id} is {@param ancestor_id} or one of its descendants
+     */
+    public boolean isDescendant(int id, int ancestor_id) {
+        int index = indexOf(id);
+        int ancestor = indexOf(ancestor_id);
+        if (index < 0 || ancestor < 0) {
+            return false;
+        }
+
+        return enter[ancestor] <= enter[index] && enter[index] <= exit[ancestor];
+    }
+
+    /**
+     * Count the occurrences of the structure ids (e.g. the annotation of each cell).
+     *
+     * @param structure_ids structure id of each item
+     * @return counts by structure index (ids that are not in the graph are ignored)
+     */
+    public long[] count(int[] structure_ids) {
+        long[] counts = new long[ids.length];
+        for (int id : structure_ids) {
+            int index = indexOf(id);
+            if (index >= 0) {
+                counts[index]++;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Hierarchical roll-up: the value of each structure is the sum of its own
+     * value and the values of all its descendants.
+     *
+     * @param values by structure index
+     * @return summed values by structure index
+     */
+    public long[] rollUp(long[] values) {
+        long[] sums = Arrays.copyOf(values, ids.length);
+        for (int i = preorder.length - 1; i >= 0; i--) {
+            int index = preorder[i];
+            if (parents[index] >= 0) {
+                sums[parents[index]] += sums[index];
             }
         }
 
-        return null;
+        return sums;
+    }
+
+    /**
+     * @see #rollUp(long[])
+     */
+    public double[] rollUp(double[] values) {
+        double[] sums = Arrays.copyOf(values, ids.length);
+        for (int i = preorder.length - 1; i >= 0; i--) {
+            int index = preorder[i];
+            if (parents[index] >= 0) {
+                sums[parents[index]] += sums[index];
+            }
+        }
+
+        return sums;
     }
 
     public HashMap<Integer, AtlasStructure> getGraph() {
@@ -88,12 +300,16 @@ public class AtlasStructureGraph {
             graph.put(-2, structure);
             parents.add(structure.getId());
         }
-        
+
         // Update parents
         for (int parent : parents) {
             graph.get(parent).setHasActiveChildren(true);
         }
 
+        if (notFound > 0) {
+            buildIndex();
+        }
+
         return new int[]{found, notFound};
     }
 }
@@ -0,0 +1,355 @@
+package rest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Integrity of the entries of the {@link AllenCache}.
+ *
+ * Files are never written in place. They are written to a temporary file first and
+ * then moved atomically to their final location. Along with each entry a sidecar
+ * with its length and CRC32 checksum is stored. The sidecar is checked lazily, the
+ * first time an entry is read in a session, so that truncated or corrupt files are
+ * detected before they reach a parser.
+ *
+ * The temporary files and the sidecars are kept in a hidden sub-directory
+ * ({@link #DIRECTORY_NAME}) to keep the cache directories clean:
+ *
+ *  |- [directory]
+ *      |- [entry]
+ *      |- .entries
+ *          |- [entry].[random].part
+ *          |- [entry].check
+ *
+ * Every writer gets a temporary file of its own, so that concurrent writers of the
+ * same entry (threads or several processes on a shared cache) cannot interleave.
+ *
+ * @author Felix Meyenhofer
+ */
+class CacheIntegrity {
+
+    /** Hidden directory for the temporary files and sidecars */
+    static final String DIRECTORY_NAME = ".entries";
+
+    private static final String TEMPORARY_EXTENSION = ".part";
+    static final String SIDECAR_EXTENSION = ".check";
+
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_CRC = "crc32";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+
+    /** Entries that were already verified in this session */
+    private static final Set<String> verified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+
+    private CacheIntegrity() {}
+
+    private static File getEntryDirectory(File file) {
+        File directory = new File(file.getAbsoluteFile().getParentFile(), DIRECTORY_NAME);
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new RuntimeException("Could not create the directory '" + directory.getAbsolutePath() + "'.");
+        }
+
+        return directory;
+    }
+
+    /**
+     * Create the temporary file a cache entry is written to before it is committed.
+     * The name is unique, each call creates a new (empty) file.
+     *
+     * @param file final location of the cache entry
+     * @return temporary file (on the same file system)
+     * @throws IOException if the file cannot be created
+     */
+    static File getTemporaryFile(File file) throws IOException {
+        return createTemporaryFile(getEntryDirectory(file), file.getName());
+    }
+
+    /**
+     * Get the temporary file of a download that can be resumed ({@link ResumableDownload}).
+     * Unlike {@link #getTemporaryFile(File)} the name is fixed, so that the next attempt
+     * finds the content received by the previous one.
+     *
+     * @param file final location of the cache entry
+     * @return temporary file (on the same file system)
+     */
+    static File getResumableFile(File file) {
+        return new File(getEntryDirectory(file), file.getName() + TEMPORARY_EXTENSION);
+    }
+
+    private static File createTemporaryFile(File directory, String name) throws IOException {
+        return Files.createTempFile(directory.toPath(), name + ".", TEMPORARY_EXTENSION).toFile();
+    }
+
+    static File getSidecarFile(File file) {
+        return new File(new File(file.getAbsoluteFile().getParentFile(), DIRECTORY_NAME),
+                file.getName() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Move the temporary file to its final location and write the sidecar.
+     *
+     * @param temporary file containing the complete content
+     * @param file final location of the cache entry
+     * @throws IOException if the file cannot be moved
+     */
+    static void commit(File temporary, File file) throws IOException {
+        commit(temporary, file, checksum(temporary));
+    }
+
+    /**
+     * Move the temporary file to its final location and write the sidecar.
+     *
+     * @param temporary file containing the complete content
+     * @param file final location of the cache entry
+     * @param crc CRC32 checksum of the content (computed while writing it)
+     * @throws IOException if the file cannot be moved
+     */
+    static void commit(File temporary, File file, long crc) throws IOException {
+        commit(temporary, file, crc, null, null);
+    }
+
+    /**
+     * Move the temporary file to its final location and write the sidecar with the
+     * HTTP validators of the content (for conditional requests).
+     *
+     * @param temporary file containing the complete content
+     * @param file final location of the cache entry
+     * @param crc CRC32 checksum of the content (computed while writing it)
+     * @param etag ETag of the response (null if none)
+     * @param lastModified Last-Modified date of the response (null if none)
+     * @throws IOException if the file cannot be moved
+     */
+    static void commit(File temporary, File file, long crc, String etag, String lastModified) throws IOException {
+        long length = temporary.length();
+
+        try {
+            Files.move(temporary.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        writeSidecar(file, length, crc, etag, lastModified);
+    }
+
+    /**
+     * Move the temporary file to its final location and write the sidecar, unless the
+     * entry already exists. This is used to publish entries to a directory that is
+     * shared by several nodes: the first one wins and an entry that another node is
+     * reading is never replaced.
+     *
+     * @param temporary file containing the complete content (removed in any case)
+     * @param file final location of the cache entry
+     * @return true if the entry was committed, false if it already existed
+     * @throws IOException if the file cannot be moved
+     */
+    static boolean commitIfAbsent(File temporary, File file) throws IOException {
+        long length = temporary.length();
+        long crc = checksum(temporary);
+
+        try {
+            // Creating a link fails atomically if the entry exists
+            try {
+                Files.createLink(file.toPath(), temporary.toPath());
+            } catch (FileAlreadyExistsException e) {
+                return false;
+            } catch (UnsupportedOperationException | IOException e) {
+                // No hard links on this file system
+                try {
+                    Files.move(temporary.toPath(), file.toPath());
+                } catch (FileAlreadyExistsException e2) {
+                    return false;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+
+        writeSidecar(file, length, crc, null, null);
+        return true;
+    }
+
+    private static void writeSidecar(File file, long length, long crc, String etag, String lastModified)
+            throws IOException {
+        File sidecar = getSidecarFile(file);
+        File temporarySidecar = createTemporaryFile(sidecar.getParentFile(), sidecar.getName());
+        Writer writer = new FileWriter(temporarySidecar);
+        writer.write(KEY_LENGTH + " " + length + "\n");
+        writer.write(KEY_CRC + " " + Long.toHexString(crc) + "\n");
+        if (etag != null) {
+            writer.write(KEY_ETAG + " " + etag + "\n");
+        }
+        if (lastModified != null) {
+            writer.write(KEY_LAST_MODIFIED + " " + lastModified + "\n");
+        }
+        writer.close();
+        Files.move(temporarySidecar.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        verified.add(file.getAbsolutePath());
+    }
+
+    /**
+     * Check a cache entry against its sidecar. Entries without sidecar (written by
+     * earlier versions) are trusted. The check is only done once per session.
+     *
+     * @param file cache entry
+     * @return true if the entry is complete and intact
+     */
+    static boolean verify(File file) {
+        String key = file.getAbsolutePath();
+        if (verified.contains(key)) {
+            return true;
+        }
+
+        File sidecar = getSidecarFile(file);
+        if (sidecar.exists()) {
+            try {
+                long length = -1;
+                long crc = -1;
+                BufferedReader reader = new BufferedReader(new FileReader(sidecar));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length != 2) {
+                        continue;
+                    }
+
+                    if (parts[0].equals(KEY_LENGTH)) {
+                        length = Long.parseLong(parts[1]);
+                    } else if (parts[0].equals(KEY_CRC)) {
+                        crc = Long.parseLong(parts[1], 16);
+                    }
+                }
+                reader.close();
+
+                if ((length >= 0 && file.length() != length) || (crc >= 0 && checksum(file) != crc)) {
+                    return false;
+                }
+            } catch (IOException | NumberFormatException e) {
+                return false;
+            }
+        }
+
+        verified.add(key);
+        return true;
+    }
+
+    /**
+     * Get the HTTP validators stored with an entry
+     *
+     * @param file cache entry
+     * @return etag and last-modified date (null if unknown)
+     */
+    static String[] getValidators(File file) {
+        String[] validators = new String[2];
+        File sidecar = getSidecarFile(file);
+        if (!sidecar.exists()) {
+            return validators;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(sidecar));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length != 2) {
+                    continue;
+                }
+
+                if (parts[0].equals(KEY_ETAG)) {
+                    validators[0] = parts[1];
+                } else if (parts[0].equals(KEY_LAST_MODIFIED)) {
+                    validators[1] = parts[1];
+                }
+            }
+            reader.close();
+        } catch (IOException e) {
+            return new String[2];
+        }
+
+        return validators;
+    }
+
+    /**
+     * @param file cache entry
+     * @return time the entry was written or last confirmed to be up to date (0 if unknown)
+     */
+    static long getValidationTime(File file) {
+        return getSidecarFile(file).lastModified();
+    }
+
+    /**
+     * Record that an entry was confirmed to be up to date
+     *
+     * @param file cache entry
+     */
+    static void touch(File file) {
+        File sidecar = getSidecarFile(file);
+        if (sidecar.exists()) {
+            sidecar.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Mark an entry as verified, if its content was already checked otherwise
+     * (e.g. against the manifest of an {@link AtlasBundle}).
+     *
+     * @param file cache entry
+     */
+    static void trust(File file) {
+        verified.add(file.getAbsolutePath());
+    }
+
+    /**
+     * Remove a cache entry, its sidecar and a left-over partial download.
+     *
+     * @param file cache entry
+     */
+    static void invalidate(File file) {
+        verified.remove(file.getAbsolutePath());
+
+        File sidecar = getSidecarFile(file);
+        File partial = new File(sidecar.getParentFile(), file.getName() + TEMPORARY_EXTENSION);
+        for (File item : new File[]{file, sidecar, partial}) {
+            if (item.exists() && !item.delete()) {
+                throw new RuntimeException("Could not remove the corrupt cache entry '" + item.getAbsolutePath() + "'.");
+            }
+        }
+    }
+
+    /**
+     * Compute the CRC32 checksum of a file
+     *
+     * @param file input
+     * @return checksum value
+     * @throws IOException if the file cannot be read
+     */
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream is = new FileInputStream(file);
+        byte[] buffer = new byte[65536];
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            crc.update(buffer, 0, len);
+        }
+        is.close();
+
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,324 @@
+package rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One storage tier of the {@link AllenCache}: a directory with the cache layout, an optional
+ * size limit and usage statistics.
+ *
+ * A tier with a size limit evicts the least recently used entries when it grows beyond the
+ * limit (down to {@link #LOW_WATERMARK} of it). Files that belong together (same directory and
+ * same name trunk, e.g. a reference volume with its raw and hdf5 conversions) are evicted as
+ * a group. The last modification time of a file serves as its access time, so the order
+ * survives a restart. Hidden files, the {@link RmaIndex} and pinned groups (e.g. the reference
+ * volumes that are in use) are never evicted.
+ * Files that are written into the tier by others (e.g. the conversions of the
+ * {@link AllenRefVol}) are accounted for when the tier is scanned before an eviction.
+ *
+ * @author Felix Meyenhofer
+ */
+class CacheTier {
+
+    /** No size limit */
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    /** Fraction of the capacity the eviction goes down to */
+    private static final double LOW_WATERMARK = 0.9;
+
+    private final String name;
+    private final File root;
+    private long capacity;
+
+    /** Bytes used by the tier (-1 until the directory was scanned) */
+    private long usage = -1;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /** Groups of entries that are in use (group key -> number of users) */
+    private final Map<String, Integer> pinned = new HashMap<>();
+
+
+    /**
+     * Constructor
+     *
+     * @param name of the tier (for the statistics)
+     * @param root directory of the tier
+     * @param capacity size limit in bytes ({@link #UNLIMITED} for none)
+     */
+    CacheTier(String name, File root, long capacity) {
+        this.name = name;
+        this.root = root.getAbsoluteFile();
+        this.capacity = capacity;
+    }
+
+    File getRoot() {
+        return this.root;
+    }
+
+    synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict(null);
+    }
+
+    synchronized long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return bytes used by the tier
+     */
+    synchronized long getUsage() {
+        if (usage < 0) {
+            usage = 0;
+            for (File file : list(root, new ArrayList<File>())) {
+                usage += file.length();
+            }
+        }
+
+        return usage;
+    }
+
+    /**
+     * Get the location of an entry of another tier in this tier.
+     *
+     * @param file entry in the {@param other} tier
+     * @param other tier
+     * @return file with the same relative path in this tier
+     */
+    File locate(File file, CacheTier other) {
+        return root.toPath().resolve(other.root.toPath().relativize(file.getAbsoluteFile().toPath())).toFile();
+    }
+
+    /**
+     * Record a hit and mark the entry as recently used
+     *
+     * @param file entry of this tier
+     */
+    synchronized void hit(File file) {
+        hits++;
+        if (capacity != UNLIMITED) {
+            file.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    synchronized void miss() {
+        misses++;
+    }
+
+    /**
+     * Protect an entry and the files that belong to it from eviction.
+     * Each call has to be balanced by a call to {@link #unpin(File)}.
+     *
+     * @param file entry of this tier
+     */
+    synchronized void pin(File file) {
+        String key = getGroupKey(file);
+        Integer count = pinned.get(key);
+        pinned.put(key, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * Allow the eviction of an entry again
+     *
+     * @param file entry pinned with {@link #pin(File)}
+     */
+    synchronized void unpin(File file) {
+        String key = getGroupKey(file);
+        Integer count = pinned.get(key);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            pinned.put(key, count - 1);
+        } else {
+            pinned.remove(key);
+        }
+    }
+
+    /**
+     * Account for a new entry and evict old ones if the tier is full.
+     *
+     * @param file new entry of this tier
+     */
+    synchronized void add(File file) {
+        if (usage >= 0) {
+            usage += file.length();
+        }
+        evict(file);
+    }
+
+    /**
+     * Copy an entry (and the files that belong to it) from another tier into this one.
+     * Each file is copied to a temporary file of its own and committed with its sidecar,
+     * unless another thread or node committed it in the meantime.
+     *
+     * @param file entry in the {@param other} tier
+     * @param other tier
+     * @return the entry in this tier
+     * @throws IOException if the files cannot be copied
+     */
+    File copy(File file, CacheTier other) throws IOException {
+        File target = locate(file, other);
+        File directory = target.getParentFile();
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create the directory '" + directory.getAbsolutePath() + "'.");
+        }
+
+        for (File member : getGroup(file)) {
+            File destination = locate(member, other);
+            if (!member.equals(file.getAbsoluteFile()) && destination.exists()) {
+                continue;
+            }
+
+            File temporary = CacheIntegrity.getTemporaryFile(destination);
+            try {
+                Files.copy(member.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary.toPath());
+                throw e;
+            }
+            if (CacheIntegrity.commitIfAbsent(temporary, destination)) {
+                add(destination);
+            }
+        }
+
+        return target;
+    }
+
+    /**
+     * Evict the least recently used groups of entries until the tier is below the low watermark.
+     *
+     * @param keep entry that must not be evicted (the one that was just added), or null
+     */
+    private void evict(File keep) {
+        if (capacity == UNLIMITED || getUsage() <= capacity) {
+            return;
+        }
+
+        // Group the entries and order the groups by their last access
+        final Map<String, List<File>> groups = new HashMap<>();
+        final Map<String, Long> accessed = new HashMap<>();
+        usage = 0;
+        for (File file : list(root, new ArrayList<File>())) {
+            usage += file.length();
+            String key = getGroupKey(file);
+            List<File> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+                accessed.put(key, 0L);
+            }
+            group.add(file);
+            accessed.put(key, Math.max(accessed.get(key), file.lastModified()));
+        }
+
+        List<String> keys = new ArrayList<>(groups.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(accessed.get(a), accessed.get(b));
+            }
+        });
+
+        String kept = (keep == null) ? null : getGroupKey(keep);
+        long target = (long) (capacity * LOW_WATERMARK);
+        for (String key : keys) {
+            if (usage <= target) {
+                break;
+            }
+            if (key.equals(kept) || pinned.containsKey(key)) {
+                continue;
+            }
+
+            for (File file : groups.get(key)) {
+                long length = file.length();
+                CacheIntegrity.invalidate(file);
+                usage -= length;
+            }
+            evictions++;
+        }
+    }
+
+    /**
+     * @return the files that belong together with the {@param file} (including the file)
+     */
+    private static List<File> getGroup(final File file) {
+        final String key = getGroupKey(file);
+        List<File> group = new ArrayList<>();
+        File[] siblings = file.getAbsoluteFile().getParentFile().listFiles();
+        if (siblings != null) {
+            for (File sibling : siblings) {
+                if (sibling.isFile() && isEvictable(sibling) && getGroupKey(sibling).equals(key)) {
+                    group.add(sibling);
+                }
+            }
+        }
+        if (!group.contains(file.getAbsoluteFile())) {
+            group.add(file.getAbsoluteFile());
+        }
+
+        return group;
+    }
+
+    private static String getGroupKey(File file) {
+        String name = file.getName();
+        int dot = name.indexOf('.');
+        String trunk = (dot > 0) ? name.substring(0, dot) : name;
+        return new File(file.getAbsoluteFile().getParentFile(), trunk).getPath();
+    }
+
+    private static boolean isEvictable(File file) {
+        String name = file.getName();
+        return !name.startsWith(".") && !name.equals(RmaIndex.FILE_NAME) && !name.equals(AtlasBundle.MANIFEST_NAME);
+    }
+
+    /**
+     * Collect the entries (files that can be evicted) in a directory tree
+     */
+    private static List<File> list(File directory, List<File> collector) {
+        File[] items = directory.listFiles();
+        if (items == null) {
+            return collector;
+        }
+
+        for (File item : items) {
+            if (item.isDirectory()) {
+                if (!item.getName().equals(CacheIntegrity.DIRECTORY_NAME)) {
+                    list(item, collector);
+                }
+            } else if (isEvictable(item)) {
+                collector.add(item);
+            }
+        }
+
+        return collector;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes == UNLIMITED) {
+            return "unlimited";
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        double ratio = (lookups == 0) ? 0 : (100.0 * hits) / lookups;
+        return name + " (" + root + "): " + formatBytes(getUsage()) + " of " + formatBytes(capacity) +
+                ", hits: " + hits + ", misses: " + misses + String.format(" (hit ratio %.1f%%)", ratio) +
+                ", evictions: " + evictions;
+    }
+}
@@ -0,0 +1,135 @@
+package rest;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of simultaneous connections the {@link AllenClient}
+ * opens to one and the same host. Every download in {@link AllenFile}
+ * goes through here, so concurrent workers cannot flood the Allen servers.
+ * For the same reason, this is where the network access is switched off when
+ * the client works with an offline {@link AtlasBundle}.
+ *
+ * @author Felix Meyenhofer
+ */
+class ConnectionLimiter {
+
+    /** Default number of simultaneous connections per host */
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    /** Current limit */
+    private static int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    /** One semaphore per host name */
+    private static final Map<String, HostSemaphore> hosts = new HashMap<>();
+
+    /** Flag to refuse all connections */
+    private static boolean offline = false;
+
+
+    private ConnectionLimiter() {}
+
+    /**
+     * Set the maximum number of simultaneous connections per host.
+     * The semaphores of the hosts are resized, so connections that are already open keep counting
+     * against the new limit until they are released.
+     *
+     * @param max number of connections (at least 1)
+     */
+    static synchronized void setMaxConnectionsPerHost(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("The number of connections per host has to be at least 1, not " + max);
+        }
+
+        int difference = max - maxConnectionsPerHost;
+        maxConnectionsPerHost = max;
+        for (HostSemaphore semaphore : hosts.values()) {
+            semaphore.resize(difference);
+        }
+    }
+
+    static synchronized int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Switch the network access off (or on again).
+     *
+     * @param status true to refuse all connections
+     */
+    static synchronized void setOffline(boolean status) {
+        offline = status;
+    }
+
+    static synchronized boolean isOffline() {
+        return offline;
+    }
+
+    private static synchronized Semaphore getSemaphore(URL url) throws IOException {
+        if (offline) {
+            throw new IOException("The network access is switched off (offline atlas bundle), cannot fetch " + url);
+        }
+
+        String host = url.getHost();
+        HostSemaphore semaphore = hosts.get(host);
+        if (semaphore == null) {
+            semaphore = new HostSemaphore(maxConnectionsPerHost);
+            hosts.put(host, semaphore);
+        }
+
+        return semaphore;
+    }
+
+    /**
+     * Block until a connection to the host of the {@param url} is available.
+     *
+     * @param url to connect to
+     * @return the permit, that has to be released once the connection is closed
+     * @throws InterruptedException if the waiting thread is interrupted
+     * @throws IOException if the network access is switched off
+     */
+    static Semaphore acquire(URL url) throws InterruptedException, IOException {
+        Semaphore semaphore = getSemaphore(url);
+        semaphore.acquire();
+
+        return semaphore;
+    }
+
+    /**
+     * Take a connection to the host of the {@param url} only if one is available right away
+     * (for additional connections of a download that already holds a permit).
+     *
+     * @param url to connect to
+     * @return the permit, that has to be released once the connection is closed, or null
+     * @throws IOException if the network access is switched off
+     */
+    static Semaphore tryAcquire(URL url) throws IOException {
+        Semaphore semaphore = getSemaphore(url);
+
+        return semaphore.tryAcquire() ? semaphore : null;
+    }
+
+    /**
+     * Semaphore whose number of permits can be changed while permits are held
+     */
+    private static class HostSemaphore extends Semaphore {
+
+        HostSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        /**
+         * @param difference number of permits to add (or remove, if negative)
+         */
+        void resize(int difference) {
+            if (difference > 0) {
+                release(difference);
+            } else if (difference < 0) {
+                reducePermits(-difference);
+            }
+        }
+    }
+}
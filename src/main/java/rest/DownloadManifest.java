@@ -0,0 +1,110 @@
+package rest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persistent record of the items of a (long running) download.
+ * The manifest is an append-only text file with one line per event:
+ *
+ *      started [item-id]
+ *      done [item-id]
+ *
+ * An interrupted download can be resumed by skipping the items that are done.
+ * Items that were started but never finished are considered corrupt and
+ * have to be fetched again.
+ *
+ * @author Felix Meyenhofer
+ */
+class DownloadManifest {
+
+    /** File name of the manifest (stored next to the downloaded items) */
+    static final String FILE_NAME = "download.manifest";
+
+    private static final String STARTED = "started";
+    private static final String DONE = "done";
+
+    private final File file;
+    private final Set<String> done = new HashSet<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private Writer writer;
+
+
+    /**
+     * Constructor
+     * Reads the existing manifest in the {@param directory} (if there is any)
+     *
+     * @param directory where the downloaded items are stored
+     * @throws IOException if the manifest cannot be read
+     */
+    DownloadManifest(File directory) throws IOException {
+        this.file = new File(directory, FILE_NAME);
+
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length != 2) {
+                    continue; // the last line might be truncated
+                }
+
+                if (parts[0].equals(STARTED)) {
+                    inFlight.add(parts[1]);
+                } else if (parts[0].equals(DONE)) {
+                    inFlight.remove(parts[1]);
+                    done.add(parts[1]);
+                }
+            }
+            reader.close();
+        }
+
+        this.writer = new FileWriter(file, true);
+    }
+
+    synchronized boolean isDone(String id) {
+        return done.contains(id);
+    }
+
+    /**
+     * @param id of the item
+     * @return true if the item was started in a previous run but never finished
+     */
+    synchronized boolean wasInterrupted(String id) {
+        return inFlight.contains(id);
+    }
+
+    synchronized int getDoneCount() {
+        return done.size();
+    }
+
+    synchronized void started(String id) throws IOException {
+        inFlight.add(id);
+        append(STARTED, id);
+    }
+
+    synchronized void done(String id) throws IOException {
+        inFlight.remove(id);
+        done.add(id);
+        append(DONE, id);
+    }
+
+    private void append(String event, String id) throws IOException {
+        writer.write(event + " " + id + "\n");
+        writer.flush();
+    }
+
+    synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,479 @@
+package rest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Gene expression grid of a section data set: the energy, density and intensity of the
+ * expression summarized on the 200 um grid of the common coordinate framework (CCF).
+ *
+ * The grids are unpacked straight from the zip stream of the grid download (pairs of
+ * MetaImage files: [measure].mhd and [measure].raw) into primitive float arrays, without
+ * temporary files. The first axis is the anterior-posterior axis, the second the
+ * dorsal-ventral and the third the left-right axis, like the reference volumes.
+ * Voxels without data hold {@link #NO_DATA}.
+ *
+ * The values are queried with positions in um, or with voxel positions of a reference
+ * volume of a given {@link Atlas.VoxelResolution}.
+ *
+ * @author Felix Meyenhofer
+ */
+public class ExpressionGrid {
+
+    /** Size of the grid (anterior-posterior, dorsal-ventral, left-right) */
+    public static final int[] DIMENSIONS = {67, 41, 58};
+
+    /** Voxel size [um] */
+    public static final double SPACING = 200;
+
+    /** Value of the voxels without data */
+    public static final float NO_DATA = -1;
+
+    /**
+     * Measures of the expression contained in the grid download
+     */
+    public enum Measure {
+        ENERGY,
+        DENSITY,
+        INTENSITY;
+
+        String getFileTrunk() {
+            return name().toLowerCase();
+        }
+
+        static Measure get(String fileName) {
+            String trunk = fileName.substring(fileName.lastIndexOf('/') + 1);
+            int dot = trunk.indexOf('.');
+            trunk = (dot > 0) ? trunk.substring(0, dot) : trunk;
+
+            for (Measure measure : values()) {
+                if (measure.getFileTrunk().equalsIgnoreCase(trunk)) {
+                    return measure;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private final String id;
+    private final int[] dims;
+    private final EnumMap<Measure, float[]> data;
+
+
+    private ExpressionGrid(String id, int[] dims, EnumMap<Measure, float[]> data) {
+        this.id = id;
+        this.dims = dims;
+        this.data = data;
+    }
+
+    /**
+     * Read the grids of a cached grid download
+     *
+     * @param id of the section data set
+     * @param zip grid download
+     * @return expression grid
+     * @throws IOException if the file cannot be read or contains no grid
+     */
+    static ExpressionGrid read(String id, File zip) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(zip), 65536);
+        try {
+            return read(id, is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Read the grids from a zip stream
+     *
+     * @param id of the section data set
+     * @param is zip stream of the grid download (not closed)
+     * @return expression grid
+     * @throws IOException if the stream cannot be read or contains no grid
+     */
+    static ExpressionGrid read(String id, InputStream is) throws IOException {
+        Map<Measure, Map<String, String>> headers = new EnumMap<>(Measure.class);
+        Map<Measure, byte[]> raws = new EnumMap<>(Measure.class);
+
+        ZipInputStream zis = new ZipInputStream(is);
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            Measure measure = Measure.get(entry.getName());
+            if (entry.isDirectory() || measure == null) {
+                continue;
+            }
+
+            byte[] content = readEntry(zis, entry);
+            if (entry.getName().toLowerCase().endsWith(".mhd")) {
+                headers.put(measure, parseHeader(content));
+            } else if (entry.getName().toLowerCase().endsWith(".raw")) {
+                raws.put(measure, content);
+            }
+        }
+
+        int[] dims = null;
+        EnumMap<Measure, float[]> data = new EnumMap<>(Measure.class);
+        for (Measure measure : raws.keySet()) {
+            Map<String, String> header = headers.get(measure);
+            if (header == null) {
+                throw new IOException("The " + measure.getFileTrunk() + " grid of " + id + " has no header.");
+            }
+
+            int[] size = parseDimensions(header);
+            if (dims == null) {
+                dims = size;
+            } else if (!Arrays.equals(dims, size)) {
+                throw new IOException("The grids of " + id + " differ in size.");
+            }
+
+            data.put(measure, decode(header, raws.get(measure), size, id));
+        }
+
+        if (data.isEmpty()) {
+            throw new IOException("The grid download of " + id + " contains no expression grid.");
+        }
+
+        return new ExpressionGrid(id, dims, data);
+    }
+
+    private static byte[] readEntry(ZipInputStream zis, ZipEntry entry) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((entry.getSize() > 0) ? (int) entry.getSize() : 65536);
+        byte[] chunk = new byte[65536];
+        int len;
+        while ((len = zis.read(chunk)) != -1) {
+            buffer.write(chunk, 0, len);
+        }
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Parse the "key = value" lines of a MetaImage header
+     */
+    private static Map<String, String> parseHeader(byte[] content) {
+        Map<String, String> header = new HashMap<>();
+        for (String line : new String(content).split("\\r?\\n")) {
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                header.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+            }
+        }
+
+        return header;
+    }
+
+    private static int[] parseDimensions(Map<String, String> header) throws IOException {
+        String value = header.get("DimSize");
+        if (value == null) {
+            throw new IOException("The grid header has no DimSize.");
+        }
+
+        String[] items = value.split("\\s+");
+        int[] size = new int[items.length];
+        for (int d = 0; d < items.length; d++) {
+            size[d] = Integer.parseInt(items[d]);
+        }
+
+        if (size.length != 3) {
+            throw new IOException("Expected a 3D grid, not " + value);
+        }
+
+        return size;
+    }
+
+    private static float[] decode(Map<String, String> header, byte[] raw, int[] size, String id) throws IOException {
+        String type = header.get("ElementType");
+        if (type != null && !type.equals("MET_FLOAT")) {
+            throw new IOException("Unsupported element type of the grid of " + id + ": " + type);
+        }
+
+        int n = size[0] * size[1] * size[2];
+        if (raw.length != n * 4) {
+            throw new IOException("The grid of " + id + " has " + raw.length + " instead of " + (n * 4) + " bytes.");
+        }
+
+        String msb = header.get("ElementByteOrderMSB");
+        if (msb == null) {
+            msb = header.get("BinaryDataByteOrderMSB");
+        }
+        ByteOrder order = "True".equalsIgnoreCase(msb) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        float[] values = new float[n];
+        ByteBuffer.wrap(raw).order(order).asFloatBuffer().get(values);
+
+        return values;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int[] getDimensions() {
+        return dims.clone();
+    }
+
+    /**
+     * @param measure of the expression
+     * @return true if the grid download contained the measure
+     */
+    public boolean has(Measure measure) {
+        return data.containsKey(measure);
+    }
+
+    /**
+     * Get the values of a measure (the first axis varies fastest).
+     * The array is shared, it must not be modified.
+     *
+     * @param measure of the expression
+     * @return values
+     */
+    public float[] getData(Measure measure) {
+        float[] values = data.get(measure);
+        if (values == null) {
+            throw new IllegalArgumentException("The grid of " + id + " does not contain the " +
+                    measure.getFileTrunk() + ".");
+        }
+
+        return values;
+    }
+
+    /**
+     * Get the value of the voxel that contains a position
+     *
+     * @param measure of the expression
+     * @param x anterior-posterior position [um]
+     * @param y dorsal-ventral position [um]
+     * @param z left-right position [um]
+     * @return value ({@link #NO_DATA} outside of the grid)
+     */
+    public float getValue(Measure measure, double x, double y, double z) {
+        return getValue(getData(measure), x, y, z);
+    }
+
+    private float getValue(float[] values, double x, double y, double z) {
+        int i = (int) Math.floor(x / SPACING);
+        int j = (int) Math.floor(y / SPACING);
+        int k = (int) Math.floor(z / SPACING);
+        if (i < 0 || j < 0 || k < 0 || i >= dims[0] || j >= dims[1] || k >= dims[2]) {
+            return NO_DATA;
+        }
+
+        return values[i + dims[0] * (j + dims[1] * k)];
+    }
+
+    /**
+     * Get the values at many positions
+     *
+     * @param measure of the expression
+     * @param positions [n][3] positions [um]
+     * @return values ({@link #NO_DATA} outside of the grid)
+     */
+    public float[] getValues(Measure measure, double[][] positions) {
+        float[] values = getData(measure);
+        float[] result = new float[positions.length];
+        for (int p = 0; p < positions.length; p++) {
+            result[p] = getValue(values, positions[p][0], positions[p][1], positions[p][2]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the values at many positions of a reference volume (e.g. the template coordinates of a mapped section)
+     *
+     * @param measure of the expression
+     * @param positions [n][3] voxel positions of the reference volume
+     * @param resolution of the reference volume
+     * @return values ({@link #NO_DATA} outside of the grid)
+     */
+    public float[] getValues(Measure measure, double[][] positions, Atlas.VoxelResolution resolution) {
+        float[] values = getData(measure);
+        double scale = resolution.getValue();
+        float[] result = new float[positions.length];
+        for (int p = 0; p < positions.length; p++) {
+            result[p] = getValue(values, positions[p][0] * scale, positions[p][1] * scale, positions[p][2] * scale);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sample the grid with trilinear interpolation between the voxel centres at many positions of
+     * a reference volume (e.g. the ARA coordinates of the cells of a mapped section). Voxels without
+     * data do not contribute; positions without any data around them get {@link #NO_DATA}.
+     *
+     * @param measure of the expression
+     * @param x anterior-posterior voxel positions of the reference volume
+     * @param y dorsal-ventral voxel positions
+     * @param z left-right voxel positions
+     * @param resolution of the reference volume
+     * @return interpolated values
+     */
+    public float[] sample(Measure measure, double[] x, double[] y, double[] z, Atlas.VoxelResolution resolution) {
+        float[] values = getData(measure);
+        double scale = resolution.getValue() / SPACING;
+        float[] result = new float[x.length];
+
+        for (int p = 0; p < x.length; p++) {
+            // grid coordinates relative to the voxel centres
+            double gx = x[p] * scale - 0.5;
+            double gy = y[p] * scale - 0.5;
+            double gz = z[p] * scale - 0.5;
+            int i = (int) Math.floor(gx);
+            int j = (int) Math.floor(gy);
+            int k = (int) Math.floor(gz);
+
+            result[p] = interpolate(values, i, j, k, gx - i, gy - j, gz - k);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the value at a position with trilinear interpolation between the voxel centres
+     *
+     * @param measure of the expression
+     * @param x anterior-posterior position [um]
+     * @param y dorsal-ventral position [um]
+     * @param z left-right position [um]
+     * @return interpolated value ({@link #NO_DATA} if there is no data around the position)
+     */
+    public float getInterpolatedValue(Measure measure, double x, double y, double z) {
+        double gx = x / SPACING - 0.5;
+        double gy = y / SPACING - 0.5;
+        double gz = z / SPACING - 0.5;
+        int i = (int) Math.floor(gx);
+        int j = (int) Math.floor(gy);
+        int k = (int) Math.floor(gz);
+
+        return interpolate(getData(measure), i, j, k, gx - i, gy - j, gz - k);
+    }
+
+    /**
+     * Weighted mean of the 8 voxels around a position, skipping the voxels without data
+     */
+    private float interpolate(float[] values, int i, int j, int k, double fx, double fy, double fz) {
+        double sum = 0;
+        double weights = 0;
+        for (int c = 0; c < 8; c++) {
+            int dx = c & 1;
+            int dy = (c >> 1) & 1;
+            int dz = (c >> 2) & 1;
+            int ci = i + dx;
+            int cj = j + dy;
+            int ck = k + dz;
+            if (ci < 0 || cj < 0 || ck < 0 || ci >= dims[0] || cj >= dims[1] || ck >= dims[2]) {
+                continue;
+            }
+
+            float value = values[ci + dims[0] * (cj + dims[1] * ck)];
+            if (value < 0) {
+                continue;
+            }
+
+            double weight = (dx == 1 ? fx : 1 - fx) * (dy == 1 ? fy : 1 - fy) * (dz == 1 ? fz : 1 - fz);
+            sum += weight * value;
+            weights += weight;
+        }
+
+        return (weights > 0) ? (float) (sum / weights) : NO_DATA;
+    }
+
+    /**
+     * @return memory held by the grids [bytes]
+     */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (float[] values : data.values()) {
+            size += 4L * values.length;
+        }
+
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionGrid " + id + " " + dims[0] + "x" + dims[1] + "x" + dims[2] + " " + data.keySet();
+    }
+
+
+    /**
+     * Quick testing: unpack a synthetic grid download and query random positions
+     */
+    public static void main(String[] args) throws IOException {
+        int n = DIMENSIONS[0] * DIMENSIONS[1] * DIMENSIONS[2];
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(zip);
+        for (Measure measure : Measure.values()) {
+            String trunk = measure.getFileTrunk();
+            zos.putNextEntry(new ZipEntry(trunk + ".mhd"));
+            zos.write(("ObjectType = Image\nNDims = 3\nBinaryData = True\nBinaryDataByteOrderMSB = False\n" +
+                    "ElementSpacing = 200 200 200\nDimSize = 67 41 58\nElementType = MET_FLOAT\n" +
+                    "ElementDataFile = " + trunk + ".raw\n").getBytes());
+            zos.closeEntry();
+
+            ByteBuffer raw = ByteBuffer.allocate(4 * n).order(ByteOrder.LITTLE_ENDIAN);
+            for (int v = 0; v < n; v++) {
+                raw.putFloat(measure.ordinal() * 1000 + v);
+            }
+            zos.putNextEntry(new ZipEntry(trunk + ".raw"));
+            zos.write(raw.array());
+            zos.closeEntry();
+        }
+        zos.close();
+
+        long sta = System.currentTimeMillis();
+        ExpressionGrid grid = read("synthetic", new ByteArrayInputStream(zip.toByteArray()));
+        System.out.println(grid + " unpacked in " + (System.currentTimeMillis() - sta) + " ms, " +
+                grid.getSizeInBytes() / 1024 + " kB");
+
+        // voxel (2, 3, 4) -> 2 + 67 * (3 + 41 * 4)
+        System.out.println("energy at (500, 700, 900) um: " + grid.getValue(Measure.ENERGY, 500, 700, 900) +
+                " (expected " + (2 + 67 * (3 + 41 * 4)) + ")");
+
+        Random random = new Random(1);
+        double[][] positions = new double[1000000][3];
+        for (double[] position : positions) {
+            position[0] = random.nextDouble() * 13200;
+            position[1] = random.nextDouble() * 8000;
+            position[2] = random.nextDouble() * 11400;
+        }
+        sta = System.currentTimeMillis();
+        grid.getValues(Measure.DENSITY, positions);
+        long td = Math.max(1, System.currentTimeMillis() - sta);
+        System.out.println(positions.length + " queries in " + td + " ms (" + (positions.length * 1000L / td) + " points/s)");
+
+        double[] x = new double[positions.length];
+        double[] y = new double[positions.length];
+        double[] z = new double[positions.length];
+        for (int p = 0; p < positions.length; p++) {
+            x[p] = positions[p][0] / 25;
+            y[p] = positions[p][1] / 25;
+            z[p] = positions[p][2] / 25;
+        }
+        sta = System.currentTimeMillis();
+        grid.sample(Measure.DENSITY, x, y, z, Atlas.VoxelResolution.TWENTYFIVE);
+        td = Math.max(1, System.currentTimeMillis() - sta);
+        System.out.println(positions.length + " trilinear samples in " + td + " ms (" + (positions.length * 1000L / td) + " points/s)");
+
+        // half way between the centres of the voxels (2, 3, 4) and (3, 3, 4)
+        System.out.println("interpolated energy at (600, 700, 900) um: " +
+                grid.getInterpolatedValue(Measure.ENERGY, 600, 700, 900) + " (expected " + (2.5 + 67 * (3 + 41 * 4)) + ")");
+    }
+}
@@ -0,0 +1,170 @@
+package rest;
+
+import log.FeedbackGate;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch lookup of the gene expression at many positions (e.g. the ARA coordinates of the cells
+ * of a mapped section) for a list of section data sets (genes/experiments).
+ *
+ * The {@link ExpressionGrid}s are fetched and sampled by a bounded number of workers. Each
+ * worker reserves its share of the memory budget (grid, zip buffer and result column) before
+ * it loads a grid, so that the number of grids in flight stays within the budget regardless
+ * of the number of workers.
+ *
+ * @author Felix Meyenhofer
+ */
+public class ExpressionSampler extends FeedbackGate {
+
+    /** Default number of workers */
+    public static final int DEFAULT_WORKERS = 4;
+
+    /** Default memory budget for the grids in flight [bytes] */
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    /** Memory of one grid while it is unpacked (zip content and float arrays of all the measures) [bytes] */
+    private static final long GRID_BYTES = 2L * 3 * 4 *
+            ExpressionGrid.DIMENSIONS[0] * ExpressionGrid.DIMENSIONS[1] * ExpressionGrid.DIMENSIONS[2];
+
+    private final AllenClient client;
+    private final int workers;
+    private final long memoryBudget;
+
+
+    /**
+     * Constructor
+     *
+     * @param client to fetch the expression grids
+     * @param workers number of grids that are loaded and sampled at the same time
+     * @param memoryBudget memory for the grids in flight [bytes]
+     */
+    public ExpressionSampler(AllenClient client, int workers, long memoryBudget) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of workers has to be at least 1, not " + workers);
+        }
+
+        this.client = client;
+        this.workers = workers;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sample the expression of each data set at all the positions.
+     * Data sets whose grid cannot be fetched get a column of NaN (and a warning).
+     *
+     * @param datasetIds section data set ids
+     * @param measure of the expression
+     * @param x anterior-posterior voxel positions of the reference volume
+     * @param y dorsal-ventral voxel positions
+     * @param z left-right voxel positions
+     * @param resolution of the reference volume the positions refer to
+     * @return one column of values per data set id (in the order of the ids)
+     * @throws IOException if the sampling is interrupted
+     */
+    public Map<String, float[]> sample(List<String> datasetIds, final ExpressionGrid.Measure measure,
+                                       final double[] x, final double[] y, final double[] z,
+                                       final Atlas.VoxelResolution resolution) throws IOException {
+        final int total = datasetIds.size();
+        final AtomicInteger count = new AtomicInteger();
+
+        // Memory accounting in kB (one share per grid in flight)
+        final int share = (int) Math.min(Integer.MAX_VALUE, (GRID_BYTES + 4L * x.length) / 1024 + 1);
+        final int budget = (int) Math.max(share, Math.min(Integer.MAX_VALUE, memoryBudget / 1024));
+        final Semaphore memory = new Semaphore(budget, true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, Math.max(1, total)));
+        Map<String, Future<float[]>> futures = new LinkedHashMap<>();
+        for (final String id : datasetIds) {
+            futures.put(id, executor.submit(new Callable<float[]>() {
+                @Override
+                public float[] call() throws InterruptedException {
+                    memory.acquire(share);
+                    try {
+                        ExpressionGrid grid = client.getExpressionGrid(id);
+                        return grid.sample(measure, x, y, z, resolution);
+                    } catch (IOException | TransformerException | URISyntaxException | IllegalArgumentException e) {
+                        String message = "Could not sample the expression grid of " + id + ": " + e.getMessage();
+                        if (getLogService() == null) {
+                            System.err.println(message);
+                        } else {
+                            getLogService().warn(message);
+                        }
+                        float[] missing = new float[x.length];
+                        Arrays.fill(missing, Float.NaN);
+                        return missing;
+                    } finally {
+                        memory.release(share);
+                        int n = count.incrementAndGet();
+                        statusUpdate(n, total, "Sampled the expression of " + n + "/" + total + " data sets");
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        Map<String, float[]> columns = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, Future<float[]>> entry : futures.entrySet()) {
+                columns.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while sampling the expression grids.");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not sample the expression grids.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        consoleAndStatusUpdate("Sampled the expression of " + total + " data sets at " + x.length + " positions.");
+
+        return columns;
+    }
+
+    /**
+     * Quick testing: sample the energy of a few genes at random positions
+     *
+     * @param args section data set ids (optional)
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> ids = new ArrayList<>(Arrays.asList(args));
+        if (ids.isEmpty()) {
+            ids.add("69816930");
+            ids.add("75551483");
+        }
+
+        int n = 100000;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] z = new double[n];
+        Random random = new Random(1);
+        for (int p = 0; p < n; p++) {
+            x[p] = random.nextDouble() * 528;
+            y[p] = random.nextDouble() * 320;
+            z[p] = random.nextDouble() * 456;
+        }
+
+        long sta = System.currentTimeMillis();
+        ExpressionSampler sampler = new ExpressionSampler(AllenClient.getInstance(), DEFAULT_WORKERS, DEFAULT_MEMORY_BUDGET);
+        Map<String, float[]> columns = sampler.sample(ids, ExpressionGrid.Measure.ENERGY, x, y, z,
+                Atlas.VoxelResolution.TWENTYFIVE);
+        System.out.println(columns.size() + " columns of " + n + " values in " + (System.currentTimeMillis() - sta) + " ms");
+    }
+}
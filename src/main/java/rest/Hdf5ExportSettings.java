@@ -0,0 +1,92 @@
+package rest;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Settings of the hdf5 export of the reference volumes (see {@link Hdf5VolumeWriter}).
+ * The settings are defined per modality and can be changed before a volume is
+ * converted for the first time.
+ *
+ * @author Felix Meyenhofer
+ */
+public class Hdf5ExportSettings {
+
+    /** Settings used when no modality is known */
+    static final Hdf5ExportSettings DEFAULT = new Hdf5ExportSettings(
+            new int[][]{{1, 1, 1}, {2, 2, 1}, {4, 4, 2}},
+            new int[][]{{32, 32, 4}, {16, 16, 8}, {8, 8, 8}},
+            4, true);
+
+    private static final Map<Atlas.Modality, Hdf5ExportSettings> settings = new EnumMap<>(Atlas.Modality.class);
+    static {
+        settings.put(Atlas.Modality.AUTOFLUO, DEFAULT);
+        settings.put(Atlas.Modality.NISSEL, DEFAULT);
+        // Large uniform regions compress well; averaging ids makes no sense
+        settings.put(Atlas.Modality.ANNOTATION, new Hdf5ExportSettings(
+                new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}},
+                new int[][]{{64, 64, 8}, {32, 32, 16}, {16, 16, 16}},
+                6, false));
+    }
+
+    private final int[][] resolutions;
+    private final int[][] subdivisions;
+    private final int deflateLevel;
+    private final boolean average;
+
+
+    /**
+     * Constructor
+     *
+     * @param resolutions down-sampling factors (x, y, z) of each mipmap level
+     * @param subdivisions block (chunk) size (x, y, z) of each mipmap level
+     * @param deflateLevel compression level [0...9], 0 for no compression
+     * @param average true to average the voxels when down-sampling, false to sub-sample (e.g. for labels)
+     */
+    public Hdf5ExportSettings(int[][] resolutions, int[][] subdivisions, int deflateLevel, boolean average) {
+        if (resolutions.length != subdivisions.length) {
+            throw new IllegalArgumentException("Each mipmap level needs a resolution and a subdivision.");
+        }
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("The deflate level has to be in [0...9], not " + deflateLevel);
+        }
+
+        this.resolutions = resolutions;
+        this.subdivisions = subdivisions;
+        this.deflateLevel = deflateLevel;
+        this.average = average;
+    }
+
+    /**
+     * @param modality of the reference volume (null for the default settings)
+     * @return export settings
+     */
+    static synchronized Hdf5ExportSettings get(Atlas.Modality modality) {
+        Hdf5ExportSettings value = (modality == null) ? null : settings.get(modality);
+        return (value == null) ? DEFAULT : value;
+    }
+
+    static synchronized void set(Atlas.Modality modality, Hdf5ExportSettings value) {
+        settings.put(modality, value);
+    }
+
+    int getNumLevels() {
+        return resolutions.length;
+    }
+
+    int[][] getResolutions() {
+        return resolutions;
+    }
+
+    int[][] getSubdivisions() {
+        return subdivisions;
+    }
+
+    int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    boolean isAveraging() {
+        return average;
+    }
+}
@@ -0,0 +1,139 @@
+package rest;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * Lazy access to the multi-resolution hdf5 file written by {@link AllenRefVol}
+ * (BigDataViewer layout, see {@link bdv.export.WriteSequenceToHdf5}):
+ *
+ *  |- s00
+ *      |- resolutions      (down-sampling factors of each level, x, y, z)
+ *      |- subdivisions     (block size of each level, x, y, z)
+ *  |- t00000
+ *      |- s00
+ *          |- [level]
+ *              |- cells    (unsigned short voxels, z, y, x)
+ *
+ * Each level is served as a cell image with one cell per hdf5 block. The blocks
+ * are read on demand and kept in a bounded cache, so that point lookups and
+ * slices only read the blocks they touch.
+ *
+ * @author Felix Meyenhofer
+ */
+class Hdf5Volume implements Closeable {
+
+    /** Default maximum number of blocks kept in memory (per level) */
+    static final int DEFAULT_MAX_CACHED_BLOCKS = 4096;
+
+    private static final String RESOLUTIONS = "s00/resolutions";
+    private static final String SUBDIVISIONS = "s00/subdivisions";
+
+    private final IHDF5Reader reader;
+    private final double[][] resolutions;
+    private final int[][] subdivisions;
+
+
+    /**
+     * Constructor
+     *
+     * @param file hdf5 file
+     */
+    Hdf5Volume(File file) {
+        this.reader = HDF5Factory.openForReading(file);
+        this.resolutions = reader.float64().readMatrix(RESOLUTIONS);
+        this.subdivisions = reader.int32().readMatrix(SUBDIVISIONS);
+    }
+
+    private static String getCellsPath(int level) {
+        return "t00000/s00/" + level + "/cells";
+    }
+
+    int getNumLevels() {
+        return resolutions.length;
+    }
+
+    /**
+     * @param level mipmap level
+     * @return down-sampling factors (x, y, z) of the level
+     */
+    double[] getResolution(int level) {
+        return resolutions[level].clone();
+    }
+
+    /**
+     * @param level mipmap level
+     * @return dimensions (x, y, z) of the level
+     */
+    long[] getDimensions(int level) {
+        long[] dimensions = reader.object().getDimensions(getCellsPath(level));
+        return reverse(dimensions);
+    }
+
+    /**
+     * Get a mipmap level. Blocks are read when they are accessed.
+     *
+     * @param level mipmap level
+     * @param maxCachedBlocks maximum number of blocks that are kept in memory
+     * @return image of the level
+     */
+    RandomAccessibleInterval<UnsignedShortType> getRai(final int level, int maxCachedBlocks) {
+        final String path = getCellsPath(level);
+
+        ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+                .cellDimensions(subdivisions[level])
+                .cacheType(ReadOnlyCachedCellImgOptions.CacheType.BOUNDED)
+                .maxCacheSize(maxCachedBlocks);
+
+        CellLoader<UnsignedShortType> loader = new CellLoader<UnsignedShortType>() {
+            @Override
+            public void load(SingleCellArrayImg<UnsignedShortType, ?> cell) {
+                int n = cell.numDimensions();
+                int[] size = new int[n];
+                long[] offset = new long[n];
+                for (int d = 0; d < n; d++) {
+                    size[n - 1 - d] = (int) cell.dimension(d);
+                    offset[n - 1 - d] = cell.min(d);
+                }
+
+                short[] block;
+                synchronized (reader) {
+                    block = reader.int16().readMDArrayBlockWithOffset(path, size, offset).getAsFlatArray();
+                }
+
+                short[] data = (short[]) cell.getStorageArray();
+                System.arraycopy(block, 0, data, 0, block.length);
+            }
+        };
+
+        ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(options);
+        CachedCellImg<UnsignedShortType, ?> img = factory.create(getDimensions(level), new UnsignedShortType(), loader);
+
+        return img;
+    }
+
+    private static long[] reverse(long[] array) {
+        long[] reversed = new long[array.length];
+        for (int i = 0; i < array.length; i++) {
+            reversed[i] = array[array.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (reader) {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package rest;
+
+import bdv.export.ProgressWriter;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes a {@link MappedVolume} into a multi-resolution hdf5 file with the
+ * BigDataViewer layout (readable by {@link bdv.img.hdf5.Hdf5ImageLoader} and {@link Hdf5Volume}).
+ *
+ * The blocks of each mipmap level are computed (down-sampled and converted to
+ * unsigned short) by a pool of workers, directly from the mapped source. The hdf5
+ * library is not thread safe, so the blocks are written (and deflated) one at a time
+ * by the calling thread, while the workers compute the next blocks.
+ *
+ * @author Felix Meyenhofer
+ */
+class Hdf5VolumeWriter {
+
+    /** Maximum number of computed blocks waiting to be written, per worker */
+    private static final int QUEUE_PER_WORKER = 4;
+
+    private final MappedVolume source;
+    private final Hdf5ExportSettings settings;
+    private final int workers;
+    private final ProgressWriter progress;
+
+    /** Scaling of the source values to unsigned short (identity for 16-bit sources) */
+    private final double offset;
+    private final double scale;
+
+
+    /**
+     * Constructor
+     *
+     * @param source volume
+     * @param settings export settings
+     * @param workers number of threads computing blocks
+     * @param progress progress and throughput report
+     */
+    Hdf5VolumeWriter(MappedVolume source, Hdf5ExportSettings settings, int workers, ProgressWriter progress) {
+        this.source = source;
+        this.settings = settings;
+        this.workers = Math.max(1, workers);
+        this.progress = progress;
+
+        if (source.getBitDepth() == 16 || source.getMax() <= source.getMin()) {
+            this.offset = 0;
+            this.scale = 1;
+        } else {
+            this.offset = source.getMin();
+            this.scale = 65535.0 / (source.getMax() - source.getMin());
+        }
+    }
+
+    /**
+     * Write the hdf5 file. The file is written to a temporary file and moved in place when complete.
+     *
+     * @param file hdf5 file
+     * @throws IOException if the file cannot be written or the export is interrupted
+     */
+    void write(File file) throws IOException {
+        File temporary = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".part");
+        IHDF5Writer writer = HDF5Factory.configure(temporary).overwrite().writer();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+        long sta = System.currentTimeMillis();
+        try {
+            writer.float64().writeMatrix("s00/resolutions", toDouble(settings.getResolutions()));
+            writer.int32().writeMatrix("s00/subdivisions", settings.getSubdivisions());
+
+            for (int level = 0; level < settings.getNumLevels(); level++) {
+                writeLevel(writer, executor, level);
+            }
+        } finally {
+            executor.shutdownNow();
+            writer.close();
+        }
+
+        try {
+            Files.move(temporary.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        progress.out().println("hdf5 export done in " + format((System.currentTimeMillis() - sta) / 1000.0) + " s");
+    }
+
+    private void writeLevel(IHDF5Writer writer, ExecutorService executor, final int level) throws IOException {
+        final int[] factor = settings.getResolutions()[level];
+        final int[] block = settings.getSubdivisions()[level];
+        final long[] dimensions = getDimensions(level);
+        final String path = "t00000/s00/" + level + "/cells";
+
+        HDF5IntStorageFeatures features = (settings.getDeflateLevel() > 0) ?
+                HDF5IntStorageFeatures.createDeflation(settings.getDeflateLevel()) :
+                HDF5IntStorageFeatures.INT_NO_COMPRESSION;
+        writer.int16().createMDArray(path, reverse(dimensions), reverse(block), features);
+
+        long[] grid = new long[3];
+        long total = 1;
+        for (int d = 0; d < 3; d++) {
+            grid[d] = (dimensions[d] + block[d] - 1) / block[d];
+            total *= grid[d];
+        }
+
+        long sta = System.currentTimeMillis();
+        CompletionService<Block> completion = new ExecutorCompletionService<>(executor);
+        int limit = workers * QUEUE_PER_WORKER;
+        long submitted = 0;
+        long written = 0;
+
+        try {
+            while (written < total) {
+                while (submitted < total && submitted - written < limit) {
+                    final long[] min = new long[3];
+                    long index = submitted++;
+                    for (int d = 0; d < 3; d++) {
+                        min[d] = (index % grid[d]) * block[d];
+                        index /= grid[d];
+                    }
+
+                    completion.submit(new Callable<Block>() {
+                        @Override
+                        public Block call() {
+                            return computeBlock(min, block, dimensions, factor);
+                        }
+                    });
+                }
+
+                Block result = completion.take().get();
+                writer.int16().writeMDArrayBlockWithOffset(path, result.data, reverse(result.min));
+                written++;
+                progress.setProgress((level + (double) written / total) / settings.getNumLevels());
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("The hdf5 export was interrupted.");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compute the blocks of level " + level, e.getCause());
+        }
+
+        double seconds = Math.max(1, System.currentTimeMillis() - sta) / 1000.0;
+        double megaBytes = dimensions[0] * dimensions[1] * dimensions[2] * 2 / 1e6;
+        progress.out().println("level " + level + ": " + dimensions[0] + "x" + dimensions[1] + "x" + dimensions[2] +
+                ", " + total + " blocks, " + format(seconds) + " s, " + format(megaBytes / seconds) + " MB/s");
+    }
+
+    /**
+     * Compute the voxels of a block of a mipmap level.
+     */
+    private Block computeBlock(long[] min, int[] block, long[] dimensions, int[] factor) {
+        long[] sourceDimensions = source.getDimensions();
+        int[] size = new int[3];
+        for (int d = 0; d < 3; d++) {
+            size[d] = (int) Math.min(block[d], dimensions[d] - min[d]);
+        }
+
+        short[] data = new short[size[0] * size[1] * size[2]];
+        int i = 0;
+        for (int z = 0; z < size[2]; z++) {
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    long sx = (min[0] + x) * factor[0];
+                    long sy = (min[1] + y) * factor[1];
+                    long sz = (min[2] + z) * factor[2];
+
+                    double value;
+                    if (settings.isAveraging()) {
+                        double sum = 0;
+                        int n = 0;
+                        for (long zz = sz; zz < Math.min(sz + factor[2], sourceDimensions[2]); zz++) {
+                            for (long yy = sy; yy < Math.min(sy + factor[1], sourceDimensions[1]); yy++) {
+                                for (long xx = sx; xx < Math.min(sx + factor[0], sourceDimensions[0]); xx++) {
+                                    sum += source.getRealDouble(xx + sourceDimensions[0] * (yy + sourceDimensions[1] * zz));
+                                    n++;
+                                }
+                            }
+                        }
+                        value = sum / Math.max(1, n);
+                    } else {
+                        value = source.getRealDouble(sx + sourceDimensions[0] * (sy + sourceDimensions[1] * sz));
+                    }
+
+                    double scaled = (value - offset) * scale;
+                    data[i++] = (short) Math.round(Math.max(0, Math.min(65535, scaled)));
+                }
+            }
+        }
+
+        return new Block(min, new MDShortArray(data, new int[]{size[2], size[1], size[0]}));
+    }
+
+    /**
+     * @return dimensions (x, y, z) of a mipmap level
+     */
+    long[] getDimensions(int level) {
+        long[] dimensions = source.getDimensions();
+        int[] factor = settings.getResolutions()[level];
+        for (int d = 0; d < 3; d++) {
+            dimensions[d] = Math.max(1, dimensions[d] / factor[d]);
+        }
+
+        return dimensions;
+    }
+
+    private static double[][] toDouble(int[][] values) {
+        double[][] result = new double[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = new double[values[i].length];
+            for (int j = 0; j < values[i].length; j++) {
+                result[i][j] = values[i][j];
+            }
+        }
+
+        return result;
+    }
+
+    private static long[] reverse(long[] array) {
+        long[] reversed = new long[array.length];
+        for (int i = 0; i < array.length; i++) {
+            reversed[i] = array[array.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    private static int[] reverse(int[] array) {
+        int[] reversed = new int[array.length];
+        for (int i = 0; i < array.length; i++) {
+            reversed[i] = array[array.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+    /**
+     * Computed block of a mipmap level
+     */
+    private static class Block {
+        private final long[] min;
+        private final MDShortArray data;
+
+        Block(long[] min, MDShortArray data) {
+            this.min = min;
+            this.data = data;
+        }
+    }
+}
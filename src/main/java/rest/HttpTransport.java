@@ -0,0 +1,354 @@
+package rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP transport of the {@link AllenFile}s.
+ *
+ * All requests use the same settings:
+ *  - connect and read timeouts ({@link #setTimeouts(int, int)})
+ *  - gzip compression of the responses (transparently decompressed)
+ *  - retries of failed requests (connection errors, 5xx and 429 responses, errors while reading
+ *    the first {@link #BUFFER_LENGTH} bytes of the body) with exponential backoff and full jitter;
+ *    a Retry-After header is respected ({@link #setRetries(int, long)})
+ *  - only 2xx and 304 responses are successful (redirects that are not followed are failures)
+ *  - conditional requests with the validators (ETag, Last-Modified) of a cached copy
+ *  - range requests ({@link #getRange(URL, long, long, String)}) to resume partial downloads
+ *
+ * The connections are kept alive and pooled per host by the JDK, as long as the response
+ * bodies are read and closed (and the connections are not disconnected). The number of
+ * idle connections kept in the pool matches the {@link ConnectionLimiter}.
+ *
+ * @author Felix Meyenhofer
+ */
+class HttpTransport {
+
+    /** Default connect timeout [ms] */
+    static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    /** Default read timeout [ms] */
+    static final int DEFAULT_READ_TIMEOUT = 60000;
+
+    /** Default number of attempts per request */
+    static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    /** Default delay before the first retry [ms] (doubled for each further retry) */
+    static final long DEFAULT_BACKOFF = 500;
+
+    /** Upper bound of the delay between two attempts [ms] */
+    private static final long MAX_BACKOFF = 30000;
+
+    /** Number of bytes of the body that are read within the retries (small bodies are read completely) */
+    static final int BUFFER_LENGTH = 1 << 20;
+
+    private static volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private static volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private static volatile long backoff = DEFAULT_BACKOFF;
+
+    private static final Random random = new Random();
+
+    static {
+        // Size of the keep-alive pool (only effective if set before the first connection)
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    Integer.toString(Math.max(5, ConnectionLimiter.getMaxConnectionsPerHost())));
+        }
+    }
+
+
+    private HttpTransport() {}
+
+    /**
+     * @param connect timeout to establish a connection [ms]
+     * @param read timeout waiting for data [ms]
+     */
+    static void setTimeouts(int connect, int read) {
+        if (connect < 0 || read < 0) {
+            throw new IllegalArgumentException("The timeouts cannot be negative.");
+        }
+        connectTimeout = connect;
+        readTimeout = read;
+    }
+
+    /**
+     * @param attempts maximum number of attempts per request (at least 1)
+     * @param delay before the first retry [ms]
+     */
+    static void setRetries(int attempts, long delay) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed, not " + attempts);
+        }
+        maxAttempts = attempts;
+        backoff = Math.max(0, delay);
+    }
+
+    /**
+     * Send a GET request
+     *
+     * @param url resource
+     * @return response (has to be closed)
+     * @throws IOException if the request fails after all the attempts
+     */
+    static Response get(URL url) throws IOException {
+        return get(url, null, null);
+    }
+
+    /**
+     * Send a (conditional) GET request
+     *
+     * @param url resource
+     * @param etag of the cached copy (null if unknown)
+     * @param lastModified of the cached copy (null if unknown)
+     * @return response (has to be closed), check {@link Response#isNotModified()}
+     * @throws IOException if the request fails after all the attempts
+     */
+    static Response get(URL url, String etag, String lastModified) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Accept-Encoding", "gzip");
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+
+        return send(url, headers);
+    }
+
+    /**
+     * Send a GET request for a byte range of the content. The content is requested
+     * uncompressed, so that the byte positions refer to the stored file.
+     *
+     * @param url resource
+     * @param first position of the first byte
+     * @param last position of the last byte (inclusive, -1 for the end of the content)
+     * @param validator ETag or Last-Modified date of the partial copy (null if unknown). If the
+     *                  resource changed in the meantime, the server sends the whole content (200)
+     * @return response (has to be closed), check {@link Response#isPartial()}
+     * @throws IOException if the request fails after all the attempts
+     */
+    static Response getRange(URL url, long first, long last, String validator) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Accept-Encoding", "identity");
+        headers.put("Range", "bytes=" + first + "-" + ((last < 0) ? "" : Long.toString(last)));
+        if (validator != null) {
+            headers.put("If-Range", validator);
+        }
+
+        return send(url, headers);
+    }
+
+    private static Response send(URL url, Map<String, String> headers) throws IOException {
+        IOException failure = null;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            long retryAfter = 0;
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            boolean retry = true;
+            try {
+                int status = connection.getResponseCode();
+                if ((status >= 200 && status < 300) || status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return new Response(connection, status);
+                }
+
+                failure = new IOException("HTTP " + status + " (" + connection.getResponseMessage() + ") for " + url);
+                retry = (status == 429) || (status >= 500);
+                retryAfter = parseRetryAfter(connection.getHeaderField("Retry-After"));
+                discard(connection);
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (!retry) {
+                throw failure;
+            }
+
+            if (attempt < maxAttempts) {
+                sleep(Math.max(retryAfter, getDelay(attempt)));
+            }
+        }
+
+        throw new IOException("Request failed after " + maxAttempts + " attempt(s): " + url, failure);
+    }
+
+    /**
+     * Full jitter: a random delay between 0 and the exponential backoff
+     */
+    private static long getDelay(int attempt) {
+        long delay = Math.min(MAX_BACKOFF, backoff << Math.min(attempt - 1, 20));
+        synchronized (random) {
+            return (long) (random.nextDouble() * delay);
+        }
+    }
+
+    private static long parseRetryAfter(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.min(MAX_BACKOFF, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a request.");
+        }
+    }
+
+    /**
+     * Read and close the error body, so that the connection can be reused
+     */
+    private static void discard(HttpURLConnection connection) {
+        InputStream is = connection.getErrorStream();
+        if (is == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            while (is.read(buffer) != -1) {
+                // drain
+            }
+            is.close();
+        } catch (IOException e) {
+            // the connection is not reused
+        }
+    }
+
+
+    /**
+     * Response of a GET request
+     */
+    static class Response implements Closeable {
+        private final int status;
+        private final InputStream body;
+        private final long contentLength;
+        private final String etag;
+        private final String lastModified;
+        private final boolean acceptsRanges;
+
+        /**
+         * Constructor. The beginning of the body (up to {@link #BUFFER_LENGTH} bytes) is read
+         * right away, so that a failure while reading it is retried by {@link #send}.
+         */
+        Response(HttpURLConnection connection, int status) throws IOException {
+            this.status = status;
+            this.etag = connection.getHeaderField("ETag");
+            this.lastModified = connection.getHeaderField("Last-Modified");
+            this.acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                this.body = null;
+                this.contentLength = 0;
+            } else if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                this.body = buffer(new GZIPInputStream(connection.getInputStream(), 65536));
+                this.contentLength = -1;
+            } else {
+                this.body = buffer(connection.getInputStream());
+                this.contentLength = connection.getContentLengthLong();
+            }
+        }
+
+        /**
+         * Read the beginning of a body into memory
+         *
+         * @return the whole body (if it is small) or the buffered beginning followed by the rest of the stream
+         */
+        private static InputStream buffer(InputStream is) throws IOException {
+            byte[] buffer = new byte[8192];
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            try {
+                int len;
+                while (head.size() < BUFFER_LENGTH &&
+                        (len = is.read(buffer, 0, Math.min(buffer.length, BUFFER_LENGTH - head.size()))) != -1) {
+                    head.write(buffer, 0, len);
+                }
+
+                if (head.size() < BUFFER_LENGTH) {
+                    is.close();
+                    return new ByteArrayInputStream(head.toByteArray());
+                }
+            } catch (IOException e) {
+                is.close();
+                throw e;
+            }
+
+            return new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), is);
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        boolean isNotModified() {
+            return status == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * @return true if the response contains the requested range (206) rather than the whole content
+         */
+        boolean isPartial() {
+            return status == HttpURLConnection.HTTP_PARTIAL;
+        }
+
+        /**
+         * @return true if the server announced that it answers range requests
+         */
+        boolean acceptsRanges() {
+            return acceptsRanges;
+        }
+
+        /**
+         * @return (decompressed) content
+         */
+        InputStream getBody() {
+            return body;
+        }
+
+        /**
+         * @return number of bytes of the content (-1 if unknown, e.g. compressed)
+         */
+        long getContentLength() {
+            return contentLength;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package rest;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Uncompressed, memory-mapped copy of a reference volume.
+ *
+ * Decoding the (gzip compressed) nrrd files takes long and holds the whole volume on
+ * the heap. The volume is therefore converted once into a raw file in the cache, which
+ * is then mapped into memory. Opening it takes no time and the pages are shared
+ * (through the page cache of the OS) by all the volumes and JVMs that map the same file.
+ *
+ * Layout (little endian):
+ *
+ *      [header]    {@link #HEADER_SIZE} bytes (one page)
+ *                  int magic, int version, int bit depth (8, 16 or 32),
+ *                  long width, long height, long depth,
+ *                  double pixel width, double pixel height, double pixel depth,
+ *                  double min, double max, int unit length, byte[] unit (utf-8)
+ *      [data]      voxels in x, y, z order (unsigned byte, unsigned short or float)
+ *
+ * The volume is mapped read-only, since it is shared (see {@link ReferenceVolumeRegistry}).
+ * Writing to it throws an exception; copy the data to modify it.
+ *
+ * @author Felix Meyenhofer
+ */
+class MappedVolume {
+
+    /** File extension of the raw volume (next to the nrrd file) */
+    static final String FILE_EXTENSION = ".raw";
+
+    /** The voxel data starts at a page boundary */
+    static final int HEADER_SIZE = 4096;
+
+    private static final int MAGIC = 0x41424156; // "ABAV"
+    private static final int VERSION = 1;
+
+    /** Size of the mapped segments (a single buffer cannot exceed 2 GB) */
+    private static final int SEGMENT_SHIFT = 30;
+
+    private final File file;
+    private final int bitDepth;
+    private final long[] dimensions;
+    private final double[] voxelSize;
+    private final String unit;
+    private final double min;
+    private final double max;
+    private final ByteBuffer[] segments;
+
+
+    private MappedVolume(File file, int bitDepth, long[] dimensions, double[] voxelSize, String unit,
+                         double min, double max, ByteBuffer[] segments) {
+        this.file = file;
+        this.bitDepth = bitDepth;
+        this.dimensions = dimensions;
+        this.voxelSize = voxelSize;
+        this.unit = unit;
+        this.min = min;
+        this.max = max;
+        this.segments = segments;
+    }
+
+    /**
+     * Map a raw volume
+     *
+     * @param file raw volume
+     * @return mapped volume
+     * @throws IOException if the file cannot be mapped, or is incomplete or of another version
+     */
+    static MappedVolume open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("The file " + file + " is not a raw volume (version " + VERSION + ").");
+            }
+
+            int bitDepth = header.getInt();
+            long[] dimensions = new long[]{header.getLong(), header.getLong(), header.getLong()};
+            double[] voxelSize = new double[]{header.getDouble(), header.getDouble(), header.getDouble()};
+            double min = header.getDouble();
+            double max = header.getDouble();
+            byte[] unit = new byte[header.getInt()];
+            header.get(unit);
+
+            long size = dimensions[0] * dimensions[1] * dimensions[2] * (bitDepth / 8);
+            if (channel.size() != HEADER_SIZE + size) {
+                throw new IOException("The raw volume " + file + " is incomplete.");
+            }
+
+            long segmentSize = 1L << SEGMENT_SHIFT;
+            ByteBuffer[] segments = new ByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+            for (int s = 0; s < segments.length; s++) {
+                long offset = s * segmentSize;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + offset,
+                        Math.min(segmentSize, size - offset)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            return new MappedVolume(file, bitDepth, dimensions, voxelSize,
+                    new String(unit, StandardCharsets.UTF_8), min, max, segments);
+        } finally {
+            channel.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * Convert an image into a raw volume.
+     * The volume is written to a temporary file that is moved in place once it is complete.
+     *
+     * @param imp 8-, 16- or 32-bit gray scale image stack
+     * @param file raw volume
+     * @throws IOException if the file cannot be written or the image type is not supported
+     */
+    static void write(ImagePlus imp, File file) throws IOException {
+        int bitDepth = imp.getBitDepth();
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new IOException("Unsupported image type for a raw volume (bit depth " + bitDepth + ").");
+        }
+
+        ImageStack stack = imp.getStack();
+        double[] range = getRange(stack);
+        Calibration calibration = imp.getCalibration();
+        byte[] unit = (calibration.getUnit() == null ? "" : calibration.getUnit()).getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(bitDepth);
+        header.putLong(stack.getWidth());
+        header.putLong(stack.getHeight());
+        header.putLong(stack.getSize());
+        header.putDouble(calibration.pixelWidth);
+        header.putDouble(calibration.pixelHeight);
+        header.putDouble(calibration.pixelDepth);
+        header.putDouble(range[0]);
+        header.putDouble(range[1]);
+        header.putInt(unit.length);
+        header.put(unit);
+        header.position(0);
+        header.limit(HEADER_SIZE);
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporary = Files.createTempFile(directory.toPath(), "." + file.getName(), ".part").toFile();
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        FileChannel channel = raf.getChannel();
+
+        try {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            int plane = stack.getWidth() * stack.getHeight();
+            ByteBuffer buffer = ByteBuffer.allocate(plane * (bitDepth / 8)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int z = 1; z <= stack.getSize(); z++) {
+                buffer.clear();
+                Object pixels = stack.getPixels(z);
+                if (bitDepth == 8) {
+                    buffer.put((byte[]) pixels);
+                } else if (bitDepth == 16) {
+                    buffer.asShortBuffer().put((short[]) pixels);
+                } else {
+                    buffer.asFloatBuffer().put((float[]) pixels);
+                }
+                buffer.position(0);
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            raf.close();
+            Files.deleteIfExists(temporary.toPath());
+            throw e;
+        }
+
+        channel.force(false);
+        channel.close();
+        raf.close();
+
+        try {
+            Files.move(temporary.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static double[] getRange(ImageStack stack) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            int n = stack.getWidth() * stack.getHeight();
+            for (int i = 0; i < n; i++) {
+                double value;
+                if (pixels instanceof byte[]) {
+                    value = ((byte[]) pixels)[i] & 0xff;
+                } else if (pixels instanceof short[]) {
+                    value = ((short[]) pixels)[i] & 0xffff;
+                } else {
+                    value = ((float[]) pixels)[i];
+                }
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+
+        return new double[]{min, max};
+    }
+
+    /**
+     * Wrap the mapped data into an image.
+     * The type corresponds to the type of the original image:
+     * 8-bit -> UnsignedByteType, 16-bit -> UnsignedShortType, 32-bit -> FloatType.
+     *
+     * @return image backed by the mapped file
+     */
+    @SuppressWarnings("unchecked")
+    <T extends NumericType<T> & NativeType<T>> RandomAccessibleInterval<T> getRai() {
+        RandomAccessibleInterval rai;
+        switch (bitDepth) {
+            case 8:
+                rai = ArrayImgs.unsignedBytes(new MappedByteAccess(segments), dimensions);
+                break;
+            case 16:
+                rai = ArrayImgs.unsignedShorts(new MappedShortAccess(segments), dimensions);
+                break;
+            default:
+                rai = ArrayImgs.floats(new MappedFloatAccess(segments), dimensions);
+                break;
+        }
+
+        return (RandomAccessibleInterval<T>) rai;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getBitDepth() {
+        return bitDepth;
+    }
+
+    long[] getDimensions() {
+        return dimensions.clone();
+    }
+
+    double[] getVoxelSize() {
+        return voxelSize.clone();
+    }
+
+    String getUnit() {
+        return unit;
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    /**
+     * Read a voxel (thread safe, absolute access to the mapped data)
+     *
+     * @param index linear index of the voxel (x + width * (y + height * z))
+     * @return voxel value
+     */
+    double getRealDouble(long index) {
+        long position = index * (bitDepth / 8);
+        ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        int offset = (int) (position & ((1L << SEGMENT_SHIFT) - 1));
+
+        switch (bitDepth) {
+            case 8:
+                return segment.get(offset) & 0xff;
+            case 16:
+                return segment.getShort(offset) & 0xffff;
+            default:
+                return segment.getFloat(offset);
+        }
+    }
+
+    /**
+     * @return size of the voxel data in bytes
+     */
+    long getDataSize() {
+        return dimensions[0] * dimensions[1] * dimensions[2] * (bitDepth / 8);
+    }
+
+
+    /**
+     * Byte access spanning multiple mapped segments
+     */
+    private static class MappedByteAccess implements ByteAccess {
+
+        private static final int SHIFT = SEGMENT_SHIFT;
+        private static final int MASK = (1 << SHIFT) - 1;
+
+        private final ByteBuffer[] segments;
+
+        MappedByteAccess(ByteBuffer[] segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public byte getValue(int index) {
+            return segments[index >>> SHIFT].get(index & MASK);
+        }
+
+        @Override
+        public void setValue(int index, byte value) {
+            segments[index >>> SHIFT].put(index & MASK, value);
+        }
+    }
+
+    /**
+     * Short access spanning multiple mapped segments
+     */
+    private static class MappedShortAccess implements ShortAccess {
+
+        private static final int SHIFT = SEGMENT_SHIFT - 1;
+        private static final int MASK = (1 << SHIFT) - 1;
+
+        private final ShortBuffer[] segments;
+
+        MappedShortAccess(ByteBuffer[] segments) {
+            this.segments = new ShortBuffer[segments.length];
+            for (int s = 0; s < segments.length; s++) {
+                this.segments[s] = segments[s].asShortBuffer();
+            }
+        }
+
+        @Override
+        public short getValue(int index) {
+            return segments[index >>> SHIFT].get(index & MASK);
+        }
+
+        @Override
+        public void setValue(int index, short value) {
+            segments[index >>> SHIFT].put(index & MASK, value);
+        }
+    }
+
+    /**
+     * Float access spanning multiple mapped segments
+     */
+    private static class MappedFloatAccess implements FloatAccess {
+
+        private static final int SHIFT = SEGMENT_SHIFT - 2;
+        private static final int MASK = (1 << SHIFT) - 1;
+
+        private final FloatBuffer[] segments;
+
+        MappedFloatAccess(ByteBuffer[] segments) {
+            this.segments = new FloatBuffer[segments.length];
+            for (int s = 0; s < segments.length; s++) {
+                this.segments[s] = segments[s].asFloatBuffer();
+            }
+        }
+
+        @Override
+        public float getValue(int index) {
+            return segments[index >>> SHIFT].get(index & MASK);
+        }
+
+        @Override
+        public void setValue(int index, float value) {
+            segments[index >>> SHIFT].put(index & MASK, value);
+        }
+    }
+}
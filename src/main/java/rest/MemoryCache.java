@@ -0,0 +1,129 @@
+package rest;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, least recently used (LRU) in-memory cache.
+ * The values are held by {@link SoftReference}s, so the garbage collector can
+ * reclaim them under memory pressure before the size bound is reached.
+ *
+ * Hits, misses and evictions (size bound and garbage collection) are counted.
+ *
+ * @author Felix Meyenhofer
+ */
+class MemoryCache<K, V> {
+
+    /** Maximum number of entries */
+    private int capacity;
+
+    /** Entries in access order (the eldest entry is the least recently used) */
+    private final LinkedHashMap<K, SoftReference<V>> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of entries
+     */
+    MemoryCache(int capacity) {
+        setCapacity(capacity);
+        this.entries = new LinkedHashMap<K, SoftReference<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, SoftReference<V>> eldest) {
+                if (size() > MemoryCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The cache capacity has to be at least 1, not " + capacity);
+        }
+
+        this.capacity = capacity;
+
+        if (entries != null) {
+            Iterator<K> keys = entries.keySet().iterator();
+            while ((entries.size() > capacity) && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+                evictions++;
+            }
+        }
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get a value
+     *
+     * @param key of the value
+     * @return value or null if it is not (or no longer) in memory
+     */
+    synchronized V get(K key) {
+        SoftReference<V> reference = entries.get(key);
+        V value = (reference == null) ? null : reference.get();
+
+        if (value == null) {
+            if (reference != null) {
+                // reclaimed by the garbage collector
+                entries.remove(key);
+                evictions++;
+            }
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return value;
+    }
+
+    synchronized void put(K key, V value) {
+        entries.put(key, new SoftReference<>(value));
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries: " + entries.size() + "/" + capacity +
+                ", hits: " + hits +
+                ", misses: " + misses +
+                ", evictions: " + evictions;
+    }
+}
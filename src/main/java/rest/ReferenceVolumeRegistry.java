@@ -0,0 +1,248 @@
+package rest;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.SoftReference;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide registry of the reference volumes.
+ * There is one shared (read-only) {@link AllenRefVol} per modality and resolution.
+ *
+ * The volumes are reference counted: {@link #acquire} increments the count, {@link #release}
+ * decrements it. Volumes that are in use are held strongly, unused volumes only by a
+ * {@link SoftReference}, so that the garbage collector can reclaim them under memory pressure
+ * and they are reused if they are requested again before that (unless their files were evicted
+ * from the cache in the meantime).
+ *
+ * A volume is loaded outside of the registry lock (the download and conversion can take minutes),
+ * so that requests for other volumes and releases are not blocked. Concurrent requests for the
+ * volume that is loading wait for the same load.
+ *
+ * @author Felix Meyenhofer
+ */
+class ReferenceVolumeRegistry {
+
+    /**
+     * Creates a volume that is not in the registry
+     */
+    interface Loader {
+        AllenRefVol load() throws TransformerException, IOException, URISyntaxException;
+    }
+
+    private static class Entry {
+        private final String key;
+        private AllenRefVol volume;
+        private SoftReference<AllenRefVol> reference;
+        private FutureTask<AllenRefVol> loading;
+        private int count;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        AllenRefVol get() {
+            if (volume != null) {
+                return volume;
+            }
+
+            return (reference == null) ? null : reference.get();
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private long hits;
+    private long misses;
+
+
+    private static String createKey(Atlas.Modality modality, Atlas.VoxelResolution resolution) {
+        return modality.name() + "/" + resolution.name();
+    }
+
+    /**
+     * Get a shared volume and increment its reference count.
+     *
+     * @param modality of the volume
+     * @param resolution of the volume
+     * @param loader to create the volume if it is not in the registry
+     * @return shared volume (call {@link #release(AllenRefVol)} when it is no longer used)
+     * @throws TransformerException
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    AllenRefVol acquire(Atlas.Modality modality, Atlas.VoxelResolution resolution, final Loader loader)
+            throws TransformerException, IOException, URISyntaxException {
+        String key = createKey(modality, resolution);
+        Entry entry;
+        FutureTask<AllenRefVol> task;
+        boolean load = false;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+            }
+
+            AllenRefVol volume = entry.get();
+            if (volume != null && entry.volume == null && !volume.isCached()) {
+                // The files of the unused volume were evicted from the cache
+                entry.reference = null;
+                volume = null;
+            }
+            if (volume != null) {
+                hits++;
+                entry.volume = volume;
+                entry.reference = null;
+                entry.count++;
+
+                return volume;
+            }
+
+            if (entry.loading == null) {
+                misses++;
+                entry.loading = new FutureTask<>(new Callable<AllenRefVol>() {
+                    @Override
+                    public AllenRefVol call() throws Exception {
+                        return loader.load();
+                    }
+                });
+                load = true;
+            } else {
+                hits++;
+            }
+            task = entry.loading;
+
+            // The reference is counted while the volume loads
+            entry.count++;
+        }
+
+        if (load) {
+            task.run();
+        }
+
+        AllenRefVol volume;
+        try {
+            volume = task.get();
+        } catch (InterruptedException e) {
+            abandon(entry, task);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the reference volume " + key);
+        } catch (ExecutionException e) {
+            abandon(entry, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof TransformerException) {
+                throw (TransformerException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof URISyntaxException) {
+                throw (URISyntaxException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Could not load the reference volume " + key, cause);
+        }
+
+        synchronized (this) {
+            if (entry.loading == task) {
+                entry.loading = null;
+                entry.volume = volume;
+                entry.reference = null;
+            }
+        }
+
+        return volume;
+    }
+
+    /**
+     * Give up the reference of a request whose volume could not be loaded
+     * (the next request loads it again).
+     */
+    private synchronized void abandon(Entry entry, FutureTask<AllenRefVol> task) {
+        entry.count = Math.max(0, entry.count - 1);
+        if (entry.loading == task) {
+            entry.loading = null;
+        }
+    }
+
+    /**
+     * Decrement the reference count of a volume. A volume that is no longer
+     * referenced closes its hdf5 reader and can be reclaimed by the garbage collector.
+     *
+     * @param volume obtained with {@link #acquire}
+     */
+    void release(AllenRefVol volume) {
+        if (volume == null) {
+            return;
+        }
+
+        boolean unused = false;
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (entry.volume == volume) {
+                    if (--entry.count <= 0) {
+                        entry.count = 0;
+                        entry.reference = new SoftReference<>(volume);
+                        entry.volume = null;
+                        unused = true;
+                    }
+                    break;
+                }
+            }
+        }
+
+        // Outside of the registry lock (the volume may be busy with its hdf5 conversion)
+        if (unused) {
+            volume.closeHdf5Volume();
+        }
+    }
+
+    /**
+     * @return number of bytes of voxel data held by the (not yet reclaimed) volumes
+     */
+    synchronized long getBytesHeld() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            AllenRefVol volume = entry.get();
+            if (volume != null) {
+                bytes += volume.getBytesMapped();
+            }
+        }
+
+        return bytes;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("hits: ").append(hits)
+                .append(", misses: ").append(misses)
+                .append(", bytes held: ").append(getBytesHeld());
+
+        for (Entry entry : entries.values()) {
+            String state = (entry.loading != null) ? "loading (" + entry.count + ")" :
+                    (entry.volume != null) ? "in use (" + entry.count + ")" :
+                    (entry.get() != null) ? "unused" : "reclaimed";
+            builder.append("\n\t").append(entry.key).append(": ").append(state);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,468 @@
+package rest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Download of a large file (e.g. a reference volume or a grid) that survives a dropped
+ * connection. The partially written file ({@link CacheIntegrity#getResumableFile(File)}) is kept,
+ * and the next attempt continues where the previous one stopped with HTTP range requests
+ * ({@link HttpTransport#getRange(URL, long, long, String)}). The validator of the response
+ * (ETag or Last-Modified) is sent along, so that a changed resource is downloaded from scratch.
+ *
+ * Optionally, a file can be split into several ranges (segments) that are downloaded in
+ * parallel and stitched together at the end ({@link #setMaxSegments(int)}). The additional
+ * connections are only taken if the {@link ConnectionLimiter} has permits to spare.
+ *
+ * The state of a download is kept next to the temporary file:
+ *
+ *  |- .entries
+ *      |- [entry].part             (segment 0)
+ *      |- [entry].part.1 .. n      (further segments)
+ *      |- [entry].part.resume      (url, validators, length and number of segments)
+ *
+ * Responses that are compressed, of unknown length or without validator cannot be
+ * resumed; they are streamed to the temporary file as a whole.
+ *
+ * @author Felix Meyenhofer
+ */
+class ResumableDownload {
+
+    /** Minimal size of a segment that is downloaded in parallel [bytes] */
+    static final long MIN_SEGMENT_SIZE = 32L * 1024 * 1024;
+
+    private static final String STATE_EXTENSION = ".resume";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_SEGMENTS = "segments";
+
+    /** Maximal number of parallel ranges per file (1: no splitting) */
+    private static volatile int maxSegments = 1;
+
+    /**
+     * Receiver of the download progress
+     */
+    interface Progress {
+        /**
+         * @param bytes number of bytes that were just received (called from several threads)
+         */
+        void received(long bytes);
+    }
+
+    private final URL url;
+    private final File temporary;
+    private final File state;
+    private final Progress progress;
+
+    private String etag;
+    private String lastModified;
+    private long length = -1;
+    private int segments = 1;
+
+
+    /**
+     * Constructor (reads the state of a previous attempt, if any)
+     *
+     * @param url resource
+     * @param temporary file the content is written to (see {@link CacheIntegrity#getResumableFile(File)})
+     * @param progress receiver of the progress (or null)
+     */
+    ResumableDownload(URL url, File temporary, Progress progress) {
+        this.url = url;
+        this.temporary = temporary;
+        this.state = new File(temporary.getPath() + STATE_EXTENSION);
+        this.progress = progress;
+        readState();
+    }
+
+    /**
+     * @param max maximal number of parallel ranges per file (1 to download every file in one piece)
+     */
+    static void setMaxSegments(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("The number of segments has to be at least 1, not " + max);
+        }
+        maxSegments = max;
+    }
+
+    static int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * @return true if a previous attempt left a partial download that can be resumed
+     */
+    boolean isPartial() {
+        return length > 0;
+    }
+
+    /**
+     * @return number of bytes that are already on disk
+     */
+    long getReceived() {
+        long received = 0;
+        for (int i = 0; i < segments; i++) {
+            received += Math.min(getSegmentFile(i).length(), getSegmentLength(i));
+        }
+
+        return received;
+    }
+
+    /**
+     * @return total number of bytes (-1 if unknown)
+     */
+    long getLength() {
+        return length;
+    }
+
+    String getETag() {
+        return etag;
+    }
+
+    String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Download the content, starting with the response of a plain GET request.
+     * If the response can be resumed, the state is recorded before the content is streamed.
+     *
+     * @param response of the request for the {@link #url} (is closed)
+     * @return CRC32 checksum of the complete temporary file
+     * @throws IOException if the download fails (a resumable download is kept for the next attempt)
+     */
+    long start(HttpTransport.Response response) throws IOException {
+        clear();
+        if (temporary.exists() && !temporary.delete()) {
+            response.close();
+            throw new IOException("Could not remove the temporary file '" + temporary.getAbsolutePath() + "'.");
+        }
+
+        long contentLength = response.getContentLength();
+        boolean validated = (response.getETag() != null) || (response.getLastModified() != null);
+        if (contentLength <= 0 || !response.acceptsRanges() || !validated) {
+            try {
+                return stream(response.getBody(), contentLength);
+            } finally {
+                response.close();
+            }
+        }
+
+        etag = response.getETag();
+        lastModified = response.getLastModified();
+        length = contentLength;
+        segments = (int) Math.max(1, Math.min(maxSegments, length / MIN_SEGMENT_SIZE));
+        writeState();
+
+        try {
+            if (segments == 1) {
+                append(response.getBody(), temporary, length);
+            }
+        } finally {
+            response.close();
+        }
+
+        long crc = resume();
+        if (crc < 0) {
+            throw new IOException("The content of " + url + " changed during the download.");
+        }
+
+        return crc;
+    }
+
+    /**
+     * Download the missing ranges of a partial download (in parallel, if there are several
+     * segments and the {@link ConnectionLimiter} has permits to spare) and stitch them together.
+     *
+     * @return CRC32 checksum of the complete temporary file, or -1 if the resource changed
+     *         in the meantime (the partial download is discarded)
+     * @throws IOException if the download fails (the partial download is kept for the next attempt)
+     */
+    long resume() throws IOException {
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < segments; i++) {
+            File file = getSegmentFile(i);
+            if (file.length() > getSegmentLength(i) && !file.delete()) {
+                throw new IOException("Could not remove the corrupt segment '" + file.getAbsolutePath() + "'.");
+            }
+            if (file.length() < getSegmentLength(i)) {
+                pending.add(i);
+            }
+        }
+
+        List<Semaphore> permits = new ArrayList<>();
+        try {
+            while (permits.size() < pending.size() - 1) {
+                Semaphore permit = ConnectionLimiter.tryAcquire(url);
+                if (permit == null) {
+                    break;
+                }
+                permits.add(permit);
+            }
+
+            if (permits.isEmpty()) {
+                for (int i : pending) {
+                    fetchSegment(i);
+                }
+            } else {
+                fetchSegments(pending, permits.size() + 1);
+            }
+        } catch (ResourceChangedException e) {
+            clear();
+            return -1;
+        } finally {
+            for (Semaphore permit : permits) {
+                permit.release();
+            }
+        }
+
+        assemble();
+
+        return CacheIntegrity.checksum(temporary);
+    }
+
+    /**
+     * Remove the state and the segments of the download
+     */
+    void clear() {
+        for (int i = 1; i < segments; i++) {
+            getSegmentFile(i).delete();
+        }
+        state.delete();
+        etag = null;
+        lastModified = null;
+        length = -1;
+        segments = 1;
+    }
+
+    private void fetchSegments(List<Integer> pending, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (final int i : pending) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    fetchSegment(i);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while downloading " + url);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not download a range of " + url, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Request the missing part of a segment and append it to the segment file
+     */
+    private void fetchSegment(int i) throws IOException {
+        File file = getSegmentFile(i);
+        long missing = getSegmentLength(i) - file.length();
+        if (missing <= 0) {
+            return;
+        }
+
+        long first = getSegmentStart(i) + file.length();
+        long last = getSegmentStart(i) + getSegmentLength(i) - 1;
+        String validator = (etag != null) ? etag : lastModified;
+
+        HttpTransport.Response response = HttpTransport.getRange(url, first, last, validator);
+        try {
+            if (!response.isPartial()) {
+                throw new ResourceChangedException(url);
+            }
+            append(response.getBody(), file, missing);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Append the received bytes to a file, the bytes on disk are kept if the stream breaks off.
+     */
+    private void append(InputStream is, File file, long expected) throws IOException {
+        OutputStream os = new FileOutputStream(file, true);
+        long received = copy(is, os, expected);
+        os.close();
+
+        if (received < expected) {
+            throw new IOException("Incomplete download of " + url + " (missing " + (expected - received) +
+                    " bytes), it will be resumed with the next attempt.");
+        }
+    }
+
+    /**
+     * Write a response that cannot be resumed to the temporary file
+     */
+    private long stream(InputStream is, long expected) throws IOException {
+        CheckedOutputStream os = new CheckedOutputStream(new FileOutputStream(temporary), new CRC32());
+        long received = copy(is, os, Long.MAX_VALUE);
+        os.close();
+
+        if ((expected >= 0) && (received != expected)) {
+            if (!temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+            throw new IOException("Incomplete download of " + url + " (received " + received +
+                    " of " + expected + " bytes)");
+        }
+
+        return os.getChecksum().getValue();
+    }
+
+    private long copy(InputStream is, OutputStream os, long limit) throws IOException {
+        byte[] buffer = new byte[65536];
+        long received = 0;
+        int len;
+        while (received < limit && (len = is.read(buffer, 0, (int) Math.min(buffer.length, limit - received))) != -1) {
+            os.write(buffer, 0, len);
+            received += len;
+            if (progress != null) {
+                progress.received(len);
+            }
+        }
+
+        return received;
+    }
+
+    /**
+     * Append the segments to the first one (the temporary file)
+     */
+    private void assemble() throws IOException {
+        if (segments > 1) {
+            FileChannel target = new FileOutputStream(temporary, true).getChannel();
+            for (int i = 1; i < segments; i++) {
+                File file = getSegmentFile(i);
+                FileChannel source = new FileInputStream(file).getChannel();
+                long position = 0;
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                source.close();
+            }
+            target.close();
+        }
+
+        if (temporary.length() != length) {
+            throw new IOException("The assembled download of " + url + " has " + temporary.length() +
+                    " instead of " + length + " bytes.");
+        }
+
+        clear();
+    }
+
+    private File getSegmentFile(int i) {
+        return (i == 0) ? temporary : new File(temporary.getPath() + "." + i);
+    }
+
+    private long getSegmentStart(int i) {
+        return (length / segments) * i;
+    }
+
+    private long getSegmentLength(int i) {
+        return ((i == segments - 1) ? length : getSegmentStart(i + 1)) - getSegmentStart(i);
+    }
+
+    private void writeState() throws IOException {
+        Writer writer = new FileWriter(state);
+        writer.write(KEY_URL + " " + url + "\n");
+        if (etag != null) {
+            writer.write(KEY_ETAG + " " + etag + "\n");
+        }
+        if (lastModified != null) {
+            writer.write(KEY_LAST_MODIFIED + " " + lastModified + "\n");
+        }
+        writer.write(KEY_LENGTH + " " + length + "\n");
+        writer.write(KEY_SEGMENTS + " " + segments + "\n");
+        writer.close();
+    }
+
+    /**
+     * Read the state of a previous attempt. A state that does not match the
+     * url or cannot be resumed (no validator) is discarded.
+     */
+    private void readState() {
+        if (!state.exists()) {
+            return;
+        }
+
+        String source = null;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(state));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length != 2) {
+                    continue;
+                }
+
+                if (parts[0].equals(KEY_URL)) {
+                    source = parts[1];
+                } else if (parts[0].equals(KEY_ETAG)) {
+                    etag = parts[1];
+                } else if (parts[0].equals(KEY_LAST_MODIFIED)) {
+                    lastModified = parts[1];
+                } else if (parts[0].equals(KEY_LENGTH)) {
+                    length = Long.parseLong(parts[1]);
+                } else if (parts[0].equals(KEY_SEGMENTS)) {
+                    segments = Math.max(1, Integer.parseInt(parts[1]));
+                }
+            }
+            reader.close();
+        } catch (IOException | NumberFormatException e) {
+            source = null;
+        }
+
+        if (!url.toString().equals(source) || (etag == null && lastModified == null) || length <= 0) {
+            clear();
+        }
+    }
+
+    /**
+     * The server answered a range request with the whole content, i.e. the resource changed
+     */
+    private static class ResourceChangedException extends IOException {
+        ResourceChangedException(URL url) {
+            super("The content of " + url + " changed since the partial download.");
+        }
+    }
+}
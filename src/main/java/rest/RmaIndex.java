@@ -0,0 +1,151 @@
+package rest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent index of the RMA responses in the {@link AllenCache}.
+ *
+ * The key of an entry is the file name of the original query (see {@link AllenAPI.RMA#url2filename}),
+ * the value is the file name of the cached response, which is the file name of the query with
+ * the adjusted response size. The index is kept in memory and backed by an append-only log
+ * ({@link #FILE_NAME}) with one "key\tfile-name" line per entry. When the same key occurs
+ * several times, the last line wins.
+ *
+ * A cache directory without index (written by earlier versions) is scanned once to build it.
+ *
+ * @author Felix Meyenhofer
+ */
+class RmaIndex {
+
+    /** File name of the index log (in the rma directory) */
+    static final String FILE_NAME = "index.log";
+
+    /** Response size options that are added to a query before it is sent */
+    private static final String OPTIONS_PATTERN = ",rma::options\\[[^\\]]*\\]";
+
+    private static final String SEPARATOR = "\t";
+
+    private final File directory;
+    private final File file;
+    private final Map<String, String> entries = new HashMap<>();
+
+
+    /**
+     * Constructor
+     * Loads the index log, or builds it from the directory content if there is none.
+     *
+     * @param directory rma directory of the cache
+     * @throws IOException if the index cannot be read or written
+     */
+    RmaIndex(File directory) throws IOException {
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+
+        if (file.exists()) {
+            load();
+        } else {
+            rebuild();
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(SEPARATOR);
+            if (parts.length == 2) {
+                entries.put(parts[0], parts[1]);
+            }
+        }
+        reader.close();
+    }
+
+    /**
+     * Build the index from the cached responses. Responses that cannot be
+     * attributed to one query unambiguously are left out (they will be fetched again).
+     */
+    private void rebuild() throws IOException {
+        File[] responses = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File path) {
+                return path.isFile() && path.getName().endsWith(AllenAPI.RMA.FILE_EXTENSION);
+            }
+        });
+
+        Set<String> ambiguous = new HashSet<>();
+        if (responses != null) {
+            for (File response : responses) {
+                String key = createKey(response.getName());
+                if (entries.containsKey(key)) {
+                    ambiguous.add(key);
+                }
+                entries.put(key, response.getName());
+            }
+        }
+
+        for (String key : ambiguous) {
+            entries.remove(key);
+        }
+
+        Writer writer = new FileWriter(file);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writer.write(entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+        }
+        writer.close();
+    }
+
+    /**
+     * Derive the key from the file name of a cached response
+     *
+     * @param filename of the response
+     * @return file name of the query without response size options
+     */
+    private static String createKey(String filename) {
+        return filename.replaceAll(OPTIONS_PATTERN, "");
+    }
+
+    /**
+     * Look up a response
+     *
+     * @param key file name of the query
+     * @return cached response file or null if the query is not in the index
+     */
+    synchronized File get(String key) {
+        String filename = entries.get(key);
+        return (filename == null) ? null : new File(directory, filename);
+    }
+
+    /**
+     * Add a response to the index
+     *
+     * @param key file name of the query
+     * @param response cached response file
+     * @throws IOException if the index log cannot be written
+     */
+    synchronized void put(String key, File response) throws IOException {
+        String filename = response.getName();
+        if (filename.equals(entries.get(key))) {
+            return;
+        }
+
+        entries.put(key, filename);
+
+        Writer writer = new FileWriter(file, true);
+        writer.write(key + SEPARATOR + filename + "\n");
+        writer.close();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
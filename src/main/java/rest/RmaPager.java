@@ -0,0 +1,136 @@
+package rest;
+
+import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fetches large RMA responses page by page (start_row/num_rows), instead of
+ * requesting the total number of rows first and then everything in one response.
+ *
+ * The first page is fetched right away; it tells the total number of rows. The
+ * remaining pages are requested concurrently (within the limits of the {@link ConnectionLimiter}).
+ * Each page is stored in the {@link AllenCache} and handed to the {@link PageHandler} as soon as
+ * it arrives, so that the consumer can start working before the listing is complete.
+ * The pages are handed over one at a time, on the calling thread, in the order they arrive.
+ *
+ * @author Felix Meyenhofer
+ */
+class RmaPager {
+
+    /** Default number of rows per page */
+    static final int DEFAULT_PAGE_SIZE = 2000;
+
+    /** Default number of pages that are requested at the same time */
+    static final int DEFAULT_CONCURRENT_PAGES = 4;
+
+    /**
+     * Consumer of the pages of a response
+     */
+    interface PageHandler {
+        /**
+         * @param startRow first row of the page
+         * @param totalRows total number of rows of the query
+         * @param file cached page (RMA response, readable with the {@link RmaStreamReader})
+         * @throws IOException
+         */
+        void page(int startRow, int totalRows, File file) throws IOException;
+    }
+
+    private final AllenCache cache;
+    private final int pageSize;
+    private final int concurrency;
+
+
+    /**
+     * Constructor
+     *
+     * @param cache to store the pages
+     * @param pageSize number of rows per page
+     * @param concurrency number of pages that are requested at the same time
+     */
+    RmaPager(AllenCache cache, int pageSize, int concurrency) {
+        if (pageSize < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("The page size and concurrency have to be at least 1.");
+        }
+
+        this.cache = cache;
+        this.pageSize = pageSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Fetch all the pages of a query
+     *
+     * @param query RMA query (without options)
+     * @param handler consumer of the pages
+     * @return total number of rows
+     * @throws IOException
+     * @throws TransformerException
+     * @throws URISyntaxException
+     */
+    int fetch(final URL query, PageHandler handler) throws IOException, TransformerException, URISyntaxException {
+        File first = cache.getResponsePage(query, 0, pageSize);
+        int total = RmaStreamReader.readTotalRows(first);
+        handler.page(0, total, first);
+
+        int pages = (total + pageSize - 1) / pageSize;
+        if (pages <= 1) {
+            return total;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, pages - 1));
+        CompletionService<Page> completion = new ExecutorCompletionService<>(executor);
+        for (int p = 1; p < pages; p++) {
+            final int start = p * pageSize;
+            completion.submit(new Callable<Page>() {
+                @Override
+                public Page call() throws IOException, TransformerException, URISyntaxException {
+                    return new Page(start, cache.getResponsePage(query, start, pageSize));
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            for (int p = 1; p < pages; p++) {
+                Page page = completion.take().get();
+                handler.page(page.start, total, page.file);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while fetching the pages of " + query);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not fetch a page of " + query, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return total;
+    }
+
+    /**
+     * Cached page
+     */
+    private static class Page {
+        private final int start;
+        private final File file;
+
+        Page(int start, File file) {
+            this.start = start;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed item of an RMA response, as emitted by the {@link RmaStreamReader}.
+ * Besides the typed fields, the text of all the scalar children of the item
+ * is available with {@link #getValue(String)}.
+ *
+ * @author Felix Meyenhofer
+ */
+public class RmaRecord {
+
+    /** Order of the tsv-* values of the alignment2d element in the row packed matrix */
+    static final int[] ALIGNMENT_2D_INDEX = new int[]{0, 3, 1, 4, 2, 5};
+
+    /** Order of the trv-* values of the alignment3d element in the row packed matrix */
+    static final int[] ALIGNMENT_3D_INDEX = new int[]{0, 4, 8, 1, 5, 9, 2, 6, 10, 3, 7, 11};
+
+    private final Map<String, String> values = new HashMap<>();
+    private double[] alignment2d;
+    private double[] alignment3d;
+
+
+    void setValue(String name, String value) {
+        values.put(name, value);
+    }
+
+    void setAlignment2d(double[] alignment2d) {
+        this.alignment2d = alignment2d;
+    }
+
+    void setAlignment3d(double[] alignment3d) {
+        this.alignment3d = alignment3d;
+    }
+
+    /**
+     * Get the text of a scalar child of the item
+     *
+     * @param tag_name of the child
+     * @return text or null if the item has no such child
+     */
+    public String getValue(String tag_name) {
+        return values.get(tag_name);
+    }
+
+    /**
+     * @return id of the item
+     */
+    public String getId() {
+        return getValue("id");
+    }
+
+    /**
+     * @return section number or -1 if the item has none (only SectionImages do)
+     */
+    public int getSectionNumber() {
+        String value = getValue("section-number");
+        return (value == null) ? -1 : Integer.parseInt(value);
+    }
+
+    /**
+     * @return resolution [um/pixel] or NaN if the item has none
+     */
+    public double getResolution() {
+        String value = getValue("resolution");
+        return (value == null) ? Double.NaN : Double.parseDouble(value);
+    }
+
+    /**
+     * Same as {@link AllenXml#getRowPackedSection2VolumeTransform()}
+     *
+     * @return row packed 2D affine matrix or null if the item has no alignment2d
+     */
+    public double[] getRowPackedSection2VolumeTransform() {
+        return alignment2d;
+    }
+
+    /**
+     * Same as {@link AllenXml#getRowPackedVolume2ReferenceTransform()}
+     *
+     * @return row packed 3D affine matrix or null if the item has no alignment3d
+     */
+    public double[] getRowPackedVolume2ReferenceTransform() {
+        return alignment3d;
+    }
+
+    @Override
+    public String toString() {
+        return "RmaRecord{id=" + getId() + ", values=" + values.size() +
+                ", alignment2d=" + (alignment2d != null) +
+                ", alignment3d=" + (alignment3d != null) + "}";
+    }
+}
@@ -0,0 +1,219 @@
+package rest;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming (StAX) parser for RMA responses.
+ * The items of the response are emitted one by one as {@link RmaRecord}s,
+ * without building the document tree. Memory use is bound by the size of
+ * one item, independently of the number of rows in the response.
+ *
+ * The layout of an RMA response is:
+ *
+ * [Response]
+ *    |- [model]s
+ *       |- [model]
+ *          |- id
+ *          |- section-number
+ *          |- alignment2d
+ *             |- tsv-00
+ *             |- ...
+ *
+ * For the full document use {@link AllenXml}.
+ *
+ * @author Felix Meyenhofer
+ */
+class RmaStreamReader {
+
+    /**
+     * Consumer of the items of a response
+     */
+    interface RecordHandler {
+        void record(RmaRecord record) throws IOException;
+    }
+
+    private static final int ITEM_DEPTH = 3;
+    private static final int FIELD_DEPTH = 4;
+
+    private static final XMLInputFactory factory = createFactory();
+
+
+    private RmaStreamReader() {}
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Parse a cached response
+     *
+     * @param file xml response
+     * @param handler consumer of the items
+     * @return number of items
+     * @throws IOException if the file cannot be read or is no valid response
+     */
+    static int read(File file, RecordHandler handler) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(is, handler);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Read the total number of rows of the query (of which the response may hold only one page)
+     *
+     * @param file xml response
+     * @return total number of rows
+     * @throws IOException if the file cannot be read or is no valid response
+     */
+    static int readTotalRows(File file) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(is);
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    String total = reader.getAttributeValue(null, "total_rows");
+                    reader.close();
+                    if (total == null) {
+                        throw new IOException("The RMA response " + file.getName() + " has no total_rows.");
+                    }
+                    return Integer.parseInt(total);
+                }
+            }
+            throw new IOException("The RMA response " + file.getName() + " is empty.");
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new IOException("Could not parse the RMA response: " + e.getMessage(), e);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Parse a response
+     *
+     * @param is input stream of the xml response (is not closed)
+     * @param handler consumer of the items
+     * @return number of items
+     * @throws IOException if the stream cannot be read or is no valid response
+     */
+    static int read(InputStream is, RecordHandler handler) throws IOException {
+        int count = 0;
+
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(is);
+
+            int depth = 0;
+            RmaRecord record = null;
+            String field = null;
+            boolean scalar = false;
+            StringBuilder text = new StringBuilder();
+            double[] matrix = null;
+            int[] index = null;
+            String prefix = null;
+            int position = 0;
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        String name = reader.getLocalName();
+
+                        if (depth == 1) {
+                            if ("false".equals(reader.getAttributeValue(null, "success"))) {
+                                throw new IOException("The RMA query was not successful");
+                            }
+                        } else if (depth == ITEM_DEPTH) {
+                            record = new RmaRecord();
+                        } else if (depth == FIELD_DEPTH) {
+                            field = name;
+                            scalar = true;
+                            text.setLength(0);
+
+                            if (name.equals("alignment2d")) {
+                                matrix = new double[6];
+                                index = RmaRecord.ALIGNMENT_2D_INDEX;
+                                prefix = "tsv-";
+                            } else if (name.equals("alignment3d")) {
+                                matrix = new double[12];
+                                index = RmaRecord.ALIGNMENT_3D_INDEX;
+                                prefix = "trv-";
+                            } else {
+                                matrix = null;
+                            }
+                            position = 0;
+                        } else if (depth == FIELD_DEPTH + 1) {
+                            scalar = false;
+                            text.setLength(0);
+                        }
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (depth == FIELD_DEPTH || depth == FIELD_DEPTH + 1) {
+                            text.append(reader.getText());
+                        }
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == ITEM_DEPTH && record != null) {
+                            handler.record(record);
+                            record = null;
+                            count++;
+                        } else if (depth == FIELD_DEPTH && record != null) {
+                            if (scalar) {
+                                record.setValue(field, text.toString().trim());
+                            } else if (matrix != null) {
+                                if (field.equals("alignment2d")) {
+                                    record.setAlignment2d(matrix);
+                                } else {
+                                    record.setAlignment3d(matrix);
+                                }
+                                matrix = null;
+                            }
+                        } else if (depth == FIELD_DEPTH + 1 && matrix != null &&
+                                reader.getLocalName().startsWith(prefix) && position < index.length) {
+                            String value = text.toString().trim();
+                            matrix[index[position++]] = value.isEmpty() ? Double.NaN : Double.parseDouble(value);
+                        }
+                        depth--;
+                        break;
+                }
+            }
+
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not parse the RMA response: " + e.getMessage(), e);
+        }
+
+        return count;
+    }
+
+    /**
+     * Quick testing
+     */
+    public static void main(String[] args) throws Exception {
+        AllenCache cache = new AllenCache();
+        long sta = System.currentTimeMillis();
+        int n = cache.getResponseRecords(AllenAPI.RMA.createSectionImagesQuery("100048576"), new RecordHandler() {
+            @Override
+            public void record(RmaRecord record) {
+                System.out.println(record.getId() + ": section " + record.getSectionNumber());
+            }
+        });
+        System.out.println(n + " records in " + (System.currentTimeMillis() - sta) + " ms");
+    }
+}
@@ -0,0 +1,238 @@
+package rest;
+
+import log.FeedbackGate;
+import org.jdom2.Element;
+
+import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download engine for the SectionImages of a SectionDataSet.
+ * The images are fetched through the {@link AllenCache} by a bounded number of workers.
+ * The number of simultaneous connections per host is limited by the {@link ConnectionLimiter}.
+ *
+ * Progress is recorded in a {@link DownloadManifest} next to the images, so that an
+ * interrupted download resumes where it stopped. The manifest only speeds this up: an
+ * image counts as done if its files are (still) in the cache, and a lost manifest
+ * merely means that the cache is consulted for every image.
+ *
+ * @author Felix Meyenhofer
+ */
+class SectionDatasetDownloader extends FeedbackGate {
+
+    /** Default number of download workers */
+    static final int DEFAULT_WORKERS = 4;
+
+    private final AllenCache cache;
+    private final int workers;
+
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private long start;
+    private volatile int total;
+
+    /** State of the current download (see {@link #begin}) */
+    private DownloadManifest manifest;
+    private ExecutorService executor;
+    private List<Future<Void>> futures;
+    private Element dataset_element;
+    private String product_name;
+    private String dataset_id;
+    private int downsample;
+    private int quality;
+
+
+    /**
+     * Constructor
+     *
+     * @param cache to fetch the images and metadata through
+     * @param workers number of concurrent downloads
+     */
+    SectionDatasetDownloader(AllenCache cache, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of download workers has to be at least 1, not " + workers);
+        }
+
+        this.cache = cache;
+        this.workers = workers;
+    }
+
+    /**
+     * Download all the section images (and their metadata) of a dataset.
+     *
+     * @param dataset_element xml element describing the dataset
+     * @param product_name abbreviation of the product the dataset belongs to
+     * @param dataset_id id of the dataset
+     * @param image_ids ids of the section images
+     * @param downsample down sampling of the images
+     * @param quality jpg quality
+     * @throws IOException if one or more images could not be downloaded
+     */
+    void download(Element dataset_element, String product_name, String dataset_id,
+                  List<String> image_ids, int downsample, int quality) throws IOException {
+        begin(dataset_element, product_name, dataset_id, downsample, quality);
+        setTotal(image_ids.size());
+        for (String image_id : image_ids) {
+            submit(image_id);
+        }
+        finish();
+    }
+
+    /**
+     * Start a download, to which the images are {@link #submit}ted one by one
+     * (e.g. while the listing of the images is still being fetched).
+     *
+     * @param dataset_element xml element describing the dataset
+     * @param product_name abbreviation of the product the dataset belongs to
+     * @param dataset_id id of the dataset
+     * @param downsample down sampling of the images
+     * @param quality jpg quality
+     * @throws IOException if the download manifest cannot be opened
+     */
+    void begin(Element dataset_element, String product_name, String dataset_id,
+               int downsample, int quality) throws IOException {
+        File directory = cache.getImagePath(downsample, quality, product_name, dataset_id, "manifest").getParentFile();
+        this.manifest = new DownloadManifest(directory);
+        this.dataset_element = dataset_element;
+        this.product_name = product_name;
+        this.dataset_id = dataset_id;
+        this.downsample = downsample;
+        this.quality = quality;
+
+        total = 0;
+        count.set(0);
+        bytes.set(0);
+        start = System.currentTimeMillis();
+        futures = new ArrayList<>();
+        executor = Executors.newFixedThreadPool(workers);
+
+        int resumed = manifest.getDoneCount();
+        if (resumed > 0) {
+            consoleAndStatusUpdate("Resuming download of SectionDataset " + dataset_id +
+                    " (" + resumed + " images done)");
+        }
+    }
+
+    /**
+     * @param total number of images of the dataset (for the progress report)
+     */
+    void setTotal(int total) {
+        this.total = total;
+    }
+
+    /**
+     * Queue the download of an image
+     *
+     * @param image_id id of the section image
+     */
+    void submit(String image_id) {
+        futures.add(executor.submit(createTask(manifest, dataset_element, product_name, dataset_id,
+                image_id, downsample, quality)));
+    }
+
+    /**
+     * Wait for the queued downloads to complete
+     *
+     * @throws IOException if one or more images could not be downloaded
+     */
+    void finish() throws IOException {
+        executor.shutdown();
+
+        int failed = 0;
+        Throwable cause = null;
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    cause = e.getCause();
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new InterruptedIOException("Download of SectionDataset " + dataset_id + " was interrupted");
+        } finally {
+            manifest.close();
+        }
+
+        if (failed > 0) {
+            throw new IOException(failed + " of " + futures.size() + " images of SectionDataset " + dataset_id +
+                    " could not be downloaded. Run the download again to resume.", cause);
+        }
+    }
+
+    /**
+     * Stop the queued downloads (e.g. if the listing of the images failed)
+     *
+     * @throws IOException if the download manifest cannot be closed
+     */
+    void abort() throws IOException {
+        executor.shutdownNow();
+        manifest.close();
+    }
+
+    private Callable<Void> createTask(final DownloadManifest manifest,
+                                      final Element dataset_element,
+                                      final String product_name,
+                                      final String dataset_id,
+                                      final String image_id,
+                                      final int downsample,
+                                      final int quality) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, TransformerException, URISyntaxException {
+                File imagePath = cache.getImagePath(downsample, quality, product_name, dataset_id, image_id);
+                File metadataPath = cache.getMetadataPath(product_name, dataset_id, image_id);
+
+                // The files might have been removed from the cache since they were recorded
+                if (manifest.isDone(image_id) && cache.isCached(imagePath) && cache.isCached(metadataPath)) {
+                    progress(image_id, 0);
+                    return null;
+                }
+
+                if (manifest.wasInterrupted(image_id)) {
+                    // Left-overs of the interrupted run cannot be trusted
+                    delete(imagePath);
+                    delete(metadataPath);
+                }
+
+                manifest.started(image_id);
+                cache.getImageMetadataXml(dataset_element, product_name, dataset_id, image_id);
+                AllenImage image = cache.getImage(downsample, quality, product_name, dataset_id, image_id);
+                manifest.done(image_id);
+
+                progress(image_id, image.isNew() ? image.getFile().length() : 0);
+                return null;
+            }
+        };
+    }
+
+    private void progress(String image_id, long size) {
+        int n = count.incrementAndGet();
+        long received = bytes.addAndGet(size);
+        double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        double speed = received / 1000000.0 / seconds;
+
+        consoleAndStatusUpdate(n, total, "Downloaded SectionImage " + image_id +
+                " (" + n + "/" + total + ", " + String.format("%.1f", speed) + " MB/s)");
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not remove the incomplete file " + file);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package rest;
+
+import java.awt.*;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of an {@link AtlasStructureGraph}.
+ * Parsing the structure graph xml (and the structure-id-paths) is slow compared to
+ * reading a handful of primitive arrays, so the graph is stored in the cache next to
+ * the xml and memory-mapped the next time it is needed.
+ *
+ * Layout (big endian):
+ *
+ *      int     magic ({@link #MAGIC})
+ *      int     version ({@link #VERSION})
+ *      int     n (number of structures)
+ *      int[n]  structure id
+ *      int[n]  index of the parent structure (-1 for the root)
+ *      int[n]  depth
+ *      int[n]  packed RGB color
+ *      int[n]  index of the acronym in the string table
+ *      int[n]  index of the name in the string table
+ *      int[n]  structure index of the ids in ascending order (id -> index table)
+ *      int     m (number of strings)
+ *      int[m+1] offsets of the strings in the utf-8 data
+ *      byte[]  utf-8 data of the (interned) strings
+ *
+ * Snapshots with another magic number or version are ignored (and rewritten).
+ *
+ * @author Felix Meyenhofer
+ */
+class StructureGraphSnapshot {
+
+    /** File extension of the snapshot (in the StructureGraph directory of the cache) */
+    static final String FILE_EXTENSION = ".graph";
+
+    private static final int MAGIC = 0x41424147; // "ABAG"
+    private static final int VERSION = 1;
+
+    private final int[] ids;
+    private final int[] parents;
+    private final int[] depths;
+    private final int[] colors;
+    private final int[] acronyms;
+    private final int[] names;
+    private final int[] order;
+    private final String[] strings;
+
+
+    private StructureGraphSnapshot(int[] ids, int[] parents, int[] depths, int[] colors,
+                                   int[] acronyms, int[] names, int[] order, String[] strings) {
+        this.ids = ids;
+        this.parents = parents;
+        this.depths = depths;
+        this.colors = colors;
+        this.acronyms = acronyms;
+        this.names = names;
+        this.order = order;
+        this.strings = strings;
+    }
+
+    /**
+     * Create the snapshot of a structure graph
+     *
+     * @param graph structures (parents are expected to be in the graph)
+     * @return snapshot
+     */
+    static StructureGraphSnapshot create(AtlasStructureGraph graph) {
+        Map<Integer, AtlasStructure> structures = graph.getGraph();
+        int n = structures.size();
+
+        int[] ids = new int[n];
+        int[] parents = new int[n];
+        int[] depths = new int[n];
+        int[] colors = new int[n];
+        int[] acronyms = new int[n];
+        int[] names = new int[n];
+
+        Map<Integer, Integer> index = new HashMap<>(2 * n);
+        Map<String, Integer> interned = new LinkedHashMap<>();
+
+        int i = 0;
+        for (AtlasStructure structure : structures.values()) {
+            index.put(structure.getId(), i);
+            ids[i] = structure.getId();
+            depths[i] = structure.getDepth();
+            colors[i] = structure.getColor().getRGB() & 0xFFFFFF;
+            acronyms[i] = intern(interned, structure.getAcronym());
+            names[i] = intern(interned, structure.getName());
+            i++;
+        }
+
+        i = 0;
+        for (AtlasStructure structure : structures.values()) {
+            Integer parent = index.get(structure.getParentId());
+            parents[i++] = (parent == null) ? -1 : parent;
+        }
+
+        return new StructureGraphSnapshot(ids, parents, depths, colors, acronyms, names,
+                sortIndex(ids), interned.keySet().toArray(new String[interned.size()]));
+    }
+
+    private static int intern(Map<String, Integer> table, String string) {
+        if (string == null) {
+            string = "";
+        }
+
+        Integer index = table.get(string);
+        if (index == null) {
+            index = table.size();
+            table.put(string, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * @return indices of the ids in ascending order of the ids
+     */
+    private static int[] sortIndex(int[] ids) {
+        long[] keys = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = ((long) ids[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = (int) keys[i];
+        }
+
+        return order;
+    }
+
+    /**
+     * Write the snapshot to the cache.
+     * The file is written to a temporary file first and moved atomically.
+     *
+     * @param file snapshot file
+     * @throws IOException if the file cannot be written
+     */
+    void write(File file) throws IOException {
+        File temporary = CacheIntegrity.getTemporaryFile(file);
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+
+        os.writeInt(MAGIC);
+        os.writeInt(VERSION);
+        os.writeInt(ids.length);
+        for (int[] column : new int[][]{ids, parents, depths, colors, acronyms, names, order}) {
+            for (int value : column) {
+                os.writeInt(value);
+            }
+        }
+
+        byte[][] data = new byte[strings.length][];
+        os.writeInt(strings.length);
+        int offset = 0;
+        os.writeInt(offset);
+        for (int i = 0; i < strings.length; i++) {
+            data[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            offset += data[i].length;
+            os.writeInt(offset);
+        }
+        for (byte[] bytes : data) {
+            os.write(bytes);
+        }
+        os.close();
+
+        CacheIntegrity.commit(temporary, file);
+    }
+
+    /**
+     * Map a snapshot from the cache.
+     *
+     * @param file snapshot file
+     * @return snapshot or null if the file is missing, of another version or corrupt
+     */
+    static StructureGraphSnapshot read(File file) {
+        if (!file.exists() || !CacheIntegrity.verify(file)) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            channel.close();
+            raf.close();
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            int n = buffer.getInt();
+            int[][] columns = new int[7][n];
+            IntBuffer ints = buffer.asIntBuffer();
+            for (int[] column : columns) {
+                ints.get(column);
+            }
+            buffer.position(buffer.position() + 7 * n * 4);
+
+            int m = buffer.getInt();
+            int[] offsets = new int[m + 1];
+            buffer.asIntBuffer().get(offsets);
+            buffer.position(buffer.position() + (m + 1) * 4);
+
+            ByteBuffer data = buffer.slice();
+            String[] strings = new String[m];
+            byte[] bytes = new byte[offsets[m]];
+            data.get(bytes);
+            for (int i = 0; i < m; i++) {
+                strings[i] = new String(bytes, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+            }
+
+            return new StructureGraphSnapshot(columns[0], columns[1], columns[2], columns[3],
+                    columns[4], columns[5], columns[6], strings);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Look up the index of a structure
+     *
+     * @param id of the structure
+     * @return index or -1 if the structure is not in the snapshot
+     */
+    int indexOf(int id) {
+        int lo = 0;
+        int hi = order.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = ids[order[mid]];
+            if (value < id) {
+                lo = mid + 1;
+            } else if (value > id) {
+                hi = mid - 1;
+            } else {
+                return order[mid];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Create the structure graph from the snapshot
+     *
+     * @return structure graph (in the same order as it was written)
+     */
+    AtlasStructureGraph toGraph() {
+        int n = ids.length;
+        int[][] paths = new int[n][];
+
+        HashMap<Integer, AtlasStructure> graph = new LinkedHashMap<>(2 * n);
+        for (int i = 0; i < n; i++) {
+            AtlasStructure structure = new AtlasStructure(ids[i], depths[i],
+                    strings[acronyms[i]], strings[names[i]], getPath(i, paths), new Color(colors[i]));
+            graph.put(ids[i], structure);
+        }
+
+        return new AtlasStructureGraph(graph);
+    }
+
+    /**
+     * Build the path from the root to a structure (memoized, parents share the prefix computation)
+     */
+    private int[] getPath(int index, int[][] paths) {
+        int[] path = paths[index];
+        if (path == null) {
+            int parent = parents[index];
+            int[] prefix = (parent < 0) ? new int[0] : getPath(parent, paths);
+            path = Arrays.copyOf(prefix, prefix.length + 1);
+            path[prefix.length] = ids[index];
+            paths[index] = path;
+        }
+
+        return path;
+    }
+
+    /**
+     * Quick testing (compares loading the graph from the xml and from the snapshot).
+     * The in-memory document cache is cleared before each parse, so that the xml is read
+     * from the disk every time, like the snapshot. Both are warmed up first.
+     */
+    public static void main(String[] args) throws Exception {
+        AllenClient client = AllenClient.getInstance();
+        int warmup = 5;
+        int iterations = 20;
+
+        for (int i = 0; i < warmup; i++) {
+            client.clearMemoryCache();
+            client.parseAnnotationStructureGraph(AllenAtlas.MOUSE3D);
+            client.getAnnotationStructureGraph(AllenAtlas.MOUSE3D);
+        }
+
+        long sta = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            client.clearMemoryCache();
+            client.parseAnnotationStructureGraph(AllenAtlas.MOUSE3D);
+        }
+        double xml = (System.nanoTime() - sta) / 1e6 / iterations;
+
+        sta = System.nanoTime();
+        AtlasStructureGraph graph = null;
+        for (int i = 0; i < iterations; i++) {
+            graph = client.getAnnotationStructureGraph(AllenAtlas.MOUSE3D);
+        }
+        double snapshot = (System.nanoTime() - sta) / 1e6 / iterations;
+
+        System.out.println(graph.size() + " structures");
+        System.out.println("xml:      " + String.format("%.2f", xml) + " ms");
+        System.out.println("snapshot: " + String.format("%.2f", snapshot) + " ms");
+    }
+}
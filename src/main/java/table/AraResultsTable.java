@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Results table with object coordinates.
@@ -30,6 +31,7 @@ public class AraResultsTable extends DefaultGenericTable {
     public String ANNOTATION_ID_COLUMN_NAME = "Annotation ID";
     public String ANNOTATION_NAME_COLUMN_NAME = "Annotation NAME";
     public String ANNOTATION_ACRONYM_COLUMN_NAME = "Annotation Acronym";
+    public String EXPRESSION_COLUMN_PREFIX = "Expression ";
 
     private String name;
 
@@ -90,7 +92,6 @@ public class AraResultsTable extends DefaultGenericTable {
 
         // Get the atlas data
         AllenRefVol refVol = client.getReferenceVolume(Atlas.Modality.ANNOTATION, araImg.getTemplateResolution());
-        AtlasStructureGraph structureGraph = client.getAnnotationStructureGraph(AllenAtlas.MOUSE3D);
 
         // Create the additional columns
         DoubleColumn ara_x = new DoubleColumn(X_COLUMN_NAME);
@@ -100,30 +101,36 @@ public class AraResultsTable extends DefaultGenericTable {
         GenericColumn name_col = new GenericColumn(ANNOTATION_NAME_COLUMN_NAME);
         GenericColumn acro_col = new GenericColumn(ANNOTATION_ACRONYM_COLUMN_NAME);
 
-        GenericColumn xCol = (GenericColumn) this.get(header.getXColumn());
-        GenericColumn yCol = (GenericColumn) this.get(header.getYColumn());
+        try {
+            AtlasStructureGraph structureGraph = client.getAnnotationStructureGraph(AllenAtlas.MOUSE3D);
 
-        RandomAccessibleInterval<FloatType> rai = refVol.getRai();
-        RandomAccess<FloatType> ra = rai.randomAccess();
+            GenericColumn xCol = (GenericColumn) this.get(header.getXColumn());
+            GenericColumn yCol = (GenericColumn) this.get(header.getYColumn());
 
-        for (int index = 0; index < table.getRowCount(); index++) {
-            double[] s_coord = new double[]{(double)xCol.get(index), (double)yCol.get(index)};
-            double[] t_coord = araImg.getTemplateCoordinate(s_coord);
+            RandomAccessibleInterval<FloatType> rai = refVol.getRai();
+            RandomAccess<FloatType> ra = rai.randomAccess();
 
-            ara_x.add(t_coord[0]);
-            ara_y.add(t_coord[1]);
-            ara_z.add(t_coord[2]);
+            for (int index = 0; index < table.getRowCount(); index++) {
+                double[] s_coord = new double[]{(double)xCol.get(index), (double)yCol.get(index)};
+                double[] t_coord = araImg.getTemplateCoordinate(s_coord);
 
-            ra.setPosition(new long[]{Math.round(t_coord[0]), Math.round(t_coord[1]), Math.round(t_coord[2])});
-            Float value = ra.get().getRealFloat();
-            int id = value.intValue();
-            AtlasStructure structure = structureGraph.getGraph().get(id);
-            String name = (structure == null) ? "None" : structure.getName();
-            String acronym = (structure == null) ? "None" : structure.getAcronym();
+                ara_x.add(t_coord[0]);
+                ara_y.add(t_coord[1]);
+                ara_z.add(t_coord[2]);
 
-            id_col.add(id);
-            name_col.add(name);
-            acro_col.add(acronym);
+                ra.setPosition(new long[]{Math.round(t_coord[0]), Math.round(t_coord[1]), Math.round(t_coord[2])});
+                Float value = ra.get().getRealFloat();
+                int id = value.intValue();
+                AtlasStructure structure = structureGraph.getStructure(id);
+                String name = (structure == null) ? "None" : structure.getName();
+                String acronym = (structure == null) ? "None" : structure.getAcronym();
+
+                id_col.add(id);
+                name_col.add(name);
+                acro_col.add(acronym);
+            }
+        } finally {
+            client.releaseReferenceVolume(refVol);
         }
 
         table.add(ara_x);
@@ -136,6 +143,53 @@ public class AraResultsTable extends DefaultGenericTable {
         return table;
     }
 
+    /**
+     * Add one column with the gene expression per section data set (gene/experiment), sampled
+     * at the ARA coordinates of the rows (see {@link #mapSectionCoordinates}).
+     *
+     * @param sampler to fetch and sample the expression grids
+     * @param datasetIds section data set ids
+     * @param measure of the expression
+     * @param resolution of the template the ARA coordinates refer to
+     * @return new table with the additional columns
+     * @throws IOException if the sampling is interrupted
+     */
+    public AraResultsTable addExpressionColumns(ExpressionSampler sampler, List<String> datasetIds,
+                                                ExpressionGrid.Measure measure, Atlas.VoxelResolution resolution)
+            throws IOException {
+        int cx = getColumnIndex(X_COLUMN_NAME);
+        int cy = getColumnIndex(Y_COLUMN_NAME);
+        int cz = getColumnIndex(Z_COLUMN_NAME);
+        if (cx < 0 || cy < 0 || cz < 0) {
+            throw new IllegalArgumentException("The table has no ARA coordinates (map the section coordinates first).");
+        }
+
+        int n = getRowCount();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] z = new double[n];
+        for (int row = 0; row < n; row++) {
+            x[row] = ((Number) get(cx, row)).doubleValue();
+            y[row] = ((Number) get(cy, row)).doubleValue();
+            z[row] = ((Number) get(cz, row)).doubleValue();
+        }
+
+        Map<String, float[]> columns = sampler.sample(datasetIds, measure, x, y, z, resolution);
+
+        AraResultsTable table = (AraResultsTable) this.clone();
+        for (Map.Entry<String, float[]> entry : columns.entrySet()) {
+            // double columns, so that the table converts to an ij1 table
+            DoubleColumn column = new DoubleColumn(EXPRESSION_COLUMN_PREFIX + entry.getKey() +
+                    " (" + measure.name().toLowerCase() + ")");
+            for (float value : entry.getValue()) {
+                column.add((double) value);
+            }
+            table.add(column);
+        }
+
+        return table;
+    }
+
     public void show() {
         // TODO: the back and forth converting between ij1 and ij2 tables is only because ij2 tables cannot be saved via UI.
         ResultsTable ijTable = ResultsTableConverter.convertIJ2toIJ1(this);
@@ -0,0 +1,162 @@
+package rest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the {@link HttpTransport} against a local stub server:
+ *  - /retry fails twice (503, the second time with a Retry-After of 0 s) before the compressed
+ *    response is sent
+ *  - a request to /retry with the ETag is answered with 304
+ *  - /corrupt sends a truncated gzip body the first time (the read error is retried)
+ *  - /redirect answers with a redirect to another protocol (not followed, a failure without retries)
+ *
+ * @author Felix Meyenhofer
+ */
+public class HttpTransportTest {
+
+    private static final String CONTENT = "<Response success='true'><item>stub</item></Response>";
+    private static final String ETAG = "\"v1\"";
+
+    private final Map<String, AtomicInteger> requests = new LinkedHashMap<>();
+    private HttpServer server;
+    private String host;
+
+
+    @Before
+    public void startServer() throws IOException {
+        for (String path : new String[]{"/retry", "/corrupt", "/redirect"}) {
+            requests.put(path, new AtomicInteger());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(CONTENT.getBytes("UTF-8"));
+        gzip.close();
+        final byte[] compressed = bytes.toByteArray();
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                int n = requests.get(path).incrementAndGet();
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                byte[] body = compressed;
+                if (path.equals("/redirect")) {
+                    exchange.getResponseHeaders().add("Location", "ftp://localhost/stub");
+                    exchange.sendResponseHeaders(301, -1);
+                    exchange.close();
+                    return;
+                } else if (path.equals("/retry") && n <= 2) {
+                    if (n == 2) {
+                        exchange.getResponseHeaders().add("Retry-After", "0");
+                    }
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                } else if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                } else if (path.equals("/corrupt") && n == 1) {
+                    body = Arrays.copyOf(compressed, compressed.length / 2);
+                }
+
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+                exchange.close();
+            }
+        });
+        server.start();
+
+        host = "http://localhost:" + server.getAddress().getPort();
+        HttpTransport.setRetries(4, 10);
+    }
+
+    @After
+    public void stopServer() {
+        HttpTransport.setRetries(HttpTransport.DEFAULT_MAX_ATTEMPTS, HttpTransport.DEFAULT_BACKOFF);
+        server.stop(0);
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+        HttpTransport.Response response = HttpTransport.get(new URL(host + "/retry"));
+
+        assertEquals(200, response.getStatus());
+        assertEquals(ETAG, response.getETag());
+        assertEquals(CONTENT, read(response));
+        assertEquals(3, requests.get("/retry").get());
+    }
+
+    @Test
+    public void testConditionalRequest() throws IOException {
+        read(HttpTransport.get(new URL(host + "/retry")));
+
+        HttpTransport.Response response = HttpTransport.get(new URL(host + "/retry"), ETAG, null);
+        response.close();
+
+        assertEquals(304, response.getStatus());
+        assertTrue(response.isNotModified());
+        assertEquals(4, requests.get("/retry").get());
+    }
+
+    @Test
+    public void testCorruptBody() throws IOException {
+        HttpTransport.Response response = HttpTransport.get(new URL(host + "/corrupt"));
+
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, read(response));
+        assertEquals(2, requests.get("/corrupt").get());
+    }
+
+    @Test
+    public void testRedirect() throws IOException {
+        try {
+            HttpTransport.get(new URL(host + "/redirect")).close();
+            fail("The redirect to another protocol was not reported as a failure.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("301"));
+        }
+
+        assertEquals(1, requests.get("/redirect").get());
+    }
+
+    private static String read(HttpTransport.Response response) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = response.getBody().read(buffer)) != -1) {
+                received.write(buffer, 0, len);
+            }
+        } finally {
+            response.close();
+        }
+
+        return received.toString("UTF-8");
+    }
+}
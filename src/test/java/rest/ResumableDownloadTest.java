@@ -0,0 +1,131 @@
+package rest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the {@link ResumableDownload} against a local stub server. The first response
+ * breaks off after a third of the content; range requests are answered with 206, unless
+ * the If-Range validator no longer matches (then the whole content is sent with 200).
+ *
+ * @author Felix Meyenhofer
+ */
+public class ResumableDownloadTest {
+
+    private final byte[] content = new byte[300000];
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private volatile String etag = "\"v1\"";
+
+    private HttpServer server;
+    private URL url;
+    private File temporary;
+    private ResumableDownload download;
+
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(1).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int n = requests.incrementAndGet();
+                exchange.getResponseHeaders().add("ETag", etag);
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                OutputStream os;
+                if (range == null || !etag.equals(ifRange)) {
+                    exchange.sendResponseHeaders(200, content.length);
+                    os = exchange.getResponseBody();
+                    os.write(content, 0, (n == 1) ? content.length / 3 : content.length);
+                } else {
+                    rangeRequests.incrementAndGet();
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    int first = Integer.parseInt(bounds[0]);
+                    int last = (bounds.length > 1) ? Integer.parseInt(bounds[1]) : content.length - 1;
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+                    exchange.sendResponseHeaders(206, last - first + 1);
+                    os = exchange.getResponseBody();
+                    os.write(content, first, last - first + 1);
+                }
+                // closing the exchange early breaks the connection off
+                exchange.close();
+            }
+        });
+        server.start();
+
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/volume.nrrd");
+        temporary = File.createTempFile("download", ".part");
+        download = new ResumableDownload(url, temporary, null);
+    }
+
+    @After
+    public void stopServer() {
+        download.clear();
+        temporary.delete();
+        server.stop(0);
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        breakOff();
+
+        download = new ResumableDownload(url, temporary, null);
+        assertTrue(download.isPartial());
+        assertEquals(content.length / 3, download.getReceived());
+        assertEquals(content.length, download.getLength());
+
+        long crc = download.resume();
+
+        CRC32 expected = new CRC32();
+        expected.update(content);
+        assertEquals(expected.getValue(), crc);
+        assertEquals(content.length, temporary.length());
+        assertEquals(2, requests.get());
+        assertEquals(1, rangeRequests.get());
+    }
+
+    @Test
+    public void testResourceChanged() throws IOException {
+        breakOff();
+
+        etag = "\"v2\"";
+        download = new ResumableDownload(url, temporary, null);
+        assertTrue(download.isPartial());
+        assertEquals(-1, download.resume());
+        assertEquals(0, rangeRequests.get());
+
+        download = new ResumableDownload(url, temporary, null);
+        assertFalse(download.isPartial());
+    }
+
+    private void breakOff() throws IOException {
+        try {
+            download.start(HttpTransport.get(url));
+            fail("The broken off response was not reported as a failure.");
+        } catch (IOException e) {
+            assertEquals(1, requests.get());
+        }
+    }
+}